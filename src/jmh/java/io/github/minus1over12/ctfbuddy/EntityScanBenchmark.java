@@ -0,0 +1,155 @@
+package io.github.minus1over12.ctfbuddy;
+
+import io.papermc.paper.threadedregions.scheduler.EntityScheduler;
+import org.bukkit.NamespacedKey;
+import org.bukkit.entity.Entity;
+import org.bukkit.persistence.PersistentDataContainer;
+import org.bukkit.persistence.PersistentDataType;
+import org.bukkit.plugin.Plugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Benchmarks a full {@link EntityScanPipeline} pass over a large number of loaded entities, a few
+ * of which are flags. Entities are lightweight proxies rather than Mockito stubs, so tens of
+ * thousands of them fit in the benchmark heap and their dispatch cost stays small.
+ *
+ * @author War Pigeon
+ */
+@State(Scope.Thread)
+public class EntityScanBenchmark {
+    /**
+     * The number of loaded entities to scan.
+     */
+    @Param({"50000"})
+    public int entityCount;
+    
+    /**
+     * The number of the loaded entities that are flags.
+     */
+    @Param({"10"})
+    public int flagCount;
+    
+    /**
+     * The key the flag bit is stored under.
+     */
+    private final NamespacedKey isFlagKey = new NamespacedKey("ctfbuddy", "flag");
+    
+    /**
+     * Stand-in for the flag registry.
+     */
+    private final Set<UUID> known = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * The entities to scan.
+     */
+    private List<Entity> entities;
+    
+    /**
+     * The pipeline being measured.
+     */
+    private EntityScanPipeline pipeline;
+    
+    /**
+     * Creates a stand-in entity.
+     *
+     * @param flag      Whether the entity is a flag.
+     * @param scheduler The scheduler the entity hands tasks to.
+     * @return The entity.
+     */
+    private static Entity createEntity(boolean flag, EntityScheduler scheduler) {
+        UUID entityId = UUID.randomUUID();
+        PersistentDataContainer container = (PersistentDataContainer) Proxy.newProxyInstance(
+                EntityScanBenchmark.class.getClassLoader(),
+                new Class<?>[]{PersistentDataContainer.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "isEmpty" -> !flag;
+                    case "getOrDefault" -> flag || (boolean) args[2];
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+        return (Entity) Proxy.newProxyInstance(EntityScanBenchmark.class.getClassLoader(),
+                new Class<?>[]{Entity.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "getUniqueId" -> entityId;
+                    case "getPersistentDataContainer" -> container;
+                    case "getScheduler" -> scheduler;
+                    case "hashCode" -> entityId.hashCode();
+                    case "equals" -> proxy == args[0];
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+    
+    /**
+     * Creates the entities and the pipeline.
+     */
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        EntityScheduler scheduler = (EntityScheduler) Proxy.newProxyInstance(
+                EntityScanBenchmark.class.getClassLoader(), new Class<?>[]{EntityScheduler.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("run")) {
+                        ((Consumer<Object>) args[1]).accept(null);
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        entities = new ArrayList<>(entityCount);
+        int flagStride = Math.max(1, entityCount / Math.max(1, flagCount));
+        for (int i = 0; i < entityCount; i++) {
+            entities.add(createEntity(i % flagStride == 0, scheduler));
+        }
+        Plugin plugin = (Plugin) Proxy.newProxyInstance(EntityScanBenchmark.class.getClassLoader(),
+                new Class<?>[]{Plugin.class}, (proxy, method, args) -> {
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        pipeline = new EntityScanPipeline(plugin, entity -> {
+            PersistentDataContainer container = entity.getPersistentDataContainer();
+            if (container.isEmpty()) {
+                return 0;
+            }
+            return container.getOrDefault(isFlagKey, PersistentDataType.BOOLEAN, false) ?
+                    EntityScanPipeline.FLAG : 0;
+        }, (entityId, roles) -> !known.contains(entityId),
+                (entity, roles) -> known.add(entity.getUniqueId()));
+    }
+    
+    /**
+     * Stops the pipeline's executor.
+     */
+    @TearDown
+    public void tearDown() {
+        pipeline.shutdown();
+    }
+    
+    /**
+     * Measures the part of a scan that runs on the owning thread.
+     *
+     * @return The roles found, so the scan is not optimized away.
+     */
+    @Benchmark
+    public int snapshot() {
+        known.clear();
+        return pipeline.scan(entities).roles();
+    }
+    
+    /**
+     * Measures a scan through to every flag being applied.
+     */
+    @Benchmark
+    public void fullScan() {
+        known.clear();
+        pipeline.scan(entities).applied().join();
+    }
+}
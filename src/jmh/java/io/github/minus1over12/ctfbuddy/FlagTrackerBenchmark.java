@@ -0,0 +1,329 @@
+package io.github.minus1over12.ctfbuddy;
+
+import io.papermc.paper.threadedregions.scheduler.AsyncScheduler;
+import io.papermc.paper.threadedregions.scheduler.GlobalRegionScheduler;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Item;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.entity.ItemDespawnEvent;
+import org.bukkit.event.entity.ItemSpawnEvent;
+import org.bukkit.event.inventory.InventoryPickupItemEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.persistence.PersistentDataContainer;
+import org.bukkit.persistence.PersistentDataType;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+/**
+ * Benchmarks for the {@link FlagTracker} event handlers, run against stand-in Bukkit objects.
+ * Every handler is measured with both a flag and a non-flag input. The journal is closed before
+ * the runs and queued cosmetic effects are discarded after each call, so flag runs measure the
+ * handlers rather than disk writes or a full effect queue, and compare with non-flag runs. The
+ * stand-ins are Mockito stubs, so absolute numbers include stub dispatch; compare results between
+ * runs rather than against real server timings.
+ *
+ * @author War Pigeon
+ */
+@State(Scope.Thread)
+public class FlagTrackerBenchmark {
+    /**
+     * Whether the event being handled involves a flag.
+     */
+    @Param({"true", "false"})
+    public boolean flag;
+    
+    /**
+     * The tracker being measured.
+     */
+    private FlagTracker flagTracker;
+    
+    /**
+     * The registry of the tracker being measured.
+     */
+    private FlagRegistry registry;
+    
+    /**
+     * UUID of the entity involved in every event.
+     */
+    private UUID entityId;
+    
+    /**
+     * Event for a hopper picking up an item.
+     */
+    private InventoryPickupItemEvent inventoryPickupItemEvent;
+    
+    /**
+     * Event for an item despawning.
+     */
+    private ItemDespawnEvent itemDespawnEvent;
+    
+    /**
+     * Event for an entity dying.
+     */
+    private EntityDeathEvent entityDeathEvent;
+    
+    /**
+     * Event for an item spawning.
+     */
+    private ItemSpawnEvent itemSpawnEvent;
+    
+    /**
+     * Event for a player quitting.
+     */
+    private PlayerQuitEvent playerQuitEvent;
+    
+    /**
+     * Creates a stub that only answers the calls set up for it.
+     *
+     * @param type The type to stub.
+     * @param <T>  The type to stub.
+     * @return The stub.
+     */
+    private static <T> T stub(Class<T> type) {
+        return Mockito.mock(type, Mockito.withSettings().stubOnly());
+    }
+    
+    /**
+     * Installs a stand-in server, since the tracker looks up worlds through {@link Bukkit}.
+     */
+    private static void setupServer() {
+        if (Bukkit.getServer() != null) {
+            return;
+        }
+        Logger logger = Logger.getLogger("CTFBuddyBenchmark");
+        logger.setLevel(Level.OFF);
+        Server server = stub(Server.class);
+        when(server.getLogger()).thenReturn(logger);
+        when(server.getWorlds()).thenReturn(List.of());
+        when(server.getGlobalRegionScheduler()).thenReturn(stub(GlobalRegionScheduler.class));
+        when(server.getAsyncScheduler()).thenReturn(stub(AsyncScheduler.class));
+        when(server.getPluginManager()).thenReturn(stub(PluginManager.class));
+        Bukkit.setServer(server);
+    }
+    
+    /**
+     * Creates an item stack that reads as a flag or not, depending on {@link #flag}.
+     *
+     * @return The item stack.
+     */
+    private ItemStack createItemStack() {
+        ItemStack itemStack = stub(ItemStack.class);
+        when(itemStack.hasItemMeta()).thenReturn(flag);
+        if (flag) {
+            PersistentDataContainer container = stub(PersistentDataContainer.class);
+            when(container.getOrDefault(any(), eq(PersistentDataType.BOOLEAN), eq(false)))
+                    .thenReturn(true);
+            when(container.get(any(), eq(PersistentDataType.STRING)))
+                    .thenReturn(UUID.randomUUID().toString());
+            ItemMeta meta = stub(ItemMeta.class);
+            when(meta.getPersistentDataContainer()).thenReturn(container);
+            when(itemStack.getItemMeta()).thenReturn(meta);
+        }
+        return itemStack;
+    }
+    
+    /**
+     * Creates a scratch plugin folder, since the tracker writes its journal and checkpoint there.
+     *
+     * @return The plugin folder.
+     */
+    private static File createDataFolder() {
+        try {
+            File dataFolder = Files.createTempDirectory("ctfbuddy-benchmark").toFile();
+            dataFolder.deleteOnExit();
+            return dataFolder;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Sets up the tracker and the events it will handle.
+     */
+    @Setup
+    public void setup() {
+        setupServer();
+        Logger logger = Logger.getLogger("CTFBuddy");
+        logger.setLevel(Level.OFF);
+        YamlConfiguration config = new YamlConfiguration();
+        config.set("allowEnd", false);
+        config.set("quitMode", "DROP");
+        config.set("useParticleBeacon", false);
+        config.set("journalToConsole", false);
+        JavaPlugin plugin = stub(JavaPlugin.class);
+        when(plugin.getName()).thenReturn("CTFBuddy");
+        when(plugin.getDataFolder()).thenReturn(createDataFolder());
+        when(plugin.getLogger()).thenReturn(logger);
+        when(plugin.getConfig()).thenReturn(config);
+        when(plugin.isEnabled()).thenReturn(true);
+        flagTracker = new FlagTracker(plugin);
+        // A closed journal drops records right away, so no run writes to disk
+        flagTracker.getJournal().close();
+        registry = flagTracker.getRegistry();
+        entityId = UUID.randomUUID();
+        World world = stub(World.class);
+        when(world.getName()).thenReturn("world");
+        Answer<Location> locationAnswer = invocation -> {
+            Location location = invocation.getArgument(0);
+            location.setWorld(world);
+            return location;
+        };
+        Location location = new Location(world, 0, 64, 0);
+        ItemStack itemStack = createItemStack();
+        Chunk chunk = stub(Chunk.class);
+        when(chunk.getPersistentDataContainer()).thenReturn(stub(PersistentDataContainer.class));
+        
+        Item item = stub(Item.class);
+        when(item.getUniqueId()).thenReturn(entityId);
+        when(item.getItemStack()).thenReturn(itemStack);
+        when(item.getWorld()).thenReturn(world);
+        when(item.getLocation(any())).thenAnswer(locationAnswer);
+        when(item.getLocation()).thenReturn(location);
+        when(item.getPersistentDataContainer()).thenReturn(stub(PersistentDataContainer.class));
+        when(item.getChunk()).thenReturn(chunk);
+        if (flag) {
+            registry.registerFlagItem(entityId, UUID.randomUUID());
+        }
+        inventoryPickupItemEvent = stub(InventoryPickupItemEvent.class);
+        when(inventoryPickupItemEvent.getItem()).thenReturn(item);
+        itemDespawnEvent = stub(ItemDespawnEvent.class);
+        when(itemDespawnEvent.getEntity()).thenReturn(item);
+        itemSpawnEvent = stub(ItemSpawnEvent.class);
+        when(itemSpawnEvent.getEntity()).thenReturn(item);
+        
+        PersistentDataContainer entityContainer = stub(PersistentDataContainer.class);
+        LivingEntity livingEntity = stub(LivingEntity.class);
+        when(livingEntity.getUniqueId()).thenReturn(entityId);
+        when(livingEntity.getPersistentDataContainer()).thenReturn(entityContainer);
+        when(livingEntity.getWorld()).thenReturn(world);
+        when(livingEntity.getLocation(any())).thenAnswer(locationAnswer);
+        entityDeathEvent = stub(EntityDeathEvent.class);
+        when(entityDeathEvent.getEntity()).thenReturn(livingEntity);
+        when(entityDeathEvent.getDrops()).thenReturn(List.of(createItemStack()));
+        
+        PlayerInventory inventory = stub(PlayerInventory.class);
+        ItemStack helmet = createItemStack();
+        when(inventory.getHelmet()).thenReturn(helmet);
+        Player player = stub(Player.class);
+        when(player.getUniqueId()).thenReturn(entityId);
+        when(player.getPersistentDataContainer()).thenReturn(entityContainer);
+        when(player.getInventory()).thenReturn(inventory);
+        when(player.getWorld()).thenReturn(world);
+        when(player.getLocation(any())).thenAnswer(locationAnswer);
+        playerQuitEvent = stub(PlayerQuitEvent.class);
+        when(playerQuitEvent.getPlayer()).thenReturn(player);
+    }
+    
+    /**
+     * Discards the cosmetic effects queued by the last call. The stand-in scheduler never runs the
+     * queue, so without this it would fill up and later calls would measure the drop path.
+     */
+    @TearDown(org.openjdk.jmh.annotations.Level.Invocation)
+    public void discardCosmetics() {
+        flagTracker.getCosmetics().stop();
+    }
+    
+    /**
+     * Stops the tracker's background work.
+     */
+    @TearDown
+    public void tearDown() {
+        flagTracker.shutdown();
+    }
+    
+    /**
+     * Measures a hopper trying to pick up an item.
+     */
+    @Benchmark
+    public void onInventoryPickupItem() {
+        flagTracker.onInventoryPickupItem(inventoryPickupItemEvent);
+    }
+    
+    /**
+     * Measures an item trying to despawn.
+     */
+    @Benchmark
+    public void stopDespawn() {
+        flagTracker.stopDespawn(itemDespawnEvent);
+    }
+    
+    /**
+     * Measures an entity dying. Flag runs die as a carrier, since death removes them from the
+     * carrier index.
+     *
+     * @param carrier Puts the entity back in the carrier index before each call.
+     */
+    @Benchmark
+    public void onEntityDeath(Carrier carrier) {
+        flagTracker.onEntityDeath(entityDeathEvent);
+    }
+    
+    /**
+     * Measures an item spawning.
+     */
+    @Benchmark
+    public void onEntitySpawn() {
+        flagTracker.onEntitySpawn(itemSpawnEvent);
+    }
+    
+    /**
+     * Measures a player quitting. Flag runs quit as a carrier, since quitting removes them from
+     * the carrier index.
+     *
+     * @param carrier Puts the player back in the carrier index before each call.
+     */
+    @Benchmark
+    public void onPlayerQuit(Carrier carrier) {
+        flagTracker.onPlayerQuit(playerQuitEvent);
+    }
+    
+    /**
+     * Puts the entity of the flag runs back in the carrier index before each call, outside the
+     * measured time, since handling the event removes it.
+     */
+    @State(Scope.Thread)
+    public static class Carrier {
+        /**
+         * Registers the entity as a carrier for flag runs.
+         *
+         * @param benchmark The benchmark being run.
+         */
+        @Setup(org.openjdk.jmh.annotations.Level.Invocation)
+        public void register(FlagTrackerBenchmark benchmark) {
+            if (benchmark.flag) {
+                benchmark.registry.registerCarrier(benchmark.entityId);
+            }
+        }
+    }
+}
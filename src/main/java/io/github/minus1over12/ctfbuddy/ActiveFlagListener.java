@@ -0,0 +1,149 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.entity.EntityPickupItemEvent;
+import org.bukkit.event.entity.EntityPortalEvent;
+import org.bukkit.event.entity.EntityRemoveEvent;
+import org.bukkit.event.entity.EntityTargetLivingEntityEvent;
+import org.bukkit.event.entity.EntityTransformEvent;
+import org.bukkit.event.entity.ItemDespawnEvent;
+import org.bukkit.event.inventory.InventoryPickupItemEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerPortalEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The handlers that only matter while a flag exists. The {@link FlagTracker} registers this
+ * listener when the first flag is created or loaded, and unregisters it once the last flag is
+ * gone, so hopper, despawn, death and targeting events cost nothing when no game is running.
+ *
+ * @author War Pigeon
+ */
+final class ActiveFlagListener implements Listener {
+    /**
+     * The tracker that handles the events.
+     */
+    private final @NotNull FlagTracker flagTracker;
+    
+    /**
+     * Create a new ActiveFlagListener.
+     *
+     * @param flagTracker The tracker that handles the events.
+     */
+    ActiveFlagListener(@NotNull FlagTracker flagTracker) {
+        this.flagTracker = flagTracker;
+    }
+    
+    /**
+     * Forwards hoppers picking up items.
+     *
+     * @param event The event that triggered this method.
+     */
+    @EventHandler
+    public void onInventoryPickupItem(@NotNull InventoryPickupItemEvent event) {
+        flagTracker.onInventoryPickupItem(event);
+    }
+    
+    /**
+     * Forwards items despawning.
+     *
+     * @param event The event that triggered this method.
+     */
+    @EventHandler
+    public void onItemDespawn(@NotNull ItemDespawnEvent event) {
+        flagTracker.stopDespawn(event);
+    }
+    
+    /**
+     * Forwards entities picking up items.
+     *
+     * @param event The event that triggered this method.
+     */
+    @EventHandler
+    public void onEntityPickupItem(@NotNull EntityPickupItemEvent event) {
+        flagTracker.onEntityPickupItem(event);
+    }
+    
+    /**
+     * Forwards entities dying.
+     *
+     * @param event The event that triggered this method.
+     */
+    @EventHandler
+    public void onEntityDeath(@NotNull EntityDeathEvent event) {
+        flagTracker.onEntityDeath(event);
+    }
+    
+    /**
+     * Forwards entities going through portals.
+     *
+     * @param event The event that triggered this method.
+     */
+    @EventHandler
+    public void onEntityPortal(@NotNull EntityPortalEvent event) {
+        flagTracker.onEntityPortal(event);
+    }
+    
+    /**
+     * Forwards players going through portals.
+     *
+     * @param event The event that triggered this method.
+     */
+    @EventHandler
+    public void onPlayerPortal(@NotNull PlayerPortalEvent event) {
+        flagTracker.onPlayerPortal(event);
+    }
+    
+    /**
+     * Forwards players quitting.
+     *
+     * @param event The event that triggered this method.
+     */
+    @EventHandler
+    public void onPlayerQuit(@NotNull PlayerQuitEvent event) {
+        flagTracker.onPlayerQuit(event);
+    }
+    
+    /**
+     * Forwards players moving.
+     *
+     * @param event The event that triggered this method.
+     */
+    @EventHandler
+    public void onPlayerMove(@NotNull PlayerMoveEvent event) {
+        flagTracker.onPlayerMove(event);
+    }
+    
+    /**
+     * Forwards entities picking targets.
+     *
+     * @param event The event that triggered this method.
+     */
+    @EventHandler
+    public void onEntityTarget(@NotNull EntityTargetLivingEntityEvent event) {
+        flagTracker.onEntityTarget(event);
+    }
+    
+    /**
+     * Forwards entities transforming.
+     *
+     * @param event The event that triggered this method.
+     */
+    @EventHandler
+    public void onEntityTransform(@NotNull EntityTransformEvent event) {
+        flagTracker.onEntityTransform(event);
+    }
+    
+    /**
+     * Forwards entities being removed from the world.
+     *
+     * @param event The event that triggered this method.
+     */
+    @EventHandler
+    public void onEntityRemove(@NotNull EntityRemoveEvent event) {
+        flagTracker.onEntityRemove(event);
+    }
+}
@@ -0,0 +1,49 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.bukkit.util.BoundingBox;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A place a game is played in, with its own flag settings.
+ *
+ * @param name           The name of the arena, used in commands and to keep its state across
+ *                       reloads.
+ * @param world          The name of the world the arena is in, or null if the arena covers every
+ *                       world.
+ * @param region         The part of the world the arena covers, or null if it covers the whole
+ *                       world. Never modified once the arena is built.
+ * @param allowEnd       Indicates if flags are allowed to travel to the end.
+ * @param quitMode       The action to use when a player quits with the flag.
+ * @param particleBeacon Toggles use of firework "beacons" for flags in the arena.
+ * @param maxFlags       The most flags /makeflag can create in the arena, or 0 for no limit.
+ * @param returnPoint    Where flags caught in a hazard are returned to, or null if they are left
+ *                       where they are.
+ * @author War Pigeon
+ */
+record Arena(@NotNull String name, @Nullable String world, @Nullable BoundingBox region,
+             boolean allowEnd, @NotNull TrackerSettings.QuitMode quitMode, boolean particleBeacon,
+             int maxFlags, @Nullable ReturnPoint returnPoint) {
+    /**
+     * Check if a point is inside the arena's region. The world is not checked.
+     *
+     * @param x The x coordinate of the point.
+     * @param y The y coordinate of the point.
+     * @param z The z coordinate of the point.
+     * @return True if the arena has no region or the point is inside it, false otherwise.
+     */
+    boolean contains(double x, double y, double z) {
+        return region == null || region.contains(x, y, z);
+    }
+    
+    /**
+     * A place flags are returned to.
+     *
+     * @param world The name of the world.
+     * @param x     The x coordinate.
+     * @param y     The y coordinate.
+     * @param z     The z coordinate.
+     */
+    record ReturnPoint(@NotNull String world, double x, double y, double z) {
+    }
+}
@@ -0,0 +1,291 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Entity;
+import org.bukkit.util.BoundingBox;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Dispatch table from world name to the arenas in that world. Events from a world with no arena
+ * are turned away after a single hash lookup, before any flag logic runs. If no arenas are
+ * configured, a single arena named {@value #DEFAULT_ARENA} covers every world, so servers that do
+ * not use arenas behave as before. The index is immutable once built, so it can be read from any
+ * thread.
+ *
+ * @author War Pigeon
+ */
+final class ArenaIndex {
+    /**
+     * Name of the arena covering every world when no arenas are configured.
+     */
+    static final String DEFAULT_ARENA = "default";
+    
+    /**
+     * Every arena, in config order.
+     */
+    private final @NotNull List<Arena> arenas;
+    /**
+     * Arenas by world name. Arenas with a region come before the arena covering the whole world.
+     */
+    private final @NotNull Map<String, Arena[]> arenasByWorld;
+    /**
+     * The arena covering every world, or null if arenas are configured.
+     */
+    private final @Nullable Arena everywhere;
+    
+    /**
+     * Create a new ArenaIndex.
+     *
+     * @param arenas   The arenas to index, in config order.
+     * @param fallback The arena to use in every world if there are no arenas.
+     */
+    ArenaIndex(@NotNull List<Arena> arenas, @NotNull Arena fallback) {
+        if (arenas.isEmpty()) {
+            this.arenas = List.of(fallback);
+            arenasByWorld = Map.of();
+            everywhere = fallback;
+            return;
+        }
+        this.arenas = List.copyOf(arenas);
+        Map<String, Arena[]> index = new HashMap<>();
+        for (Arena arena : arenas) {
+            index.merge(arena.world(), new Arena[]{arena}, (existing, added) -> {
+                Arena[] merged = Arrays.copyOf(existing, existing.length + 1);
+                merged[existing.length] = added[0];
+                return merged;
+            });
+        }
+        // Stable sort, so regions keep their config order ahead of any whole-world arena
+        index.values().forEach(inWorld -> Arrays.sort(inWorld,
+                Comparator.comparing((Arena arena) -> arena.region() == null)));
+        arenasByWorld = index;
+        everywhere = null;
+    }
+    
+    /**
+     * Reads the arenas from the plugin config. Arenas that cannot be read are skipped with a
+     * warning. Settings an arena leaves out are taken from the top level of the config.
+     *
+     * @param config   The plugin config.
+     * @param defaults The settings to use where an arena does not set its own, and the arena to
+     *                 use everywhere if there are no arenas.
+     * @param logger   Logger to report unreadable arenas to.
+     * @return The index of the arenas.
+     */
+    static @NotNull ArenaIndex fromConfig(@NotNull ConfigurationSection config,
+                                          @NotNull Arena defaults, @NotNull Logger logger) {
+        List<Arena> arenas = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (Map<?, ?> entry : config.getMapList("arenas")) {
+            try {
+                String name = CaptureZoneIndex.requireString(entry, "name");
+                if (!names.add(name)) {
+                    throw new IllegalArgumentException("name " + name + " is used twice");
+                }
+                String world = CaptureZoneIndex.requireString(entry, "world");
+                BoundingBox region = null;
+                if (entry.containsKey("min") || entry.containsKey("max")) {
+                    double[] min = CaptureZoneIndex.requirePoint(entry, "min");
+                    double[] max = CaptureZoneIndex.requirePoint(entry, "max");
+                    // Treat max as a block position, so the whole block is inside the arena
+                    region = new BoundingBox(min[0], min[1], min[2], max[0] + 1, max[1] + 1,
+                            max[2] + 1);
+                }
+                TrackerSettings.QuitMode quitMode = entry.containsKey("quitMode") ?
+                        TrackerSettings.QuitMode.valueOf(String.valueOf(entry.get("quitMode"))
+                                .trim().toUpperCase(Locale.ROOT)) : defaults.quitMode();
+                int maxFlags = entry.get("maxFlags") instanceof Number number ?
+                        Math.max(0, number.intValue()) : defaults.maxFlags();
+                Arena.ReturnPoint returnPoint = null;
+                if (entry.containsKey("returnPoint")) {
+                    double[] point = CaptureZoneIndex.requirePoint(entry, "returnPoint");
+                    returnPoint = new Arena.ReturnPoint(world, point[0], point[1], point[2]);
+                }
+                arenas.add(new Arena(name, world, region,
+                        readBoolean(entry, "allowEnd", defaults.allowEnd()), quitMode,
+                        readBoolean(entry, "useParticleBeacon", defaults.particleBeacon()),
+                        maxFlags, returnPoint));
+            } catch (IllegalArgumentException e) {
+                logger.warning("Skipping arena " + entry + ": " + e.getMessage());
+            }
+        }
+        return new ArenaIndex(arenas, defaults);
+    }
+    
+    /**
+     * Reads an optional boolean from a config entry.
+     *
+     * @param entry        The config entry.
+     * @param key          The key to read.
+     * @param defaultValue The value to use if the key is missing.
+     * @return The boolean.
+     * @throws IllegalArgumentException If the value is not a boolean.
+     */
+    private static boolean readBoolean(@NotNull Map<?, ?> entry, @NotNull String key,
+                                       boolean defaultValue) {
+        Object value = entry.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (!(value instanceof Boolean bool)) {
+            throw new IllegalArgumentException(key + " must be true or false");
+        }
+        return bool;
+    }
+    
+    /**
+     * Check if a world has an arena. This is the fast path every handler takes first.
+     *
+     * @param world The world.
+     * @return True if an arena is in the world, false otherwise.
+     */
+    boolean covers(@NotNull World world) {
+        return everywhere != null || arenasByWorld.containsKey(world.getName());
+    }
+    
+    /**
+     * Finds the arena an entity is in. The entity's location is only read in worlds where an
+     * arena has a region.
+     *
+     * @param entity The entity.
+     * @return The arena, or null if the entity is not in any arena.
+     */
+    @Nullable Arena find(@NotNull Entity entity) {
+        if (everywhere != null) {
+            return everywhere;
+        }
+        Arena[] inWorld = arenasByWorld.get(entity.getWorld().getName());
+        if (inWorld == null) {
+            return null;
+        }
+        if (inWorld[0].region() == null) {
+            return inWorld[0];
+        }
+        Location location = entity.getLocation();
+        return pick(inWorld, location.getX(), location.getY(), location.getZ());
+    }
+    
+    /**
+     * Finds the arena a location is in.
+     *
+     * @param location The location.
+     * @return The arena, or null if the location is not in any arena.
+     */
+    @Nullable Arena find(@NotNull Location location) {
+        return find(location.getWorld().getName(), location.getX(), location.getY(),
+                location.getZ());
+    }
+    
+    /**
+     * Finds the arena a position is in.
+     *
+     * @param world The name of the world.
+     * @param x     The x coordinate.
+     * @param y     The y coordinate.
+     * @param z     The z coordinate.
+     * @return The arena, or null if the position is not in any arena.
+     */
+    @Nullable Arena find(@NotNull String world, double x, double y, double z) {
+        if (everywhere != null) {
+            return everywhere;
+        }
+        Arena[] inWorld = arenasByWorld.get(world);
+        return inWorld == null ? null : pick(inWorld, x, y, z);
+    }
+    
+    /**
+     * Finds the arena an entity is in, or if it has strayed outside every region, the first arena
+     * listed for its world. For rules that must still hold for a stray flag, such as keeping it
+     * out of the end.
+     *
+     * @param entity The entity.
+     * @return The arena, or null if the entity's world has no arena.
+     */
+    @Nullable Arena findHome(@NotNull Entity entity) {
+        Arena arena = find(entity);
+        return arena == null ? firstIn(entity.getWorld().getName()) : arena;
+    }
+    
+    /**
+     * Finds the arena a position is in, or if it is outside every region, the first arena listed
+     * for its world. For rules that must still hold for a stray flag, such as returning it.
+     *
+     * @param world The name of the world.
+     * @param x     The x coordinate.
+     * @param y     The y coordinate.
+     * @param z     The z coordinate.
+     * @return The arena, or null if the world has no arena.
+     */
+    @Nullable Arena findHome(@NotNull String world, double x, double y, double z) {
+        Arena arena = find(world, x, y, z);
+        return arena == null ? firstIn(world) : arena;
+    }
+    
+    /**
+     * Gets the first arena listed for a world.
+     *
+     * @param world The name of the world.
+     * @return The arena, or null if the world has no arena.
+     */
+    private @Nullable Arena firstIn(@NotNull String world) {
+        Arena[] inWorld = arenasByWorld.get(world);
+        return inWorld == null ? null : inWorld[0];
+    }
+    
+    /**
+     * Picks the arena a point is in from the arenas of its world. A point outside every region
+     * belongs to the arena covering the whole world, if there is one.
+     *
+     * @param inWorld The arenas in the point's world.
+     * @param x       The x coordinate of the point.
+     * @param y       The y coordinate of the point.
+     * @param z       The z coordinate of the point.
+     * @return The arena, or null if the point is not in any arena.
+     */
+    private static @Nullable Arena pick(@NotNull Arena @NotNull [] inWorld, double x, double y,
+                                        double z) {
+        for (Arena arena : inWorld) {
+            if (arena.contains(x, y, z)) {
+                return arena;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Gets every arena.
+     *
+     * @return The arenas, in config order.
+     */
+    @NotNull List<Arena> getArenas() {
+        return arenas;
+    }
+    
+    /**
+     * Check if any arena uses particle beacons.
+     *
+     * @return True if beacons should be fired, false otherwise.
+     */
+    boolean anyBeacons() {
+        for (Arena arena : arenas) {
+            if (arena.particleBeacon()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
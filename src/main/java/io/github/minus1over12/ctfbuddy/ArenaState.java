@@ -0,0 +1,110 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The game state of a single arena: the scores of its teams and the flags made in it. Each arena
+ * has its own state, so resetting one arena between rounds leaves the others alone.
+ *
+ * @author War Pigeon
+ */
+final class ArenaState {
+    /**
+     * Capture scores of the arena.
+     */
+    private volatile @NotNull TeamScores scores;
+    /**
+     * Ids of the flags made in the arena: the flag id of item flags, or the entity UUID of entity
+     * flags.
+     */
+    private final Set<UUID> flags = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * Create a new ArenaState with every team at zero and no flags.
+     *
+     * @param teamNames The names of the teams, indexed by team.
+     */
+    ArenaState(@NotNull List<String> teamNames) {
+        scores = new TeamScores(teamNames);
+    }
+    
+    /**
+     * Gets the capture scores of the arena.
+     *
+     * @return The scores.
+     */
+    @NotNull TeamScores getScores() {
+        return scores;
+    }
+    
+    /**
+     * Switches the scores to a new list of teams, keeping the score of every team that is in
+     * both.
+     *
+     * @param teamNames The names of the new teams, indexed by team.
+     */
+    void setTeams(@NotNull List<String> teamNames) {
+        if (!teamNames.equals(scores.getTeamNames())) {
+            scores = scores.carryOver(teamNames);
+        }
+    }
+    
+    /**
+     * Counts a new flag against the arena's limit.
+     *
+     * @param flag     The id of the flag.
+     * @param maxFlags The most flags allowed, or 0 for no limit.
+     * @return True if the flag was counted or was already counted, false if the arena is full.
+     */
+    synchronized boolean addFlag(@NotNull UUID flag, int maxFlags) {
+        if (flags.contains(flag)) {
+            return true;
+        }
+        if (maxFlags > 0 && flags.size() >= maxFlags) {
+            return false;
+        }
+        return flags.add(flag);
+    }
+    
+    /**
+     * Stops counting a flag, such as when a flag entity dies.
+     *
+     * @param flag The id of the flag.
+     * @return True if the flag was counted, false otherwise.
+     */
+    boolean removeFlag(@NotNull UUID flag) {
+        return flags.remove(flag);
+    }
+    
+    /**
+     * Check if a flag is counted against the arena's limit.
+     *
+     * @param flag The id of the flag.
+     * @return True if the flag is counted, false otherwise.
+     */
+    boolean hasFlag(@NotNull UUID flag) {
+        return flags.contains(flag);
+    }
+    
+    /**
+     * Gets the number of flags counted against the arena's limit.
+     *
+     * @return The number of flags.
+     */
+    int getFlagCount() {
+        return flags.size();
+    }
+    
+    /**
+     * Sets every score back to zero and stops counting the arena's flags, ready for a new round.
+     */
+    void reset() {
+        scores.reset();
+        flags.clear();
+    }
+}
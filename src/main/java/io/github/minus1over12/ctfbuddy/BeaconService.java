@@ -0,0 +1,229 @@
+package io.github.minus1over12.ctfbuddy;
+
+import com.destroystokyo.paper.ParticleBuilder;
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import io.papermc.paper.util.Tick;
+import net.kyori.adventure.key.Key;
+import net.kyori.adventure.sound.Sound;
+import org.bukkit.Bukkit;
+import org.bukkit.GameMode;
+import org.bukkit.Location;
+import org.bukkit.Particle;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Fires the firework "beacons" for every active flag on one shared cadence. A single global task
+ * drives the cadence, and each beacon is fired through the flag's own entity scheduler so it runs
+ * on the thread that owns the flag's region.
+ *
+ * @author War Pigeon
+ */
+final class BeaconService {
+    /**
+     * Sound played when a beacon fires.
+     */
+    private static final Sound BEACON_SOUND =
+            Sound.sound(Key.key("entity.firework_rocket.launch"), Sound.Source.AMBIENT, 512, 1);
+    
+    /**
+     * Reference to the plugin class. Needed for scheduling tasks.
+     */
+    private final @NotNull Plugin plugin;
+    
+    /**
+     * Registry used to check that an entity is still a flag before firing its beacon.
+     */
+    private final @NotNull FlagRegistry registry;
+    
+    /**
+     * Counts and times the beacon tasks.
+     */
+    private final @NotNull HandlerStats stats;
+    
+    /**
+     * The entities that currently have a beacon, keyed by UUID.
+     */
+    private final Map<UUID, Entity> beacons = new ConcurrentHashMap<>();
+    
+    /**
+     * Decides if a flag fires its beacon, such as by whether its arena uses beacons. Called on
+     * the thread that owns the flag.
+     */
+    private final @NotNull Predicate<Entity> enabled;
+    
+    /**
+     * Settings for how often beacons fire and who sees them.
+     */
+    private volatile @NotNull BeaconSettings settings;
+    
+    /**
+     * The task driving the shared cadence, or null if the service is not running.
+     */
+    private @Nullable ScheduledTask task;
+    
+    /**
+     * Create a new BeaconService.
+     *
+     * @param plugin   The plugin to schedule tasks for.
+     * @param registry The registry used to check if an entity is still a flag.
+     * @param stats    The statistics to record beacon tasks in.
+     * @param settings Settings for how often beacons fire and who sees them.
+     * @param enabled  Decides if a flag fires its beacon. Called on the thread that owns the
+     *                 flag.
+     */
+    BeaconService(@NotNull Plugin plugin, @NotNull FlagRegistry registry,
+                  @NotNull HandlerStats stats, @NotNull BeaconSettings settings,
+                  @NotNull Predicate<Entity> enabled) {
+        this.plugin = plugin;
+        this.registry = registry;
+        this.stats = stats;
+        this.settings = settings;
+        this.enabled = enabled;
+    }
+    
+    /**
+     * Starts firing beacons.
+     */
+    synchronized void start() {
+        if (task == null) {
+            int intervalTicks = Math.max(1, Tick.tick().fromDuration(settings.interval()));
+            task = Bukkit.getGlobalRegionScheduler()
+                    .runAtFixedRate(plugin, scheduledTask -> fireAll(), intervalTicks,
+                            intervalTicks);
+        }
+    }
+    
+    /**
+     * Replaces the beacon settings. If beacons are firing and the interval changed, the cadence
+     * is restarted with the new interval.
+     *
+     * @param settings The new settings.
+     */
+    synchronized void setSettings(@NotNull BeaconSettings settings) {
+        boolean restart = task != null && !settings.interval().equals(this.settings.interval());
+        this.settings = settings;
+        if (restart) {
+            stop();
+            start();
+        }
+    }
+    
+    /**
+     * Stops firing beacons. Beacons that were added stay registered.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+    
+    /**
+     * Adds a beacon to an entity, replacing any stale reference to the same entity.
+     *
+     * @param entity The entity to add the beacon to.
+     */
+    void add(@NotNull Entity entity) {
+        beacons.put(entity.getUniqueId(), entity);
+    }
+    
+    /**
+     * Removes the beacon from an entity.
+     *
+     * @param entityId The UUID of the entity.
+     */
+    void remove(@NotNull UUID entityId) {
+        beacons.remove(entityId);
+    }
+    
+    /**
+     * Check if an entity has a beacon.
+     *
+     * @param entityId The UUID of the entity.
+     * @return True if the entity has a beacon, false otherwise.
+     */
+    boolean contains(@NotNull UUID entityId) {
+        return beacons.containsKey(entityId);
+    }
+    
+    /**
+     * Gets the number of active beacons.
+     *
+     * @return The number of entities with a beacon.
+     */
+    int getActiveBeaconCount() {
+        return beacons.size();
+    }
+    
+    /**
+     * Hands every beacon to the scheduler of the region that owns it. Entities that are no longer
+     * valid are dropped instead of rescheduled.
+     */
+    private void fireAll() {
+        long start = System.nanoTime();
+        beacons.forEach((entityId, entity) -> {
+            ScheduledTask scheduled = entity.getScheduler()
+                    .run(plugin, scheduledTask -> fire(entityId, entity),
+                            () -> beacons.remove(entityId, entity));
+            if (scheduled == null) {
+                beacons.remove(entityId, entity);
+            }
+        });
+        stats.record(HandlerStats.Probe.BEACON_DISPATCH, start, !beacons.isEmpty());
+    }
+    
+    /**
+     * Fires a single beacon. Must run on the thread that owns the entity. Each viewer in the
+     * world gets their own particle budget based on horizontal distance, so far away players get a
+     * sparse column and players out of range get nothing.
+     *
+     * @param entityId The UUID of the entity.
+     * @param entity   The entity to fire the beacon from.
+     */
+    private void fire(@NotNull UUID entityId, @NotNull Entity entity) {
+        long start = System.nanoTime();
+        if (!registry.isTracked(entityId)) {
+            beacons.remove(entityId, entity);
+            stats.record(HandlerStats.Probe.BEACON_FIRE, start, false);
+            return;
+        }
+        if (!enabled.test(entity)) {
+            // Kept registered, so a reload that turns the arena's beacons on needs no rescan
+            stats.record(HandlerStats.Probe.BEACON_FIRE, start, false);
+            return;
+        }
+        BeaconSettings current = settings;
+        World world = entity.getWorld();
+        int worldHeight = world.getMaxHeight() - world.getMinHeight();
+        int fullCount = worldHeight * 2;
+        Location origin = entity.getLocation();
+        Location viewerLocation = new Location(world, 0, 0, 0);
+        // Forced, since clients drop unforced particles more than 32 blocks away
+        ParticleBuilder particles = Particle.FIREWORK.builder().location(origin)
+                .offset(0, worldHeight, 0).force(true);
+        world.playSound(BEACON_SOUND, entity);
+        for (Player viewer : world.getPlayers()) {
+            if (current.hideFromSpectators() && viewer.getGameMode() == GameMode.SPECTATOR) {
+                continue;
+            }
+            viewer.getLocation(viewerLocation);
+            double dx = viewerLocation.getX() - origin.getX();
+            double dz = viewerLocation.getZ() - origin.getZ();
+            int count = current.particleBudget(fullCount, dx * dx + dz * dz);
+            if (count > 0) {
+                particles.receivers(viewer).count(count).spawn();
+            }
+        }
+        stats.record(HandlerStats.Probe.BEACON_FIRE, start, true);
+    }
+}
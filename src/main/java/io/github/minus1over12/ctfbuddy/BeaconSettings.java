@@ -0,0 +1,56 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+
+/**
+ * Settings for the particle beacons.
+ *
+ * @param interval           Time between beacon firings.
+ * @param fullDetailRange    Horizontal distance within which viewers see the full particle column.
+ * @param maxRange           Horizontal distance beyond which viewers see no particles.
+ * @param hideFromSpectators Whether players in spectator mode are skipped.
+ * @author War Pigeon
+ */
+record BeaconSettings(@NotNull Duration interval, double fullDetailRange, double maxRange,
+                      boolean hideFromSpectators) {
+    /**
+     * The fewest particles a viewer within range will be sent, so distant columns stay visible.
+     */
+    private static final int MIN_SPARSE_PARTICLES = 32;
+    
+    /**
+     * Reads the beacon settings from the plugin config.
+     *
+     * @param config The plugin config.
+     * @return The beacon settings.
+     */
+    static @NotNull BeaconSettings fromConfig(@NotNull ConfigurationSection config) {
+        double maxRange = Math.max(0, config.getDouble("beaconMaxRange", 512));
+        return new BeaconSettings(
+                Duration.ofSeconds(Math.max(1, config.getInt("beaconIntervalSeconds", 60))),
+                Math.min(maxRange, Math.max(0, config.getDouble("beaconFullDetailRange", 128))),
+                maxRange, config.getBoolean("beaconHideFromSpectators", true));
+    }
+    
+    /**
+     * Works out how many particles to send a viewer. Viewers inside the full detail range get the
+     * full column, and the count falls off with distance until the max range.
+     *
+     * @param fullCount       The number of particles in a full column.
+     * @param distanceSquared The squared horizontal distance from the viewer to the beacon.
+     * @return The number of particles to send, or 0 if the viewer is out of range.
+     */
+    int particleBudget(int fullCount, double distanceSquared) {
+        if (distanceSquared <= fullDetailRange * fullDetailRange) {
+            return fullCount;
+        }
+        if (distanceSquared > maxRange * maxRange) {
+            return 0;
+        }
+        int count = (int) (fullCount * fullDetailRange / Math.sqrt(distanceSquared));
+        return Math.max(count, Math.min(fullCount, MIN_SPARSE_PARTICLES));
+    }
+}
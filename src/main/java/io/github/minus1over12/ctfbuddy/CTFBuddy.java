@@ -4,19 +4,35 @@ import net.kyori.adventure.audience.Audience;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.format.NamedTextColor;
 import org.bstats.bukkit.Metrics;
+import org.bstats.charts.SimplePie;
+import org.bstats.charts.SingleLineChart;
+import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.Configuration;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Animals;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.HumanEntity;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Monster;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.stream.Stream;
 
 /**
  * Main class for the plugin.
@@ -55,6 +71,62 @@ public final class CTFBuddy extends JavaPlugin {
      * String used to indicate making an item flag.
      */
     private static final String ITEM = "item";
+    /**
+     * String used to indicate loading the flags of a match file.
+     */
+    private static final String LOAD = "load";
+    /**
+     * String used to indicate the stats subcommand.
+     */
+    private static final String STATS = "stats";
+    /**
+     * String used to indicate the scores subcommand.
+     */
+    private static final String SCORES = "scores";
+    /**
+     * String used to indicate the locator subcommand.
+     */
+    private static final String LOCATOR = "locator";
+    /**
+     * String used to indicate the trails subcommand.
+     */
+    private static final String TRAILS = "trails";
+    /**
+     * String used to indicate the export subcommand.
+     */
+    private static final String EXPORT = "export";
+    /**
+     * String used to indicate the reload subcommand.
+     */
+    private static final String RELOAD = "reload";
+    /**
+     * String used to indicate the arena subcommand.
+     */
+    private static final String ARENA = "arena";
+    /**
+     * String used to indicate resetting the stats.
+     */
+    private static final String RESET = "reset";
+    /**
+     * String used to indicate writing the stats to a file.
+     */
+    private static final String DUMP = "dump";
+    /**
+     * Permission needed to reset or dump the stats.
+     */
+    private static final String STATS_PERMISSION = "ctfbuddy.stats";
+    /**
+     * Permission needed to export the flag trails.
+     */
+    private static final String TRAILS_PERMISSION = "ctfbuddy.trails";
+    /**
+     * Permission needed to reload the config.
+     */
+    private static final String RELOAD_PERMISSION = "ctfbuddy.reload";
+    /**
+     * Permission needed to reset an arena.
+     */
+    private static final String ARENA_PERMISSION = "ctfbuddy.arena";
     /**
      * Object that listens for changes to the flag state.
      */
@@ -77,6 +149,9 @@ public final class CTFBuddy extends JavaPlugin {
     @Override
     public void onDisable() {
         // Plugin shutdown logic
+        if (flagTracker != null) {
+            flagTracker.shutdown();
+        }
     }
     
     @Override
@@ -97,11 +172,15 @@ public final class CTFBuddy extends JavaPlugin {
                         }
                         if (sender instanceof HumanEntity player) {
                             try {
-                                flagTracker.trackItem(player.getInventory().getItemInMainHand());
+                                flagTracker.trackItem(player.getInventory().getItemInMainHand(),
+                                        player.getLocation());
                                 sender.sendMessage(Component.text("Item in hand set as flag"));
                             } catch (IllegalArgumentException e) {
                                 sender.sendMessage(
                                         Component.text("Invalid item in hand", NamedTextColor.RED));
+                            } catch (IllegalStateException e) {
+                                sender.sendMessage(
+                                        Component.text(e.getMessage(), NamedTextColor.RED));
                             }
                         } else {
                             sender.sendMessage(
@@ -116,7 +195,13 @@ public final class CTFBuddy extends JavaPlugin {
                                 if (sender instanceof LivingEntity senderEntity) {
                                     Entity target = senderEntity.getTargetEntity(10);
                                     if (target != null) {
-                                        flagTracker.trackEntity(target);
+                                        try {
+                                            flagTracker.trackEntity(target);
+                                        } catch (IllegalStateException e) {
+                                            sender.sendMessage(Component.text(e.getMessage(),
+                                                    NamedTextColor.RED));
+                                            return true;
+                                        }
                                         sender.sendMessage(Component.text("Entity setup as flag"));
                                         if (target instanceof Monster) {
                                             checkTrackingConfig(sender, "monsters");
@@ -137,18 +222,51 @@ public final class CTFBuddy extends JavaPlugin {
                             }
                             case 2 -> {
                                 try {
-                                    flagTracker.trackEntity(UUID.fromString(args[1]));
+                                    reportTrack(sender, flagTracker.trackEntity(
+                                            UUID.fromString(args[1])));
                                 } catch (IllegalArgumentException e) {
                                     sender.sendMessage(
                                             Component.text("Invalid UUID", NamedTextColor.RED));
                                 }
                                 return true;
                             }
+                            case 5 -> {
+                                UUID entityUUID;
+                                try {
+                                    entityUUID = UUID.fromString(args[1]);
+                                } catch (IllegalArgumentException e) {
+                                    sender.sendMessage(
+                                            Component.text("Invalid UUID", NamedTextColor.RED));
+                                    return true;
+                                }
+                                World world = getServer().getWorld(args[2]);
+                                if (world == null) {
+                                    sender.sendMessage(
+                                            Component.text("Unknown world", NamedTextColor.RED));
+                                    return true;
+                                }
+                                try {
+                                    reportTrack(sender, flagTracker.trackEntity(entityUUID, world,
+                                            Integer.parseInt(args[3]),
+                                            Integer.parseInt(args[4])));
+                                } catch (NumberFormatException e) {
+                                    sender.sendMessage(Component.text("Invalid chunk coordinates",
+                                            NamedTextColor.RED));
+                                }
+                                return true;
+                            }
                             default -> {
                                 return false;
                             }
                         }
                     }
+                    case LOAD -> {
+                        if (args.length != 2) {
+                            return false;
+                        }
+                        loadMatch(sender, args[1]);
+                        return true;
+                    }
                     default -> {
                         return false;
                     }
@@ -156,14 +274,330 @@ public final class CTFBuddy extends JavaPlugin {
                 
             }
             case CTFBUDDY -> {
-                sender.sendMessage(Component.text(this + " made by War Pigeon"));
-                return true;
+                if (args.length == 0) {
+                    sender.sendMessage(Component.text(this + " made by War Pigeon"));
+                    return true;
+                }
+                switch (args[0]) {
+                    case STATS -> {
+                        return statsCommand(sender, args);
+                    }
+                    case SCORES -> {
+                        if (args.length != 1) {
+                            return false;
+                        }
+                        showScores(sender);
+                        return true;
+                    }
+                    case LOCATOR -> {
+                        if (args.length != 1) {
+                            return false;
+                        }
+                        toggleLocator(sender);
+                        return true;
+                    }
+                    case TRAILS -> {
+                        if (args.length != 2 || !args[1].equals(EXPORT)) {
+                            return false;
+                        }
+                        exportTrails(sender);
+                        return true;
+                    }
+                    case RELOAD -> {
+                        if (args.length != 1) {
+                            return false;
+                        }
+                        reload(sender);
+                        return true;
+                    }
+                    case ARENA -> {
+                        return arenaCommand(sender, args);
+                    }
+                    default -> {
+                        return false;
+                    }
+                }
             }
             default -> throw new UnsupportedOperationException(
                     "Unexpected command: " + command.getName());
         }
     }
     
+    /**
+     * Runs the stats subcommand.
+     *
+     * @param sender The sender running the command.
+     * @param args   The command arguments, starting with the subcommand.
+     * @return False if the usage should be shown, true otherwise.
+     */
+    private boolean statsCommand(@NotNull CommandSender sender, @NotNull String @NotNull [] args) {
+        if (args.length > 2) {
+            return false;
+        }
+        if (args.length == 1) {
+            showStats(sender);
+            return true;
+        }
+        if (!sender.hasPermission(STATS_PERMISSION)) {
+            sender.sendMessage(Component.text("You do not have permission to use this command",
+                    NamedTextColor.RED));
+            return true;
+        }
+        switch (args[1]) {
+            case RESET -> {
+                flagTracker.getStats().reset();
+                sender.sendMessage(Component.text("Stats reset"));
+            }
+            case DUMP -> dumpStats(sender);
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Runs the arena subcommand, which lists the arenas or resets one for a new round.
+     *
+     * @param sender The sender running the command.
+     * @param args   The command arguments, starting with the subcommand.
+     * @return False if the usage should be shown, true otherwise.
+     */
+    private boolean arenaCommand(@NotNull CommandSender sender, @NotNull String @NotNull [] args) {
+        if (args.length == 1) {
+            for (Arena arena : flagTracker.getArenas()) {
+                ArenaState state = flagTracker.getArenaState(arena.name());
+                int flags = state == null ? 0 : state.getFlagCount();
+                sender.sendMessage(Component.text(arena.name() + " (" +
+                        (arena.world() == null ? "every world" : arena.world()) + "): " + flags +
+                        (arena.maxFlags() > 0 ? "/" + arena.maxFlags() : "") + " flags"));
+            }
+            return true;
+        }
+        if (args.length != 3 || !args[1].equals(RESET)) {
+            return false;
+        }
+        if (!sender.hasPermission(ARENA_PERMISSION)) {
+            sender.sendMessage(Component.text("You do not have permission to use this command",
+                    NamedTextColor.RED));
+            return true;
+        }
+        ArenaState state = flagTracker.getArenaState(args[2]);
+        if (state == null) {
+            sender.sendMessage(Component.text("Unknown arena", NamedTextColor.RED));
+        } else {
+            state.reset();
+            sender.sendMessage(Component.text("Arena " + args[2] + " reset"));
+        }
+        return true;
+    }
+    
+    /**
+     * Reads and checks the config off the main thread, then swaps the new settings into the flag
+     * tracker. If the config cannot be read, the current settings are kept.
+     *
+     * @param sender The sender reloading the config.
+     */
+    private void reload(@NotNull CommandSender sender) {
+        if (!sender.hasPermission(RELOAD_PERMISSION)) {
+            sender.sendMessage(Component.text("You do not have permission to use this command",
+                    NamedTextColor.RED));
+            return;
+        }
+        Path configFile = getDataFolder().toPath().resolve("config.yml");
+        Configuration defaults = getConfig().getDefaults();
+        getServer().getAsyncScheduler().runNow(this, task -> {
+            YamlConfiguration config = new YamlConfiguration();
+            try {
+                config.load(configFile.toFile());
+                if (defaults != null) {
+                    config.setDefaults(defaults);
+                }
+                flagTracker.applySettings(TrackerSettings.fromConfig(config, getLogger()));
+                sender.sendMessage(Component.text("Config reloaded"));
+            } catch (IOException | InvalidConfigurationException | IllegalArgumentException e) {
+                getLogger().log(Level.WARNING, "Could not reload config", e);
+                sender.sendMessage(Component.text("Could not reload config: " + e.getMessage(),
+                        NamedTextColor.RED));
+            }
+        });
+    }
+    
+    /**
+     * Writes the flag trails to a file in the background.
+     *
+     * @param sender The sender exporting the trails.
+     */
+    private void exportTrails(@NotNull CommandSender sender) {
+        if (!sender.hasPermission(TRAILS_PERMISSION)) {
+            sender.sendMessage(Component.text("You do not have permission to use this command",
+                    NamedTextColor.RED));
+            return;
+        }
+        flagTracker.getTrails().export().whenComplete((file, e) -> {
+            if (e == null) {
+                sender.sendMessage(Component.text("Trails written to " + file));
+            } else {
+                getLogger().log(Level.WARNING, "Could not write flag trails", e);
+                sender.sendMessage(Component.text("Could not write trails", NamedTextColor.RED));
+            }
+        });
+    }
+    
+    /**
+     * Turns the flag locator on or off for a sender.
+     *
+     * @param sender The sender toggling the locator.
+     */
+    private void toggleLocator(@NotNull CommandSender sender) {
+        FlagLocator locator = flagTracker.getLocator();
+        if (!(sender instanceof Player player)) {
+            sender.sendMessage(Component.text("You must be a player to use this command",
+                    NamedTextColor.RED));
+        } else if (!locator.isEnabled()) {
+            sender.sendMessage(Component.text("The flag locator is turned off on this server",
+                    NamedTextColor.RED));
+        } else if (locator.toggle(player)) {
+            sender.sendMessage(Component.text("Flag locator turned on"));
+        } else {
+            sender.sendMessage(Component.text("Flag locator turned off"));
+        }
+    }
+    
+    /**
+     * Shows the capture score of each team in each arena to a sender.
+     *
+     * @param sender The sender to show the scores to.
+     */
+    private void showScores(@NotNull CommandSender sender) {
+        if (flagTracker.getCaptureZones().isEmpty()) {
+            sender.sendMessage(Component.text("No capture zones are configured"));
+            return;
+        }
+        List<Arena> arenas = flagTracker.getArenas();
+        for (Arena arena : arenas) {
+            ArenaState state = flagTracker.getArenaState(arena.name());
+            if (state == null) {
+                continue;
+            }
+            if (arenas.size() > 1) {
+                sender.sendMessage(Component.text(arena.name() + ":"));
+            }
+            TeamScores scores = state.getScores();
+            List<String> teamNames = scores.getTeamNames();
+            for (int team = 0; team < teamNames.size(); team++) {
+                sender.sendMessage(Component.text(teamNames.get(team) + ": " + scores.get(team)));
+            }
+        }
+    }
+    
+    /**
+     * Shows the handler and beacon task statistics to a sender.
+     *
+     * @param sender The sender to show the statistics to.
+     */
+    private void showStats(@NotNull CommandSender sender) {
+        List<HandlerStats.Row> rows = flagTracker.getStats().snapshot();
+        if (rows.isEmpty()) {
+            sender.sendMessage(Component.text("No handlers have run yet"));
+            return;
+        }
+        for (HandlerStats.Row row : rows) {
+            sender.sendMessage(Component.text(row.format()));
+        }
+        sender.sendMessage(Component.text("Flag chunk tickets held: " +
+                flagTracker.getChunkTickets().getHeldCount()));
+        CosmeticExecutor cosmetics = flagTracker.getCosmetics();
+        sender.sendMessage(Component.text("Cosmetic effects queued: " +
+                cosmetics.getQueueDepth() + ", dropped: " + cosmetics.getDroppedCount()));
+        FlagJournal journal = flagTracker.getJournal();
+        sender.sendMessage(Component.text("Journal records waiting: " +
+                journal.getPendingCount() + ", dropped: " + journal.getDroppedCount()));
+    }
+    
+    /**
+     * Writes the handler and beacon task statistics to a file off the main thread, and tells the
+     * sender where it went.
+     *
+     * @param sender The sender that asked for the dump.
+     */
+    private void dumpStats(@NotNull CommandSender sender) {
+        List<HandlerStats.Row> rows = flagTracker.getStats().snapshot();
+        Path file = getDataFolder().toPath().resolve("stats")
+                .resolve("stats-" + System.currentTimeMillis() + ".txt");
+        getServer().getAsyncScheduler().runNow(this, task -> {
+            try {
+                Files.createDirectories(file.getParent());
+                Files.write(file, rows.stream().map(HandlerStats.Row::format).toList(),
+                        StandardCharsets.UTF_8);
+                sender.sendMessage(Component.text("Stats written to " + file));
+            } catch (IOException e) {
+                getLogger().log(Level.WARNING, "Could not write stats", e);
+                sender.sendMessage(Component.text("Could not write stats", NamedTextColor.RED));
+            }
+        });
+    }
+    
+    /**
+     * Makes every flag in a match file, and reports how many were made once they are all done.
+     *
+     * @param sender The sender loading the match.
+     * @param match  The name of the match file, without the extension.
+     */
+    private void loadMatch(@NotNull CommandSender sender, @NotNull String match) {
+        sender.sendMessage(Component.text("Loading match " + match + "..."));
+        flagTracker.getProvisioner().load(match).whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                sender.sendMessage(Component.text(throwable.getMessage(), NamedTextColor.RED));
+                return;
+            }
+            sender.sendMessage(Component.text("Made " + result.made() + " flags for " + match));
+            for (String failure : result.failures()) {
+                sender.sendMessage(
+                        Component.text("Could not make " + failure, NamedTextColor.RED));
+            }
+        });
+    }
+    
+    /**
+     * Lists the match files that can be loaded with {@code /makeflag load}.
+     *
+     * @return The names of the match files, without the extension.
+     */
+    private @NotNull List<String> listMatches() {
+        try (Stream<Path> files = Files.list(getDataFolder().toPath().resolve("matches"))) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(".yml"))
+                    .map(name -> name.substring(0, name.length() - ".yml".length())).sorted()
+                    .toList();
+        } catch (IOException e) {
+            return List.of();
+        }
+    }
+    
+    /**
+     * Reports the result of making an entity into a flag back to the sender once it is known.
+     *
+     * @param sender  The sender that ran the command.
+     * @param tracked The future that completes once the entity is tracked.
+     */
+    private void reportTrack(@NotNull CommandSender sender,
+                             @NotNull CompletableFuture<Entity> tracked) {
+        if (!tracked.isDone()) {
+            sender.sendMessage(Component.text("Entity is not loaded, loading its chunk..."));
+        }
+        tracked.whenComplete((entity, throwable) -> {
+            if (throwable == null) {
+                sender.sendMessage(Component.text("Entity setup as flag"));
+            } else if (throwable instanceof TimeoutException) {
+                sender.sendMessage(
+                        Component.text("Entity did not load in time", NamedTextColor.RED));
+            } else {
+                sender.sendMessage(Component.text(throwable.getMessage(), NamedTextColor.RED));
+            }
+        });
+    }
+    
     /**
      * Checks the tracking config for default settings.
      *
@@ -188,13 +622,35 @@ public final class CTFBuddy extends JavaPlugin {
         switch (command.getName().toLowerCase()) {
             case MAKEFLAG -> {
                 if (args.length == 1) {
-                    return List.of(ITEM, ENTITY);
+                    return List.of(ITEM, ENTITY, LOAD);
+                } else if (args.length == 3 && args[0].equals(ENTITY)) {
+                    return getServer().getWorlds().stream().map(World::getName).toList();
+                } else if (args.length == 2 && args[0].equals(LOAD)) {
+                    return listMatches();
                 } else {
                     return List.of();
                 }
             }
             case CTFBUDDY -> {
-                return List.of();
+                if (args.length == 1) {
+                    return sender.hasPermission(RELOAD_PERMISSION) ?
+                            List.of(STATS, SCORES, LOCATOR, TRAILS, ARENA, RELOAD) :
+                            List.of(STATS, SCORES, LOCATOR, TRAILS, ARENA);
+                } else if (args.length == 2 && args[0].equals(STATS) &&
+                        sender.hasPermission(STATS_PERMISSION)) {
+                    return List.of(RESET, DUMP);
+                } else if (args.length == 2 && args[0].equals(TRAILS) &&
+                        sender.hasPermission(TRAILS_PERMISSION)) {
+                    return List.of(EXPORT);
+                } else if (args.length == 2 && args[0].equals(ARENA) &&
+                        sender.hasPermission(ARENA_PERMISSION)) {
+                    return List.of(RESET);
+                } else if (args.length == 3 && args[0].equals(ARENA) && args[1].equals(RESET) &&
+                        sender.hasPermission(ARENA_PERMISSION)) {
+                    return flagTracker.getArenas().stream().map(Arena::name).toList();
+                } else {
+                    return List.of();
+                }
             }
         }
         return super.onTabComplete(sender, command, alias, args);
@@ -208,5 +664,35 @@ public final class CTFBuddy extends JavaPlugin {
         // You can find the plugin ids of your plugins on the page https://bstats.org/what-is-my-plugin-id
         int pluginId = 22225; // <-- Replace with the id of your plugin!
         Metrics metrics = new Metrics(this, pluginId);
+        HandlerStats stats = flagTracker.getStats();
+        AtomicLong reportedCalls = new AtomicLong();
+        metrics.addCustomChart(new SingleLineChart("handler_calls", () -> {
+            // Report the calls made since the last submission, so the chart shows load over time
+            long total = stats.getTotalCalls();
+            return (int) Math.min(Integer.MAX_VALUE,
+                    Math.max(0, total - reportedCalls.getAndSet(total)));
+        }));
+        metrics.addCustomChart(
+                new SimplePie("worst_handler_p99", () -> latencyBucket(stats.getWorstP99())));
+        metrics.addCustomChart(new SingleLineChart("tracked_flags",
+                () -> flagTracker.getPositions().getPositions().size()));
+    }
+    
+    /**
+     * Sorts a latency into a coarse bucket for bStats.
+     *
+     * @param nanos The latency in nanoseconds.
+     * @return The name of the bucket.
+     */
+    private static @NotNull String latencyBucket(long nanos) {
+        if (nanos < 10_000) {
+            return "<10us";
+        } else if (nanos < 100_000) {
+            return "10-100us";
+        } else if (nanos < 1_000_000) {
+            return "100us-1ms";
+        } else {
+            return ">1ms";
+        }
     }
 }
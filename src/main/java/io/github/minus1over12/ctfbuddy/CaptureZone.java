@@ -0,0 +1,93 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A region that scores for a team when one of its players carries another team's flag into it.
+ *
+ * @param team  The index of the team the zone belongs to.
+ * @param world The name of the world the zone is in.
+ * @param shape The shape of the zone.
+ * @param minX  The smallest x coordinate of the zone's bounding box.
+ * @param minY  The smallest y coordinate of the zone's bounding box.
+ * @param minZ  The smallest z coordinate of the zone's bounding box.
+ * @param maxX  The largest x coordinate of the zone's bounding box.
+ * @param maxY  The largest y coordinate of the zone's bounding box.
+ * @param maxZ  The largest z coordinate of the zone's bounding box.
+ * @author War Pigeon
+ */
+record CaptureZone(int team, @NotNull String world, @NotNull Shape shape, double minX,
+                   double minY, double minZ, double maxX, double maxY, double maxZ) {
+    /**
+     * Creates a cuboid zone from two opposite corners.
+     *
+     * @param team  The index of the team the zone belongs to.
+     * @param world The name of the world the zone is in.
+     * @param x1    The x coordinate of one corner.
+     * @param y1    The y coordinate of one corner.
+     * @param z1    The z coordinate of one corner.
+     * @param x2    The x coordinate of the opposite corner.
+     * @param y2    The y coordinate of the opposite corner.
+     * @param z2    The z coordinate of the opposite corner.
+     * @return The zone.
+     */
+    static @NotNull CaptureZone cuboid(int team, @NotNull String world, double x1, double y1,
+                                       double z1, double x2, double y2, double z2) {
+        return new CaptureZone(team, world, Shape.CUBOID, Math.min(x1, x2), Math.min(y1, y2),
+                Math.min(z1, z2), Math.max(x1, x2), Math.max(y1, y2), Math.max(z1, z2));
+    }
+    
+    /**
+     * Creates a sphere zone.
+     *
+     * @param team    The index of the team the zone belongs to.
+     * @param world   The name of the world the zone is in.
+     * @param centerX The x coordinate of the center.
+     * @param centerY The y coordinate of the center.
+     * @param centerZ The z coordinate of the center.
+     * @param radius  The radius of the sphere.
+     * @return The zone.
+     */
+    static @NotNull CaptureZone sphere(int team, @NotNull String world, double centerX,
+                                       double centerY, double centerZ, double radius) {
+        double r = Math.abs(radius);
+        return new CaptureZone(team, world, Shape.SPHERE, centerX - r, centerY - r, centerZ - r,
+                centerX + r, centerY + r, centerZ + r);
+    }
+    
+    /**
+     * Check if a point is inside the zone.
+     *
+     * @param x The x coordinate of the point.
+     * @param y The y coordinate of the point.
+     * @param z The z coordinate of the point.
+     * @return True if the point is inside the zone, false otherwise.
+     */
+    boolean contains(double x, double y, double z) {
+        if (x < minX || x > maxX || y < minY || y > maxY || z < minZ || z > maxZ) {
+            return false;
+        }
+        if (shape == Shape.CUBOID) {
+            return true;
+        }
+        double radius = (maxX - minX) / 2;
+        double dx = x - (minX + radius);
+        double dy = y - (minY + radius);
+        double dz = z - (minZ + radius);
+        return dx * dx + dy * dy + dz * dz <= radius * radius;
+    }
+    
+    /**
+     * The shape of a capture zone.
+     */
+    enum Shape {
+        /**
+         * An axis-aligned box.
+         */
+        CUBOID,
+        /**
+         * A sphere; its bounding box is a cube around it.
+         */
+        SPHERE
+    }
+}
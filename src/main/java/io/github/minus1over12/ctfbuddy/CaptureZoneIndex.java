@@ -0,0 +1,196 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.bukkit.Chunk;
+import org.bukkit.configuration.ConfigurationSection;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Spatial index of capture zones. Every zone is listed under each chunk its bounding box touches,
+ * per world, so finding the zone at a position is one hash probe followed by bounds tests against
+ * the few zones in that chunk. The index is immutable once built, so it can be read from any
+ * thread.
+ *
+ * @author War Pigeon
+ */
+final class CaptureZoneIndex {
+    /**
+     * Zones not covering any chunk, shared by every empty lookup.
+     */
+    private static final CaptureZone[] NO_ZONES = new CaptureZone[0];
+    
+    /**
+     * The names of the teams, indexed by team.
+     */
+    private final @NotNull List<String> teamNames;
+    /**
+     * Zones by world name, then by chunk key.
+     */
+    private final @NotNull Map<String, Map<Long, CaptureZone[]>> zonesByWorld;
+    
+    /**
+     * Create a new CaptureZoneIndex.
+     *
+     * @param teamNames The names of the teams, indexed by team.
+     * @param zones     The zones to index.
+     */
+    CaptureZoneIndex(@NotNull List<String> teamNames, @NotNull List<CaptureZone> zones) {
+        this.teamNames = List.copyOf(teamNames);
+        Map<String, Map<Long, CaptureZone[]>> index = new HashMap<>();
+        for (CaptureZone zone : zones) {
+            Map<Long, CaptureZone[]> chunks =
+                    index.computeIfAbsent(zone.world(), world -> new HashMap<>());
+            int minChunkX = (int) Math.floor(zone.minX()) >> 4;
+            int maxChunkX = (int) Math.floor(zone.maxX()) >> 4;
+            int minChunkZ = (int) Math.floor(zone.minZ()) >> 4;
+            int maxChunkZ = (int) Math.floor(zone.maxZ()) >> 4;
+            for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+                for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                    chunks.merge(Chunk.getChunkKey(chunkX, chunkZ), new CaptureZone[]{zone},
+                            (existing, added) -> {
+                                CaptureZone[] merged = Arrays.copyOf(existing,
+                                        existing.length + 1);
+                                merged[existing.length] = added[0];
+                                return merged;
+                            });
+                }
+            }
+        }
+        zonesByWorld = index;
+    }
+    
+    /**
+     * Reads the capture zones from the plugin config. Zones that cannot be read are skipped with
+     * a warning.
+     *
+     * @param config The plugin config.
+     * @param logger Logger to report unreadable zones to.
+     * @return The index of the zones.
+     */
+    static @NotNull CaptureZoneIndex fromConfig(@NotNull ConfigurationSection config,
+                                                @NotNull Logger logger) {
+        List<String> teamNames = new ArrayList<>();
+        List<CaptureZone> zones = new ArrayList<>();
+        for (Map<?, ?> entry : config.getMapList("captureZones")) {
+            try {
+                String teamName = requireString(entry, "team");
+                int team = teamNames.indexOf(teamName);
+                if (team < 0) {
+                    team = teamNames.size();
+                    teamNames.add(teamName);
+                }
+                String world = requireString(entry, "world");
+                String shape = String.valueOf(entry.containsKey("shape") ? entry.get("shape") :
+                        "cuboid").toUpperCase(Locale.ROOT);
+                switch (CaptureZone.Shape.valueOf(shape)) {
+                    case CUBOID -> {
+                        double[] min = requirePoint(entry, "min");
+                        double[] max = requirePoint(entry, "max");
+                        // Treat max as a block position, so the whole block is inside the zone
+                        zones.add(CaptureZone.cuboid(team, world, min[0], min[1], min[2],
+                                max[0] + 1, max[1] + 1, max[2] + 1));
+                    }
+                    case SPHERE -> {
+                        double[] center = requirePoint(entry, "center");
+                        if (!(entry.get("radius") instanceof Number radius)) {
+                            throw new IllegalArgumentException("radius must be a number");
+                        }
+                        zones.add(CaptureZone.sphere(team, world, center[0], center[1],
+                                center[2], radius.doubleValue()));
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                logger.warning("Skipping capture zone " + entry + ": " + e.getMessage());
+            }
+        }
+        return new CaptureZoneIndex(teamNames, zones);
+    }
+    
+    /**
+     * Reads a required string from a config entry.
+     *
+     * @param entry The config entry.
+     * @param key   The key to read.
+     * @return The string.
+     * @throws IllegalArgumentException If the key is missing.
+     */
+    static @NotNull String requireString(@NotNull Map<?, ?> entry, @NotNull String key) {
+        Object value = entry.get(key);
+        if (value == null) {
+            throw new IllegalArgumentException(key + " is missing");
+        }
+        return value.toString();
+    }
+    
+    /**
+     * Reads a required point, written as a list of three numbers, from a config entry.
+     *
+     * @param entry The config entry.
+     * @param key   The key to read.
+     * @return The x, y and z coordinates.
+     * @throws IllegalArgumentException If the key is missing or not three numbers.
+     */
+    static double @NotNull [] requirePoint(@NotNull Map<?, ?> entry, @NotNull String key) {
+        if (!(entry.get(key) instanceof List<?> list) || list.size() != 3) {
+            throw new IllegalArgumentException(key + " must be a list of three numbers");
+        }
+        double[] point = new double[3];
+        for (int i = 0; i < 3; i++) {
+            if (!(list.get(i) instanceof Number number)) {
+                throw new IllegalArgumentException(key + " must be a list of three numbers");
+            }
+            point[i] = number.doubleValue();
+        }
+        return point;
+    }
+    
+    /**
+     * Finds the zone at a position.
+     *
+     * @param world The name of the world.
+     * @param x     The x coordinate.
+     * @param y     The y coordinate.
+     * @param z     The z coordinate.
+     * @return The first zone containing the position, or null if there is none.
+     */
+    @Nullable CaptureZone find(@NotNull String world, double x, double y, double z) {
+        Map<Long, CaptureZone[]> chunks = zonesByWorld.get(world);
+        if (chunks == null) {
+            return null;
+        }
+        CaptureZone[] zones = chunks.getOrDefault(
+                Chunk.getChunkKey((int) Math.floor(x) >> 4, (int) Math.floor(z) >> 4), NO_ZONES);
+        for (CaptureZone zone : zones) {
+            if (zone.contains(x, y, z)) {
+                return zone;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Check if there are no zones.
+     *
+     * @return True if no zones are configured, false otherwise.
+     */
+    boolean isEmpty() {
+        return zonesByWorld.isEmpty();
+    }
+    
+    /**
+     * Gets the names of the teams that have zones.
+     *
+     * @return The team names, indexed by team.
+     */
+    @NotNull List<String> getTeamNames() {
+        return teamNames;
+    }
+}
@@ -0,0 +1,141 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Movement pipeline for flag carriers. Player moves are dropped unless the player is wearing a
+ * flag and has moved to a different block, so rotation and sub-block moves never reach a
+ * consumer. The moves a carrier makes within a tick are coalesced, and only the latest one is
+ * handed to the consumers, on the carrier's own scheduler in the next tick. Moves by players
+ * that are not carrying a flag are dropped before anything is allocated.
+ *
+ * @author War Pigeon
+ */
+final class CarrierMovement {
+    /**
+     * Reference to the plugin class. Needed for scheduling tasks.
+     */
+    private final @NotNull Plugin plugin;
+    /**
+     * Registry used to tell if a player is carrying a flag.
+     */
+    private final @NotNull FlagRegistry registry;
+    /**
+     * The consumers of carrier moves, in the order they were added.
+     */
+    private final List<Consumer> consumers = new CopyOnWriteArrayList<>();
+    /**
+     * The latest move of each carrier that has not been handed to the consumers yet, keyed by
+     * carrier UUID.
+     */
+    private final Map<UUID, PendingMove> pending = new ConcurrentHashMap<>();
+    
+    /**
+     * Create a new CarrierMovement.
+     *
+     * @param plugin   The plugin to schedule tasks for.
+     * @param registry Registry used to tell if a player is carrying a flag.
+     */
+    CarrierMovement(@NotNull Plugin plugin, @NotNull FlagRegistry registry) {
+        this.plugin = plugin;
+        this.registry = registry;
+    }
+    
+    /**
+     * Adds a consumer of carrier moves.
+     *
+     * @param consumer The consumer to add.
+     */
+    void addConsumer(@NotNull Consumer consumer) {
+        consumers.add(consumer);
+    }
+    
+    /**
+     * Offers a player move to the pipeline. Must run on the thread that owns the player.
+     *
+     * @param event The move event.
+     * @return True if the move was a carrier changing block, false if it was dropped.
+     */
+    boolean offer(@NotNull PlayerMoveEvent event) {
+        Player player = event.getPlayer();
+        UUID playerId = player.getUniqueId();
+        if (!registry.isCarrier(playerId) || !event.hasChangedBlock()) {
+            return false;
+        }
+        PendingMove move = pending.computeIfAbsent(playerId, id -> new PendingMove());
+        move.to = event.getTo().clone();
+        if (move.scheduled.compareAndSet(false, true) &&
+                player.getScheduler().run(plugin, task -> deliver(player, move),
+                        () -> pending.remove(playerId, move)) == null) {
+            pending.remove(playerId, move);
+        }
+        return true;
+    }
+    
+    /**
+     * Drops any move a carrier has not delivered yet, such as when they lose the flag or leave.
+     *
+     * @param entityId The UUID of the carrier.
+     */
+    void forget(@NotNull UUID entityId) {
+        pending.remove(entityId);
+    }
+    
+    /**
+     * Hands the latest move of a carrier to the consumers, if they are still carrying a flag.
+     *
+     * @param player The carrier.
+     * @param move   The carrier's pending move.
+     */
+    private void deliver(@NotNull Player player, @NotNull PendingMove move) {
+        move.scheduled.set(false);
+        UUID playerId = player.getUniqueId();
+        if (pending.get(playerId) != move || !registry.isCarrier(playerId)) {
+            return;
+        }
+        Location to = move.to;
+        for (Consumer consumer : consumers) {
+            consumer.onCarrierMove(player, to);
+        }
+    }
+    
+    /**
+     * Receives the coalesced block-changing moves of flag carriers.
+     */
+    @FunctionalInterface
+    interface Consumer {
+        /**
+         * Called once per tick at most for each carrier that changed block, on the thread that
+         * owns the carrier.
+         *
+         * @param carrier The player carrying the flag.
+         * @param to      Where the carrier moved to. Must not be modified.
+         */
+        void onCarrierMove(@NotNull Player carrier, @NotNull Location to);
+    }
+    
+    /**
+     * The latest move of a carrier, waiting to be delivered.
+     */
+    private static final class PendingMove {
+        /**
+         * Set while a delivery is scheduled on the carrier's scheduler.
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        /**
+         * Where the carrier last moved to.
+         */
+        private volatile Location to;
+    }
+}
@@ -0,0 +1,204 @@
+package io.github.minus1over12.ctfbuddy;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Entity;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Runs the cosmetic side effects of flag events, such as sounds, music and action bars, outside
+ * the event that caused them. Handlers only make the changes the game depends on inline, and queue
+ * the rest here. A global task runs queued effects each tick until its time budget is spent, and
+ * leaves the rest for the next tick, so a team fight with many pickups in one tick does not stall
+ * it. If the queue fills up, new effects are dropped, since none of them change the game. Effects
+ * that undo an earlier one, such as stopping music, are never dropped, and run in queue order so
+ * they cannot overtake the effect they undo.
+ *
+ * @author War Pigeon
+ */
+final class CosmeticExecutor {
+    /**
+     * Reference to the plugin class. Needed for scheduling tasks.
+     */
+    private final @NotNull Plugin plugin;
+    /**
+     * Counts and times each run of the queue.
+     */
+    private final @NotNull HandlerStats stats;
+    /**
+     * Time each tick may spend running effects, in nanoseconds.
+     */
+    private final long budgetNanos;
+    /**
+     * The most effects queued at once.
+     */
+    private final int capacity;
+    /**
+     * Effects waiting to run.
+     */
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    /**
+     * Number of effects waiting to run. Kept separately, since counting the queue is slow.
+     */
+    private final AtomicInteger depth = new AtomicInteger();
+    /**
+     * Number of effects dropped because the queue was full.
+     */
+    private final LongAdder dropped = new LongAdder();
+    /**
+     * The task running the queue, or null if the executor is not running.
+     */
+    private @Nullable ScheduledTask task;
+    
+    /**
+     * Create a new CosmeticExecutor.
+     *
+     * @param plugin       The plugin to schedule tasks for.
+     * @param stats        The statistics to record queue runs in.
+     * @param budgetMicros Time each tick may spend running effects, in microseconds.
+     * @param capacity     The most effects queued at once.
+     */
+    CosmeticExecutor(@NotNull Plugin plugin, @NotNull HandlerStats stats, long budgetMicros,
+                     int capacity) {
+        this.plugin = plugin;
+        this.stats = stats;
+        this.budgetNanos = budgetMicros * 1000;
+        this.capacity = capacity;
+    }
+    
+    /**
+     * Starts running queued effects every tick.
+     */
+    synchronized void start() {
+        if (task == null) {
+            task = Bukkit.getGlobalRegionScheduler()
+                    .runAtFixedRate(plugin, scheduledTask -> drain(), 1, 1);
+        }
+    }
+    
+    /**
+     * Stops running queued effects. Effects still queued are dropped.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        queue.clear();
+        depth.set(0);
+    }
+    
+    /**
+     * Queues an effect that does not touch any entity or world state. Safe to call from any
+     * thread.
+     *
+     * @param effect The effect.
+     */
+    void submit(@NotNull Runnable effect) {
+        if (depth.incrementAndGet() > capacity) {
+            depth.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        queue.add(effect);
+    }
+    
+    /**
+     * Queues an effect on an entity. The effect runs on the thread that owns the entity; if the
+     * entity has moved to another region by then, it is handed to the entity's scheduler, and
+     * skipped if the entity is removed first. Safe to call from any thread.
+     *
+     * @param entity The entity.
+     * @param effect The effect.
+     * @param <T>    The type of the entity.
+     */
+    <T extends Entity> void submit(@NotNull T entity, @NotNull Consumer<? super T> effect) {
+        submit(onEntity(entity, effect));
+    }
+    
+    /**
+     * Queues an effect on an entity that undoes an earlier effect, such as stopping music. It is
+     * queued even if the queue is full, and runs like an effect queued with
+     * {@link #submit(Entity, Consumer)}. Safe to call from any thread.
+     *
+     * @param entity The entity.
+     * @param effect The effect.
+     * @param <T>    The type of the entity.
+     */
+    <T extends Entity> void submitCleanup(@NotNull T entity,
+                                          @NotNull Consumer<? super T> effect) {
+        depth.incrementAndGet();
+        queue.add(onEntity(entity, effect));
+    }
+    
+    /**
+     * Wraps an effect on an entity so it runs on the thread that owns the entity.
+     *
+     * @param entity The entity.
+     * @param effect The effect.
+     * @param <T>    The type of the entity.
+     * @return The wrapped effect.
+     */
+    private <T extends Entity> @NotNull Runnable onEntity(@NotNull T entity,
+                                                          @NotNull Consumer<? super T> effect) {
+        return () -> {
+            if (Bukkit.isOwnedByCurrentRegion(entity)) {
+                effect.accept(entity);
+            } else {
+                entity.getScheduler().run(plugin, scheduledTask -> effect.accept(entity), null);
+            }
+        };
+    }
+    
+    /**
+     * Gets the number of effects waiting to run.
+     *
+     * @return The queue depth.
+     */
+    int getQueueDepth() {
+        return depth.get();
+    }
+    
+    /**
+     * Gets the number of effects dropped because the queue was full.
+     *
+     * @return The number of dropped effects.
+     */
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+    
+    /**
+     * Runs queued effects until the queue is empty or the tick's budget is spent. At least one
+     * effect runs each tick, so the queue always makes progress.
+     */
+    private void drain() {
+        long start = System.nanoTime();
+        boolean ran = false;
+        Runnable effect;
+        while ((effect = queue.poll()) != null) {
+            depth.decrementAndGet();
+            ran = true;
+            try {
+                effect.run();
+            } catch (RuntimeException e) {
+                plugin.getLogger().log(Level.WARNING, "Cosmetic effect failed", e);
+            }
+            if (System.nanoTime() - start >= budgetNanos) {
+                break;
+            }
+        }
+        if (ran) {
+            stats.record(HandlerStats.Probe.COSMETIC_DRAIN, start, true);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.bukkit.entity.Entity;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scans loaded entities for flags in three stages. A snapshot of each entity's flag roles is taken
+ * on the thread that owns the entities, the snapshot is filtered on a dedicated bounded executor,
+ * and the entities that still need work are handed back to their own entity schedulers. No
+ * Bukkit object is touched off its owning thread.
+ *
+ * @author War Pigeon
+ */
+final class EntityScanPipeline {
+    /**
+     * Role bit for an entity that is a flag, either an item or a marked entity.
+     */
+    static final int FLAG = 1;
+    /**
+     * Role bit for an entity that is wearing a flag.
+     */
+    static final int CARRIER = 2;
+    /**
+     * The most snapshots that can wait for the executor before the caller filters them itself.
+     */
+    private static final int QUEUE_CAPACITY = 256;
+    
+    /**
+     * Reference to the plugin class. Needed for scheduling tasks.
+     */
+    private final @NotNull Plugin plugin;
+    /**
+     * Reads the roles of an entity on its owning thread.
+     */
+    private final @NotNull RoleReader roleReader;
+    /**
+     * Decides, off the owning thread, which entities still need to be applied.
+     */
+    private final @NotNull ScanFilter scanFilter;
+    /**
+     * Applies the scan result to an entity on its owning thread.
+     */
+    private final @NotNull Applier applier;
+    /**
+     * Executor that runs the filter stage.
+     */
+    private final @NotNull Executor executor;
+    
+    /**
+     * Create a new EntityScanPipeline that filters snapshots on its own bounded executor.
+     *
+     * @param plugin     The plugin to schedule tasks for.
+     * @param roleReader Reads the roles of an entity on its owning thread. This must be cheap, as
+     *                   it runs for every scanned entity.
+     * @param scanFilter Decides which tagged entities still need to be applied. This runs off the
+     *                   owning thread, so it must not touch Bukkit objects.
+     * @param applier    Applies the result to an entity on its owning thread.
+     */
+    EntityScanPipeline(@NotNull Plugin plugin, @NotNull RoleReader roleReader,
+                       @NotNull ScanFilter scanFilter, @NotNull Applier applier) {
+        this(plugin, roleReader, scanFilter, applier, newExecutor());
+    }
+    
+    /**
+     * Create a new EntityScanPipeline that filters snapshots on the given executor, such as one
+     * driven by the load simulation so that scans replay exactly.
+     *
+     * @param plugin     The plugin to schedule tasks for.
+     * @param roleReader Reads the roles of an entity on its owning thread. This must be cheap, as
+     *                   it runs for every scanned entity.
+     * @param scanFilter Decides which tagged entities still need to be applied. This runs off the
+     *                   owning thread, so it must not touch Bukkit objects.
+     * @param applier    Applies the result to an entity on its owning thread.
+     * @param executor   Runs the filter stage. It is shut down with the pipeline if it is an
+     *                   {@link ExecutorService}.
+     */
+    EntityScanPipeline(@NotNull Plugin plugin, @NotNull RoleReader roleReader,
+                       @NotNull ScanFilter scanFilter, @NotNull Applier applier,
+                       @NotNull Executor executor) {
+        this.plugin = plugin;
+        this.roleReader = roleReader;
+        this.scanFilter = scanFilter;
+        this.applier = applier;
+        this.executor = executor;
+    }
+    
+    /**
+     * Creates the bounded executor that filters snapshots on a single daemon thread.
+     *
+     * @return The executor.
+     */
+    private static @NotNull ExecutorService newExecutor() {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+            Thread thread = new Thread(runnable, "CTFBuddy Entity Scan");
+            thread.setDaemon(true);
+            return thread;
+        }, (runnable, pool) -> {
+            if (pool.isShutdown()) {
+                throw new RejectedExecutionException("Entity scan pipeline is shut down");
+            }
+            // The queue is full, so the caller filters the snapshot itself
+            runnable.run();
+        });
+    }
+    
+    /**
+     * Scans entities for flags. Must be called on the thread that owns the entities.
+     *
+     * @param entities The entities to scan.
+     * @return The roles found during the snapshot, and a future that completes once the filtered
+     * entities have been handed to their schedulers, or fails if the pipeline has been shut down.
+     */
+    @NotNull Scan scan(@NotNull List<Entity> entities) {
+        Snapshot snapshot = new Snapshot();
+        for (Entity entity : entities) {
+            int roles = roleReader.read(entity);
+            if (roles != 0) {
+                snapshot.add(entity, entity.getUniqueId(), roles);
+            }
+        }
+        if (snapshot.size == 0) {
+            return new Scan(0, CompletableFuture.completedFuture(null));
+        }
+        CompletableFuture<Void> applied;
+        try {
+            applied = CompletableFuture.runAsync(() -> dispatch(snapshot), executor);
+        } catch (RejectedExecutionException e) {
+            applied = CompletableFuture.failedFuture(e);
+        }
+        return new Scan(snapshot.union(), applied);
+    }
+    
+    /**
+     * Filters a snapshot and hands the entities that still need work to their schedulers.
+     *
+     * @param snapshot The snapshot to process.
+     */
+    private void dispatch(@NotNull Snapshot snapshot) {
+        for (int i = 0; i < snapshot.size; i++) {
+            int roles = snapshot.roles[i];
+            if (scanFilter.needsApply(snapshot.ids[i], roles)) {
+                Entity entity = snapshot.entities[i];
+                entity.getScheduler().run(plugin, task -> applier.apply(entity, roles), null);
+            }
+        }
+    }
+    
+    /**
+     * Stops the executor. Snapshots already queued are still processed, and later scans fail
+     * their future.
+     */
+    void shutdown() {
+        if (executor instanceof ExecutorService service) {
+            service.shutdown();
+        }
+    }
+    
+    /**
+     * Reads the roles of an entity.
+     */
+    @FunctionalInterface
+    interface RoleReader {
+        /**
+         * Reads the roles of an entity on its owning thread.
+         *
+         * @param entity The entity to read.
+         * @return The role bits of the entity, or 0 if it is not a flag or flag carrier.
+         */
+        int read(@NotNull Entity entity);
+    }
+    
+    /**
+     * Filters tagged entities off the owning thread.
+     */
+    @FunctionalInterface
+    interface ScanFilter {
+        /**
+         * Decides if an entity still needs to be applied.
+         *
+         * @param entityId The UUID of the entity.
+         * @param roles    The role bits of the entity.
+         * @return True if the entity needs to be applied, false otherwise.
+         */
+        boolean needsApply(@NotNull UUID entityId, int roles);
+    }
+    
+    /**
+     * Applies a scan result to an entity.
+     */
+    @FunctionalInterface
+    interface Applier {
+        /**
+         * Applies a scan result to an entity on its owning thread.
+         *
+         * @param entity The entity to apply to.
+         * @param roles  The role bits of the entity.
+         */
+        void apply(@NotNull Entity entity, int roles);
+    }
+    
+    /**
+     * The result of a scan.
+     *
+     * @param roles   The union of the role bits of every scanned entity.
+     * @param applied Completes once every entity that needs work has been handed to its scheduler.
+     */
+    record Scan(int roles, @NotNull CompletableFuture<Void> applied) {
+        /**
+         * Check if the scan found any flag or flag carrier.
+         *
+         * @return True if any scanned entity had a role, false otherwise.
+         */
+        boolean foundAny() {
+            return roles != 0;
+        }
+    }
+    
+    /**
+     * The minimal data taken from tagged entities on the owning thread.
+     */
+    private static final class Snapshot {
+        /**
+         * The tagged entities. Only passed back to their schedulers, never read off-thread.
+         */
+        private Entity[] entities = new Entity[4];
+        /**
+         * The UUIDs of the tagged entities.
+         */
+        private UUID[] ids = new UUID[4];
+        /**
+         * The role bits of the tagged entities.
+         */
+        private int[] roles = new int[4];
+        /**
+         * The number of tagged entities.
+         */
+        private int size;
+        
+        /**
+         * Adds a tagged entity to the snapshot.
+         *
+         * @param entity   The entity.
+         * @param entityId The UUID of the entity.
+         * @param role     The role bits of the entity.
+         */
+        private void add(@NotNull Entity entity, @NotNull UUID entityId, int role) {
+            if (size == ids.length) {
+                int capacity = size * 2;
+                entities = Arrays.copyOf(entities, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+                roles = Arrays.copyOf(roles, capacity);
+            }
+            entities[size] = entity;
+            ids[size] = entityId;
+            roles[size] = role;
+            size++;
+        }
+        
+        /**
+         * Gets the union of the role bits in the snapshot.
+         *
+         * @return The union of the role bits.
+         */
+        private int union() {
+            int union = 0;
+            for (int i = 0; i < size; i++) {
+                union |= roles[i];
+            }
+            return union;
+        }
+    }
+}
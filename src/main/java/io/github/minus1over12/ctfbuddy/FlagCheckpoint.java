@@ -0,0 +1,207 @@
+package io.github.minus1over12.ctfbuddy;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import io.papermc.paper.util.Tick;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically saves the last known position of every flag so flags in unloaded chunks can be
+ * found again after a crash or restart. Positions are sampled on the threads that own the flags,
+ * and the checkpoint is written off the main thread to a temporary file that is then moved over
+ * the previous checkpoint, so a crash mid-write never leaves a partial file behind.
+ *
+ * @author War Pigeon
+ */
+final class FlagCheckpoint {
+    /**
+     * Name of the checkpoint file.
+     */
+    static final String FILE_NAME = "flag-checkpoint.tsv";
+    /**
+     * First line of every checkpoint file, used to recognise the format.
+     */
+    private static final String HEADER = "# CTFBuddy flag checkpoint v1";
+    /**
+     * Placeholder written when a flag id is not known.
+     */
+    private static final String NO_FLAG_ID = "-";
+    
+    /**
+     * Reference to the plugin class. Needed for scheduling tasks.
+     */
+    private final @NotNull Plugin plugin;
+    /**
+     * The positions to save.
+     */
+    private final @NotNull FlagPositions positions;
+    /**
+     * The checkpoint file.
+     */
+    private final @NotNull Path file;
+    /**
+     * Logger to report write failures to.
+     */
+    private final @NotNull Logger logger;
+    /**
+     * The task sampling positions, or null if checkpoints are not running.
+     */
+    private @Nullable ScheduledTask sampleTask;
+    /**
+     * The task writing checkpoints, or null if checkpoints are not running.
+     */
+    private @Nullable ScheduledTask writeTask;
+    
+    /**
+     * Create a new FlagCheckpoint.
+     *
+     * @param plugin    The plugin to schedule tasks for.
+     * @param positions The positions to save.
+     * @param file      The checkpoint file.
+     * @param logger    Logger to report write failures to.
+     */
+    FlagCheckpoint(@NotNull Plugin plugin, @NotNull FlagPositions positions, @NotNull Path file,
+                   @NotNull Logger logger) {
+        this.plugin = plugin;
+        this.positions = positions;
+        this.file = file;
+        this.logger = logger;
+    }
+    
+    /**
+     * Starts sampling positions and writing checkpoints.
+     *
+     * @param interval Time between checkpoints.
+     */
+    synchronized void start(@NotNull Duration interval) {
+        if (sampleTask == null) {
+            int intervalTicks = Math.max(1, Tick.tick().fromDuration(interval));
+            sampleTask = Bukkit.getGlobalRegionScheduler()
+                    .runAtFixedRate(plugin, task -> positions.sample(), intervalTicks,
+                            intervalTicks);
+            // Offset by half an interval so the write picks up the sample taken before it.
+            long intervalMillis = Math.max(50, interval.toMillis());
+            writeTask = Bukkit.getAsyncScheduler()
+                    .runAtFixedRate(plugin, task -> write(), intervalMillis + intervalMillis / 2,
+                            intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Stops sampling and writes a final checkpoint on the calling thread.
+     */
+    synchronized void stop() {
+        if (sampleTask != null) {
+            sampleTask.cancel();
+            sampleTask = null;
+        }
+        if (writeTask != null) {
+            writeTask.cancel();
+            writeTask = null;
+        }
+        write();
+    }
+    
+    /**
+     * Writes the current positions to the checkpoint file. Safe to call from any thread.
+     */
+    synchronized void write() {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary,
+                    StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+                for (FlagPosition position : positions.getPositions()) {
+                    writer.write(format(position));
+                    writer.newLine();
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write flag checkpoint", e);
+        }
+    }
+    
+    /**
+     * Reads a checkpoint file. Lines that cannot be read are skipped.
+     *
+     * @param file   The checkpoint file.
+     * @param logger Logger to report unreadable lines to.
+     * @return The positions in the checkpoint, or an empty list if there is no checkpoint.
+     */
+    static @NotNull List<FlagPosition> load(@NotNull Path file, @NotNull Logger logger) {
+        List<FlagPosition> loaded = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (!HEADER.equals(header)) {
+                logger.warning("Ignoring flag checkpoint with unknown format: " + file);
+                return loaded;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    loaded.add(parse(line));
+                } catch (IllegalArgumentException e) {
+                    logger.warning("Skipping unreadable flag checkpoint line: " + line);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return loaded;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read flag checkpoint", e);
+        }
+        return loaded;
+    }
+    
+    /**
+     * Formats a position as a checkpoint line.
+     *
+     * @param position The position.
+     * @return The tab separated line.
+     */
+    private static @NotNull String format(@NotNull FlagPosition position) {
+        return String.join("\t", position.kind().name(), position.entityId().toString(),
+                position.flagId() == null ? NO_FLAG_ID : position.flagId().toString(),
+                position.world(), Double.toString(position.x()), Double.toString(position.y()),
+                Double.toString(position.z()), Long.toString(position.time()));
+    }
+    
+    /**
+     * Parses a checkpoint line.
+     *
+     * @param line The tab separated line.
+     * @return The position.
+     * @throws IllegalArgumentException If the line is not a valid checkpoint line.
+     */
+    private static @NotNull FlagPosition parse(@NotNull String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 8) {
+            throw new IllegalArgumentException("Expected 8 fields, got " + fields.length);
+        }
+        return new FlagPosition(UUID.fromString(fields[1]), FlagPosition.Kind.valueOf(fields[0]),
+                NO_FLAG_ID.equals(fields[2]) ? null : UUID.fromString(fields[2]), fields[3],
+                Double.parseDouble(fields[4]), Double.parseDouble(fields[5]),
+                Double.parseDouble(fields[6]), Long.parseLong(fields[7]));
+    }
+}
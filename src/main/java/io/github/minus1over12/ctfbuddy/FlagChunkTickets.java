@@ -0,0 +1,234 @@
+package io.github.minus1over12.ctfbuddy;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the chunks holding flags loaded with plugin chunk tickets, so a flag at the edge of view
+ * distance does not unload and reload over and over. A global task compares the chunks in the
+ * latest flag snapshot with the tickets held, and moves tickets as flags move. A ticket that is no
+ * longer needed is kept for a grace period, so a flag carried back and forth over a chunk border
+ * does not thrash. Once the cap is reached, the ticket that has gone unused the longest is
+ * released first, and tickets still in use are never evicted for new ones.
+ *
+ * <p>Players load the chunks around themselves, so chunks only held by a player carrying a flag
+ * are not ticketed. Tickets are added and removed on the thread that owns each chunk.</p>
+ *
+ * @author War Pigeon
+ */
+final class FlagChunkTickets {
+    /**
+     * Time between checks of the flag chunks, in ticks.
+     */
+    private static final long CHECK_INTERVAL_TICKS = 20;
+    
+    /**
+     * Reference to the plugin class. Needed for scheduling tasks and owning the tickets.
+     */
+    private final @NotNull Plugin plugin;
+    /**
+     * Source of the flag snapshots to follow.
+     */
+    private final @NotNull FlagSnapshotPublisher snapshots;
+    /**
+     * The most tickets held at once.
+     */
+    private final int maxTickets;
+    /**
+     * Time a ticket that is no longer needed is kept, in milliseconds.
+     */
+    private final long graceMillis;
+    /**
+     * The chunks ticketed, mapped to when a flag was last seen in them, in milliseconds since the
+     * epoch. Only changed on the global region thread.
+     */
+    private final Map<TicketChunk, Long> held = new ConcurrentHashMap<>();
+    /**
+     * The task checking the flag chunks, or null if tickets are not being kept.
+     */
+    private @Nullable ScheduledTask task;
+    
+    /**
+     * Create a new FlagChunkTickets.
+     *
+     * @param plugin      The plugin to schedule tasks for and own the tickets.
+     * @param snapshots   Source of the flag snapshots to follow.
+     * @param maxTickets  The most tickets held at once.
+     * @param graceMillis Time a ticket that is no longer needed is kept, in milliseconds.
+     */
+    FlagChunkTickets(@NotNull Plugin plugin, @NotNull FlagSnapshotPublisher snapshots,
+                     int maxTickets, long graceMillis) {
+        this.plugin = plugin;
+        this.snapshots = snapshots;
+        this.maxTickets = maxTickets;
+        this.graceMillis = graceMillis;
+    }
+    
+    /**
+     * Starts keeping flag chunks loaded.
+     */
+    synchronized void start() {
+        if (task == null) {
+            task = Bukkit.getGlobalRegionScheduler()
+                    .runAtFixedRate(plugin, scheduledTask -> update(), 1, CHECK_INTERVAL_TICKS);
+        }
+    }
+    
+    /**
+     * Stops moving tickets. Held tickets are left for the server to remove when the plugin is
+     * disabled.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+    
+    /**
+     * Stops moving tickets and removes every ticket held, such as when the option is turned off
+     * by a reload.
+     */
+    synchronized void stopAndRelease() {
+        stop();
+        Bukkit.getGlobalRegionScheduler()
+                .execute(plugin, () -> held.keySet().forEach(this::release));
+    }
+    
+    /**
+     * Check if a chunk is ticketed to keep a flag loaded. Safe to call from any thread.
+     *
+     * @param world  The name of the world.
+     * @param chunkX The x coordinate of the chunk.
+     * @param chunkZ The z coordinate of the chunk.
+     * @return True if the chunk is ticketed, false otherwise.
+     */
+    boolean isHeld(@NotNull String world, int chunkX, int chunkZ) {
+        return held.containsKey(new TicketChunk(world, chunkX, chunkZ));
+    }
+    
+    /**
+     * Gets the number of tickets held.
+     *
+     * @return The number of tickets.
+     */
+    int getHeldCount() {
+        return held.size();
+    }
+    
+    /**
+     * Moves tickets to the chunks that hold flags now.
+     */
+    private void update() {
+        long now = System.currentTimeMillis();
+        Set<TicketChunk> wanted = new LinkedHashSet<>();
+        for (FlagPosition position : snapshots.getSnapshot().flags()) {
+            if (position.kind() == FlagPosition.Kind.CARRIER &&
+                    Bukkit.getPlayer(position.entityId()) != null) {
+                continue;
+            }
+            wanted.add(new TicketChunk(position.world(), position.chunkX(), position.chunkZ()));
+        }
+        for (TicketChunk chunk : wanted) {
+            held.computeIfPresent(chunk, (key, lastSeen) -> now);
+        }
+        // Release tickets whose grace period is over
+        held.forEach((chunk, lastSeen) -> {
+            if (now - lastSeen > graceMillis) {
+                release(chunk);
+            }
+        });
+        List<TicketChunk> idle = null;
+        for (TicketChunk chunk : wanted) {
+            if (held.containsKey(chunk)) {
+                continue;
+            }
+            if (held.size() >= maxTickets) {
+                if (idle == null) {
+                    idle = idleTickets(now);
+                }
+                if (idle.isEmpty()) {
+                    // Every ticket is in use, so new flags wait for one to free up
+                    return;
+                }
+                release(idle.removeFirst());
+            }
+            acquire(chunk, now);
+        }
+    }
+    
+    /**
+     * Gets the tickets no flag is in right now.
+     *
+     * @param now The time of the current check, in milliseconds since the epoch.
+     * @return The idle tickets, the one unused the longest first.
+     */
+    private @NotNull List<TicketChunk> idleTickets(long now) {
+        List<TicketChunk> idle = new ArrayList<>();
+        held.forEach((chunk, lastSeen) -> {
+            if (lastSeen < now) {
+                idle.add(chunk);
+            }
+        });
+        idle.sort(Comparator.comparingLong(chunk -> held.getOrDefault(chunk, now)));
+        return idle;
+    }
+    
+    /**
+     * Adds a ticket to a chunk.
+     *
+     * @param chunk The chunk.
+     * @param now   The current time, in milliseconds since the epoch.
+     */
+    private void acquire(@NotNull TicketChunk chunk, long now) {
+        World world = Bukkit.getWorld(chunk.world());
+        if (world == null) {
+            return;
+        }
+        held.put(chunk, now);
+        Bukkit.getRegionScheduler().execute(plugin, world, chunk.x(), chunk.z(), () -> {
+            if (held.containsKey(chunk)) {
+                world.addPluginChunkTicket(chunk.x(), chunk.z(), plugin);
+            }
+        });
+    }
+    
+    /**
+     * Removes the ticket from a chunk.
+     *
+     * @param chunk The chunk.
+     */
+    private void release(@NotNull TicketChunk chunk) {
+        held.remove(chunk);
+        World world = Bukkit.getWorld(chunk.world());
+        if (world != null) {
+            Bukkit.getRegionScheduler().execute(plugin, world, chunk.x(), chunk.z(), () -> {
+                if (!held.containsKey(chunk)) {
+                    world.removePluginChunkTicket(chunk.x(), chunk.z(), plugin);
+                }
+            });
+        }
+    }
+    
+    /**
+     * A chunk that can be ticketed.
+     *
+     * @param world The name of the world.
+     * @param x     The x coordinate of the chunk.
+     * @param z     The z coordinate of the chunk.
+     */
+    private record TicketChunk(@NotNull String world, int x, int z) {
+    }
+}
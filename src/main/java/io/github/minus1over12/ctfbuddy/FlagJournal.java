@@ -0,0 +1,460 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Journal of flag events, written as JSON lines so it can be replayed to settle disputes after a
+ * match. Event handlers only fill in a preallocated slot of a lock-free ring buffer; a background
+ * thread drains the ring in batches, appends to the journal file, and rotates it when it gets
+ * large. If the ring is full, the record is dropped and counted rather than blocking the caller.
+ *
+ * @author War Pigeon
+ */
+final class FlagJournal {
+    /**
+     * Name of the journal file currently being written.
+     */
+    static final String CURRENT_FILE = "flag-journal.jsonl";
+    /**
+     * How long the writer sleeps between batches when the ring is empty.
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    /**
+     * The most records written before the file is flushed and checked for rotation.
+     */
+    private static final int MAX_BATCH = 1024;
+    
+    /**
+     * Preallocated slots of the ring buffer.
+     */
+    private final Slot[] ring;
+    /**
+     * Mask used to turn a sequence number into a ring index.
+     */
+    private final int mask;
+    /**
+     * The next sequence number to hand to a producer.
+     */
+    private final AtomicLong claimed = new AtomicLong();
+    /**
+     * The next sequence number the writer will read. Only written by the writer thread.
+     */
+    private volatile long consumed;
+    /**
+     * Number of records dropped because the ring was full.
+     */
+    private final LongAdder dropped = new LongAdder();
+    /**
+     * Directory the journal files are written to.
+     */
+    private final @NotNull Path directory;
+    /**
+     * Size in bytes after which the journal file is rotated.
+     */
+    private final long rotateBytes;
+    /**
+     * Logger to report journal failures to, whether or not records are echoed.
+     */
+    private final @NotNull Logger logger;
+    /**
+     * Logger to echo records to, or null to only write them to the journal file.
+     */
+    private final @Nullable Logger console;
+    /**
+     * The background writer thread.
+     */
+    private final @NotNull Thread writerThread;
+    /**
+     * Called by the writer thread with every record as a JSON object, or null for none.
+     */
+    private volatile @Nullable Consumer<String> subscriber;
+    /**
+     * Whether the journal is still accepting records.
+     */
+    private volatile boolean running = true;
+    /**
+     * Reused buffer for formatting records. Only used by the writer thread.
+     */
+    private final StringBuilder line = new StringBuilder(256);
+    /**
+     * The open journal file. Only used by the writer thread.
+     */
+    private @Nullable BufferedWriter writer;
+    /**
+     * Bytes written to the open journal file. Only used by the writer thread.
+     */
+    private long writtenBytes;
+    
+    /**
+     * Create a new FlagJournal and start its writer thread.
+     *
+     * @param directory   Directory the journal files are written to.
+     * @param capacity    Number of records the ring can hold; rounded up to a power of two.
+     * @param rotateBytes Size in bytes after which the journal file is rotated.
+     * @param logger      Logger to report journal failures to.
+     * @param console     Logger to echo records to, or null to only write them to the journal.
+     */
+    FlagJournal(@NotNull Path directory, int capacity, long rotateBytes, @NotNull Logger logger,
+                @Nullable Logger console) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        ring = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Slot();
+        }
+        mask = size - 1;
+        this.directory = directory;
+        this.rotateBytes = rotateBytes;
+        this.logger = logger;
+        this.console = console;
+        writerThread = new Thread(this::runWriter, "CTFBuddy Journal");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+    
+    /**
+     * Records a flag event. Safe to call from any thread, and never blocks.
+     *
+     * @param action    What happened to the flag.
+     * @param actorId   The UUID of the entity involved.
+     * @param actorName The name of the entity involved, or null if it has none worth recording.
+     * @param flagId    The id of the flag, or null if it is not known.
+     * @param world     The name of the world the event happened in.
+     * @param x         The x coordinate of the event.
+     * @param y         The y coordinate of the event.
+     * @param z         The z coordinate of the event.
+     */
+    void record(@NotNull Action action, @NotNull UUID actorId, @Nullable String actorName,
+                @Nullable UUID flagId, @NotNull String world, double x, double y, double z) {
+        if (!running) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        Slot slot = ring[(int) (sequence & mask)];
+        slot.time = System.currentTimeMillis();
+        slot.action = action;
+        slot.actorId = actorId;
+        slot.actorName = actorName;
+        slot.flagId = flagId;
+        slot.world = world;
+        slot.x = x;
+        slot.y = y;
+        slot.z = z;
+        slot.published = sequence;
+    }
+    
+    /**
+     * Sets a callback that receives every record as a JSON object, once it has been formatted
+     * for the journal. The callback runs on the writer thread, so it must not block.
+     *
+     * @param subscriber The callback, or null for none.
+     */
+    void setSubscriber(@Nullable Consumer<String> subscriber) {
+        this.subscriber = subscriber;
+    }
+    
+    /**
+     * Gets the number of records dropped because the ring was full.
+     *
+     * @return The number of dropped records.
+     */
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+    
+    /**
+     * Gets the number of records waiting to be written.
+     *
+     * @return The number of pending records.
+     */
+    long getPendingCount() {
+        return claimed.get() - consumed;
+    }
+    
+    /**
+     * Stops accepting records, writes out everything already recorded, and closes the journal.
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Body of the writer thread.
+     */
+    private void runWriter() {
+        try {
+            Files.createDirectories(directory);
+            while (running) {
+                if (drain() == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+            while (drain() > 0) {
+                // Write out everything recorded before the journal was closed
+            }
+        } catch (IOException e) {
+            running = false;
+            logger.log(Level.SEVERE, "Flag journal stopped", e);
+        } finally {
+            closeWriter();
+        }
+    }
+    
+    /**
+     * Writes out a batch of published records.
+     *
+     * @return The number of records written.
+     * @throws IOException If the journal could not be written.
+     */
+    private int drain() throws IOException {
+        long next = consumed;
+        int count = 0;
+        Slot slot = ring[(int) (next & mask)];
+        while (count < MAX_BATCH && slot.published == next) {
+            format(slot);
+            if (console != null) {
+                console.info(line.toString());
+            }
+            Consumer<String> listener = subscriber;
+            if (listener != null) {
+                listener.accept(line.toString());
+            }
+            line.append('\n');
+            if (writer == null) {
+                openWriter();
+            }
+            writer.append(line);
+            writtenBytes += line.length();
+            slot.actorId = null;
+            slot.actorName = null;
+            slot.flagId = null;
+            slot.world = null;
+            next++;
+            consumed = next;
+            count++;
+            slot = ring[(int) (next & mask)];
+        }
+        if (writer != null && count > 0) {
+            writer.flush();
+            if (writtenBytes >= rotateBytes) {
+                rotate();
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Formats a record into {@link #line} as a single JSON object.
+     *
+     * @param slot The record to format.
+     */
+    private void format(@NotNull Slot slot) {
+        line.setLength(0);
+        line.append("{\"time\":").append(slot.time);
+        line.append(",\"action\":\"").append(slot.action.name()).append('"');
+        line.append(",\"actor\":\"").append(slot.actorId).append('"');
+        line.append(",\"actorName\":");
+        appendString(slot.actorName);
+        line.append(",\"flag\":");
+        appendString(slot.flagId == null ? null : slot.flagId.toString());
+        line.append(",\"world\":");
+        appendString(slot.world);
+        line.append(",\"x\":").append(slot.x);
+        line.append(",\"y\":").append(slot.y);
+        line.append(",\"z\":").append(slot.z).append('}');
+    }
+    
+    /**
+     * Appends a JSON string, or null, to {@link #line}.
+     *
+     * @param value The string to append.
+     */
+    private void appendString(@Nullable String value) {
+        appendJsonString(line, value);
+    }
+    
+    /**
+     * Appends a JSON string, or null, to a buffer.
+     *
+     * @param line  The buffer to append to.
+     * @param value The string to append.
+     */
+    static void appendJsonString(@NotNull StringBuilder line, @Nullable String value) {
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                case '\r' -> line.append("\\r");
+                case '\t' -> line.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+                }
+            }
+        }
+        line.append('"');
+    }
+    
+    /**
+     * Opens the current journal file for appending.
+     *
+     * @throws IOException If the file could not be opened.
+     */
+    private void openWriter() throws IOException {
+        Path file = directory.resolve(CURRENT_FILE);
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        writtenBytes = Files.size(file);
+    }
+    
+    /**
+     * Moves the current journal file aside and starts a new one on the next write.
+     *
+     * @throws IOException If the file could not be moved.
+     */
+    private void rotate() throws IOException {
+        closeWriter();
+        Files.move(directory.resolve(CURRENT_FILE),
+                directory.resolve("flag-journal-" + System.currentTimeMillis() + "-" + consumed +
+                        ".jsonl"),
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Closes the current journal file, if one is open.
+     */
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not close flag journal", e);
+            }
+            writer = null;
+        }
+    }
+    
+    /**
+     * What happened to a flag.
+     */
+    enum Action {
+        /**
+         * An entity picked up the flag.
+         */
+        PICKUP,
+        /**
+         * The flag was dropped on the ground.
+         */
+        DROP,
+        /**
+         * A flag entity, or an entity carrying the flag, died.
+         */
+        DEATH,
+        /**
+         * The flag was stopped from going through a portal.
+         */
+        PORTAL_BLOCKED,
+        /**
+         * A player quit while carrying the flag.
+         */
+        QUIT,
+        /**
+         * The flag was carried into a capture zone.
+         */
+        CAPTURE,
+        /**
+         * The flag was returned to its arena's return point after being caught in a hazard.
+         */
+        RETURN,
+        /**
+         * The flag, or an entity carrying it, was removed from the world for good.
+         */
+        REMOVED
+    }
+    
+    /**
+     * A single slot of the ring buffer. Fields are written by one producer before
+     * {@link #published} is set, and read by the writer after it sees the matching sequence.
+     */
+    private static final class Slot {
+        /**
+         * The sequence number of the record in this slot, or -1 before the first record.
+         */
+        private volatile long published = -1;
+        /**
+         * When the event happened, in milliseconds since the epoch.
+         */
+        private long time;
+        /**
+         * What happened to the flag.
+         */
+        private Action action;
+        /**
+         * The UUID of the entity involved.
+         */
+        private UUID actorId;
+        /**
+         * The name of the entity involved.
+         */
+        private String actorName;
+        /**
+         * The id of the flag.
+         */
+        private UUID flagId;
+        /**
+         * The name of the world the event happened in.
+         */
+        private String world;
+        /**
+         * The x coordinate of the event.
+         */
+        private double x;
+        /**
+         * The y coordinate of the event.
+         */
+        private double y;
+        /**
+         * The z coordinate of the event.
+         */
+        private double z;
+    }
+}
@@ -0,0 +1,313 @@
+package io.github.minus1over12.ctfbuddy;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import io.papermc.paper.util.Tick;
+import net.kyori.adventure.bossbar.BossBar;
+import net.kyori.adventure.text.Component;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shows players that opted in the direction and distance of the nearest flags. A single global
+ * task reads the latest flag snapshot once per update, and each viewer is then updated on their
+ * own scheduler from that snapshot, so no viewer ever looks up a flag entity. A viewer is only
+ * sent an update when what they would see has changed, which bounds the packets sent to one per
+ * viewer per update at most.
+ *
+ * @author War Pigeon
+ */
+final class FlagLocator {
+    /**
+     * Arrows pointing at a flag, for each eighth of a turn clockwise from straight ahead.
+     */
+    private static final String[] ARROWS = {"↑", "↗", "→", "↘", "↓", "↙", "←", "↖"};
+    
+    /**
+     * Time after which an unchanged action bar is sent again, before the client fades it out.
+     */
+    private static final long ACTION_BAR_REFRESH_MILLIS = 2000;
+    
+    /**
+     * Reference to the plugin class. Needed for scheduling tasks.
+     */
+    private final @NotNull Plugin plugin;
+    
+    /**
+     * Source of the flag snapshots to show.
+     */
+    private final @NotNull FlagSnapshotPublisher snapshots;
+    
+    /**
+     * Settings for how the locator is shown.
+     */
+    private final @NotNull LocatorSettings settings;
+    
+    /**
+     * Players that have the locator turned on, keyed by UUID.
+     */
+    private final Map<UUID, Viewer> viewers = new ConcurrentHashMap<>();
+    
+    /**
+     * The task driving the updates, or null if the locator is not running.
+     */
+    private @Nullable ScheduledTask task;
+    
+    /**
+     * Create a new FlagLocator.
+     *
+     * @param plugin    The plugin to schedule tasks for.
+     * @param snapshots Source of the flag snapshots to show.
+     * @param settings  Settings for how the locator is shown.
+     */
+    FlagLocator(@NotNull Plugin plugin, @NotNull FlagSnapshotPublisher snapshots,
+                @NotNull LocatorSettings settings) {
+        this.plugin = plugin;
+        this.snapshots = snapshots;
+        this.settings = settings;
+    }
+    
+    /**
+     * Check if the locator is turned on in the config.
+     *
+     * @return True if players can turn the locator on, false otherwise.
+     */
+    boolean isEnabled() {
+        return settings.mode() != LocatorSettings.Mode.NONE;
+    }
+    
+    /**
+     * Starts updating viewers. Does nothing if the locator is turned off in the config.
+     */
+    synchronized void start() {
+        if (task == null && isEnabled()) {
+            int intervalTicks = Math.max(1, Tick.tick().fromDuration(settings.interval()));
+            task = Bukkit.getGlobalRegionScheduler()
+                    .runAtFixedRate(plugin, scheduledTask -> updateAll(), intervalTicks,
+                            intervalTicks);
+        }
+    }
+    
+    /**
+     * Stops updating viewers.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+    
+    /**
+     * Turns the locator on or off for a player. Must run on the thread that owns the player.
+     *
+     * @param player The player.
+     * @return True if the locator is now on for the player, false if it is now off.
+     */
+    boolean toggle(@NotNull Player player) {
+        Viewer viewer = viewers.remove(player.getUniqueId());
+        if (viewer != null) {
+            hide(viewer);
+            return false;
+        }
+        viewers.put(player.getUniqueId(), new Viewer(player));
+        return true;
+    }
+    
+    /**
+     * Hands the latest flag snapshot to every viewer's scheduler.
+     */
+    private void updateAll() {
+        if (viewers.isEmpty()) {
+            return;
+        }
+        List<FlagPosition> snapshot = snapshots.getSnapshot().flags();
+        viewers.forEach((playerId, viewer) -> {
+            if (viewer.player.getScheduler().run(plugin, scheduledTask -> update(viewer, snapshot),
+                    () -> viewers.remove(playerId, viewer)) == null) {
+                viewers.remove(playerId, viewer);
+            }
+        });
+    }
+    
+    /**
+     * Updates what a viewer sees, if it has changed.
+     *
+     * @param viewer   The viewer.
+     * @param snapshot The flag positions to show.
+     */
+    private void update(@NotNull Viewer viewer, @NotNull List<FlagPosition> snapshot) {
+        if (viewers.get(viewer.player.getUniqueId()) != viewer) {
+            return;
+        }
+        Location location = viewer.player.getLocation();
+        FlagPosition[] nearest = nearest(viewer.player.getUniqueId(), location, snapshot);
+        if (settings.mode() == LocatorSettings.Mode.COMPASS) {
+            Location target = nearest.length == 0 ? location.getWorld().getSpawnLocation() :
+                    new Location(location.getWorld(), nearest[0].x(), nearest[0].y(),
+                            nearest[0].z());
+            if (!target.toBlockLocation().equals(viewer.compassTarget)) {
+                viewer.compassTarget = target.toBlockLocation();
+                viewer.player.setCompassTarget(target);
+            }
+            return;
+        }
+        String text = describe(location, nearest);
+        long now = System.currentTimeMillis();
+        if (settings.mode() == LocatorSettings.Mode.BOSS_BAR) {
+            if (!text.equals(viewer.text)) {
+                if (viewer.bossBar == null) {
+                    viewer.bossBar = BossBar.bossBar(Component.text(text), 1,
+                            BossBar.Color.YELLOW, BossBar.Overlay.PROGRESS);
+                    viewer.player.showBossBar(viewer.bossBar);
+                } else {
+                    viewer.bossBar.name(Component.text(text));
+                }
+            }
+        } else if (!text.equals(viewer.text) || now - viewer.sentAt >= ACTION_BAR_REFRESH_MILLIS) {
+            viewer.player.sendActionBar(Component.text(text));
+            viewer.sentAt = now;
+        }
+        viewer.text = text;
+    }
+    
+    /**
+     * Finds the flags nearest to a viewer in the viewer's world, leaving out any flag the viewer
+     * is carrying.
+     *
+     * @param viewerId The UUID of the viewer.
+     * @param location The location of the viewer.
+     * @param snapshot The flag positions to search.
+     * @return Up to the configured number of flags, nearest first.
+     */
+    private @NotNull FlagPosition @NotNull [] nearest(@NotNull UUID viewerId,
+                                                      @NotNull Location location,
+                                                      @NotNull List<FlagPosition> snapshot) {
+        String world = location.getWorld().getName();
+        FlagPosition[] nearest = new FlagPosition[settings.maxFlags()];
+        double[] distances = new double[nearest.length];
+        int count = 0;
+        for (FlagPosition position : snapshot) {
+            if (!position.world().equals(world) || position.entityId().equals(viewerId)) {
+                continue;
+            }
+            double distance = distanceSquared(location, position);
+            if (count == nearest.length && distance >= distances[count - 1]) {
+                continue;
+            }
+            // Insertion sort into the short list of nearest flags
+            int index = count < nearest.length ? count++ : count - 1;
+            while (index > 0 && distances[index - 1] > distance) {
+                nearest[index] = nearest[index - 1];
+                distances[index] = distances[index - 1];
+                index--;
+            }
+            nearest[index] = position;
+            distances[index] = distance;
+        }
+        return count == nearest.length ? nearest : Arrays.copyOf(nearest, count);
+    }
+    
+    /**
+     * Describes the direction and distance of flags relative to a viewer.
+     *
+     * @param location The location of the viewer.
+     * @param flags    The flags to describe, nearest first.
+     * @return The description.
+     */
+    private static @NotNull String describe(@NotNull Location location,
+                                            @NotNull FlagPosition @NotNull [] flags) {
+        if (flags.length == 0) {
+            return "No flags in this world";
+        }
+        StringBuilder text = new StringBuilder("Flags:");
+        for (FlagPosition flag : flags) {
+            double dx = flag.x() - location.getX();
+            double dz = flag.z() - location.getZ();
+            // Yaw 0 faces south and increases clockwise
+            double bearing = Math.toDegrees(Math.atan2(-dx, dz)) - location.getYaw();
+            int arrow = Math.floorMod(Math.round((float) (bearing / 45)), ARROWS.length);
+            long distance = Math.round(Math.sqrt(distanceSquared(location, flag)));
+            // Round far flags to 10 blocks, so walking does not change the text every block
+            if (distance >= 100) {
+                distance = Math.round(distance / 10.0) * 10;
+            }
+            text.append("  ").append(ARROWS[arrow]).append(' ').append(distance).append('m');
+        }
+        return text.toString();
+    }
+    
+    /**
+     * Gets the squared distance from a location to a flag.
+     *
+     * @param location The location.
+     * @param flag     The flag.
+     * @return The squared distance.
+     */
+    private static double distanceSquared(@NotNull Location location,
+                                          @NotNull FlagPosition flag) {
+        double dx = flag.x() - location.getX();
+        double dy = flag.y() - location.getY();
+        double dz = flag.z() - location.getZ();
+        return dx * dx + dy * dy + dz * dz;
+    }
+    
+    /**
+     * Stops showing the locator to a viewer.
+     *
+     * @param viewer The viewer.
+     */
+    private void hide(@NotNull Viewer viewer) {
+        if (viewer.bossBar != null) {
+            viewer.player.hideBossBar(viewer.bossBar);
+        }
+        if (settings.mode() == LocatorSettings.Mode.COMPASS) {
+            viewer.player.setCompassTarget(viewer.player.getWorld().getSpawnLocation());
+        }
+    }
+    
+    /**
+     * A player that has the locator turned on, and what they were last sent. Only used on the
+     * thread that owns the player.
+     */
+    private static final class Viewer {
+        /**
+         * The player.
+         */
+        private final @NotNull Player player;
+        /**
+         * The boss bar shown to the player, or null if none has been shown yet.
+         */
+        private @Nullable BossBar bossBar;
+        /**
+         * The text last shown to the player, or null if nothing has been shown yet.
+         */
+        private @Nullable String text;
+        /**
+         * When the action bar was last sent, in milliseconds since the epoch.
+         */
+        private long sentAt;
+        /**
+         * The block the player's compass was last pointed at, or null if it has not been set.
+         */
+        private @Nullable Location compassTarget;
+        
+        /**
+         * Create a new Viewer.
+         *
+         * @param player The player.
+         */
+        private Viewer(@NotNull Player player) {
+            this.player = player;
+        }
+    }
+}
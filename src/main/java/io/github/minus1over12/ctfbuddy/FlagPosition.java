@@ -0,0 +1,58 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.UUID;
+
+/**
+ * The last known position of a flag.
+ *
+ * @param entityId The UUID of the entity that is, or is holding, the flag.
+ * @param kind     How the entity relates to the flag.
+ * @param flagId   The id of the flag, or null if it is not known.
+ * @param world    The name of the world the entity was in.
+ * @param x        The x coordinate of the entity.
+ * @param y        The y coordinate of the entity.
+ * @param z        The z coordinate of the entity.
+ * @param time     When the entity was first seen at the position, in milliseconds since the epoch.
+ * @author War Pigeon
+ */
+record FlagPosition(@NotNull UUID entityId, @NotNull Kind kind, @Nullable UUID flagId,
+                    @NotNull String world, double x, double y, double z, long time) {
+    /**
+     * Gets the x coordinate of the chunk the entity was in.
+     *
+     * @return The chunk x coordinate.
+     */
+    int chunkX() {
+        return (int) Math.floor(x) >> 4;
+    }
+    
+    /**
+     * Gets the z coordinate of the chunk the entity was in.
+     *
+     * @return The chunk z coordinate.
+     */
+    int chunkZ() {
+        return (int) Math.floor(z) >> 4;
+    }
+    
+    /**
+     * How an entity relates to the flag.
+     */
+    enum Kind {
+        /**
+         * The entity is a dropped flag item.
+         */
+        ITEM,
+        /**
+         * The entity was made into a flag.
+         */
+        ENTITY,
+        /**
+         * The entity is wearing the flag.
+         */
+        CARRIER
+    }
+}
@@ -0,0 +1,238 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the last known position of every flag, whether it is an item on the ground, a marked
+ * entity, or an entity wearing the flag. Positions are refreshed on the thread that owns each
+ * entity, and are kept after the entity unloads so a flag in an unloaded chunk can still be found.
+ *
+ * @author War Pigeon
+ */
+final class FlagPositions {
+    /**
+     * Reference to the plugin class. Needed for scheduling tasks.
+     */
+    private final @NotNull Plugin plugin;
+    /**
+     * Loaded flag entities, keyed by UUID. Entities leave this map when they unload.
+     */
+    private final Map<UUID, Entity> live = new ConcurrentHashMap<>();
+    /**
+     * The last known position of every flag, keyed by the UUID of the entity holding it.
+     */
+    private final Map<UUID, FlagPosition> positions = new ConcurrentHashMap<>();
+    /**
+     * Read-only view of the last known positions.
+     */
+    private final Collection<FlagPosition> positionsView =
+            Collections.unmodifiableCollection(positions.values());
+    /**
+     * Counts changes to the positions, so readers can tell when a copy is out of date.
+     */
+    private final AtomicLong version = new AtomicLong();
+    
+    /**
+     * Create a new FlagPositions.
+     *
+     * @param plugin The plugin to schedule tasks for.
+     */
+    FlagPositions(@NotNull Plugin plugin) {
+        this.plugin = plugin;
+    }
+    
+    /**
+     * Starts tracking the position of a flag. Must run on the thread that owns the entity.
+     *
+     * @param entity The entity that is, or is holding, the flag.
+     * @param kind   How the entity relates to the flag.
+     * @param flagId The id of the flag, or null if it is not known.
+     */
+    void track(@NotNull Entity entity, @NotNull FlagPosition.Kind kind, @Nullable UUID flagId) {
+        live.put(entity.getUniqueId(), entity);
+        update(entity, kind, flagId);
+    }
+    
+    /**
+     * Stops tracking a flag, such as when the item is picked up or the carrier dies.
+     *
+     * @param entityId The UUID of the entity that was, or was holding, the flag.
+     */
+    void untrack(@NotNull UUID entityId) {
+        live.remove(entityId);
+        if (positions.remove(entityId) != null) {
+            version.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Records the final position of a flag entity that is unloading. The position is kept, but
+     * is no longer refreshed until the entity loads again. Must run on the thread that owns the
+     * entity.
+     *
+     * @param entity The entity that is unloading.
+     */
+    void unload(@NotNull Entity entity) {
+        UUID entityId = entity.getUniqueId();
+        FlagPosition previous = positions.get(entityId);
+        if (previous != null) {
+            update(entity, previous.kind(), previous.flagId());
+        }
+        live.remove(entityId);
+    }
+    
+    /**
+     * Restores a position read from a checkpoint. The entity is not loaded, so the position will
+     * not be refreshed until the entity is tracked again, and is untracked if its chunk loads
+     * without it.
+     *
+     * @param position The position to restore.
+     */
+    void restore(@NotNull FlagPosition position) {
+        if (positions.putIfAbsent(position.entityId(), position) == null) {
+            version.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Check if a flag entity is loaded and having its position refreshed. Safe to call from any
+     * thread.
+     *
+     * @param entityId The UUID of the entity.
+     * @return True if the entity is tracked and loaded, false otherwise.
+     */
+    boolean isLive(@NotNull UUID entityId) {
+        return live.containsKey(entityId);
+    }
+    
+    /**
+     * Gets the last known position of a flag.
+     *
+     * @param entityId The UUID of the entity that is, or is holding, the flag.
+     * @return The last known position, or null if the flag is not tracked.
+     */
+    @Nullable FlagPosition getPosition(@NotNull UUID entityId) {
+        return positions.get(entityId);
+    }
+    
+    /**
+     * Check if any flag was last seen in a chunk. This costs one check per tracked flag, however
+     * many other entities the chunk holds. Safe to call from any thread.
+     *
+     * @param world  The name of the world.
+     * @param chunkX The x coordinate of the chunk.
+     * @param chunkZ The z coordinate of the chunk.
+     * @param except The UUID of an entity to leave out, such as a flag item just picked up.
+     * @return True if a flag other than the one left out was last seen in the chunk.
+     */
+    boolean anyInChunk(@NotNull String world, int chunkX, int chunkZ, @NotNull UUID except) {
+        for (FlagPosition position : positions.values()) {
+            if (position.chunkX() == chunkX && position.chunkZ() == chunkZ &&
+                    position.world().equals(world) && !position.entityId().equals(except)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Gets the last known position of every flag. Safe to read from any thread.
+     *
+     * @return A live, read-only view of the positions.
+     */
+    @NotNull Collection<FlagPosition> getPositions() {
+        return positionsView;
+    }
+    
+    /**
+     * Gets the number of changes made to the positions so far. Safe to call from any thread.
+     *
+     * @return A number that changes every time a position is added, moved or removed.
+     */
+    long getVersion() {
+        return version.get();
+    }
+    
+    /**
+     * Gets the loaded flag entities. The entities must only be used through their schedulers.
+     *
+     * @return A live, read-only view of the loaded flag entities.
+     */
+    @NotNull Collection<Entity> getLiveEntities() {
+        return Collections.unmodifiableCollection(live.values());
+    }
+    
+    /**
+     * Refreshes the position of every loaded flag on the thread that owns it. Entities that have
+     * unloaded keep their last known position.
+     */
+    void sample() {
+        live.forEach((entityId, entity) -> {
+            if (entity.getScheduler().run(plugin, task -> refresh(entityId, entity),
+                    () -> live.remove(entityId, entity)) == null) {
+                live.remove(entityId, entity);
+            }
+        });
+    }
+    
+    /**
+     * Refreshes the position of a flag right away, such as when its carrier moves. Must run on the
+     * thread that owns the entity.
+     *
+     * @param entity The entity that is, or is holding, the flag.
+     */
+    void refresh(@NotNull Entity entity) {
+        refresh(entity.getUniqueId(), entity);
+    }
+    
+    /**
+     * Refreshes the position of a single flag, if it is still tracked.
+     *
+     * @param entityId The UUID of the entity.
+     * @param entity   The entity.
+     */
+    private void refresh(@NotNull UUID entityId, @NotNull Entity entity) {
+        FlagPosition previous = positions.get(entityId);
+        if (previous != null && live.get(entityId) == entity) {
+            update(entity, previous.kind(), previous.flagId());
+        }
+    }
+    
+    /**
+     * Records the current position of an entity. Nothing changes if the entity has not moved, so
+     * readers do not copy the positions again for a flag that is sitting still.
+     *
+     * @param entity The entity.
+     * @param kind   How the entity relates to the flag.
+     * @param flagId The id of the flag, or null if it is not known.
+     */
+    private void update(@NotNull Entity entity, @NotNull FlagPosition.Kind kind,
+                        @Nullable UUID flagId) {
+        UUID entityId = entity.getUniqueId();
+        Location location = entity.getLocation();
+        String world = location.getWorld().getName();
+        FlagPosition previous = positions.get(entityId);
+        if (previous != null && previous.kind() == kind &&
+                Objects.equals(previous.flagId(), flagId) && previous.world().equals(world) &&
+                previous.x() == location.getX() && previous.y() == location.getY() &&
+                previous.z() == location.getZ()) {
+            return;
+        }
+        positions.put(entityId,
+                new FlagPosition(entityId, kind, flagId, world, location.getX(), location.getY(),
+                        location.getZ(), System.currentTimeMillis()));
+        version.incrementAndGet();
+    }
+}
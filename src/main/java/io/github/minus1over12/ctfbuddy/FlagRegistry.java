@@ -0,0 +1,261 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory index of flag identities. Event handlers probe this instead of cloning ItemMeta to
+ * read the PersistentDataContainer, so the common non-flag case is a single hash lookup. The
+ * PersistentDataContainer remains the source of truth across restarts; this registry is rebuilt
+ * from it as entities load.
+ *
+ * @author War Pigeon
+ */
+final class FlagRegistry {
+    /**
+     * Placeholder id for flag items whose id has not been read from their meta yet.
+     */
+    private static final UUID PENDING_FLAG_ID = new UUID(0, 0);
+    
+    /**
+     * Item entities that are currently known to be flags, mapped to the id of the flag they hold.
+     */
+    private final Map<UUID, UUID> flagIdsByItem = new ConcurrentHashMap<>();
+    
+    /**
+     * Ids of every flag item seen since the plugin was enabled.
+     */
+    private final Set<UUID> flagIds = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * Entities that are currently wearing a flag as their helmet.
+     */
+    private final Set<UUID> carriers = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * Entities that have been marked as flags themselves.
+     */
+    private final Set<UUID> flagEntities = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * Number of entries across the flag item, carrier and flag entity indexes.
+     */
+    private final AtomicInteger trackedCount = new AtomicInteger();
+    
+    /**
+     * Called when the registry goes from empty to holding a flag, or back to empty.
+     */
+    private volatile @Nullable Runnable occupancyListener;
+    
+    /**
+     * Sets the callback for when the registry goes from empty to holding a flag, or back to
+     * empty. The callback may run on any thread, and may see the registry change again before it
+     * runs, so it should check {@link #isEmpty()} rather than assume a direction.
+     *
+     * @param occupancyListener The callback, or null for none.
+     */
+    void setOccupancyListener(@Nullable Runnable occupancyListener) {
+        this.occupancyListener = occupancyListener;
+    }
+    
+    /**
+     * Check if the registry holds no flag items, flag entities or flag carriers.
+     *
+     * @return True if nothing is tracked, false otherwise.
+     */
+    boolean isEmpty() {
+        return trackedCount.get() == 0;
+    }
+    
+    /**
+     * Updates the tracked count after an entry is added or removed, and notifies the occupancy
+     * listener if the registry became empty or stopped being empty.
+     *
+     * @param delta 1 if an entry was added, -1 if one was removed.
+     */
+    private void changeTracked(int delta) {
+        int count = trackedCount.addAndGet(delta);
+        Runnable listener = occupancyListener;
+        if (listener != null && (delta > 0 ? count == 1 : count == 0)) {
+            listener.run();
+        }
+    }
+    
+    /**
+     * Check if an item entity is a known flag.
+     *
+     * @param itemEntityId The UUID of the item entity.
+     * @return True if the item entity is holding a flag, false otherwise.
+     */
+    boolean isFlagItem(@NotNull UUID itemEntityId) {
+        return flagIdsByItem.containsKey(itemEntityId);
+    }
+    
+    /**
+     * Records that an item entity is holding a flag.
+     *
+     * @param itemEntityId The UUID of the item entity.
+     * @param flagId       The id of the flag the item entity is holding.
+     */
+    void registerFlagItem(@NotNull UUID itemEntityId, @NotNull UUID flagId) {
+        if (flagIdsByItem.put(itemEntityId, flagId) == null) {
+            changeTracked(1);
+        }
+        flagIds.add(flagId);
+    }
+    
+    /**
+     * Records that an item entity is holding a flag whose id has not been read yet. The item is
+     * treated as a flag right away; its id can be filled in later with
+     * {@link #registerFlagItem(UUID, UUID)}.
+     *
+     * @param itemEntityId The UUID of the item entity.
+     */
+    void registerPendingFlagItem(@NotNull UUID itemEntityId) {
+        if (flagIdsByItem.putIfAbsent(itemEntityId, PENDING_FLAG_ID) == null) {
+            changeTracked(1);
+        }
+    }
+    
+    /**
+     * Removes an item entity from the registry, such as when it gets picked up.
+     *
+     * @param itemEntityId The UUID of the item entity.
+     * @return The id of the flag the item entity was holding, or null if it was not a flag or
+     * its id was not known yet.
+     */
+    @Nullable UUID unregisterFlagItem(@NotNull UUID itemEntityId) {
+        UUID flagId = flagIdsByItem.remove(itemEntityId);
+        if (flagId != null) {
+            changeTracked(-1);
+        }
+        return PENDING_FLAG_ID.equals(flagId) ? null : flagId;
+    }
+    
+    /**
+     * Gets the id of the flag an item entity is holding.
+     *
+     * @param itemEntityId The UUID of the item entity.
+     * @return The id of the flag, or null if the item entity is not a known flag or its id is not
+     * known yet.
+     */
+    @Nullable UUID getFlagId(@NotNull UUID itemEntityId) {
+        UUID flagId = flagIdsByItem.get(itemEntityId);
+        return PENDING_FLAG_ID.equals(flagId) ? null : flagId;
+    }
+    
+    /**
+     * Records the id of a flag item.
+     *
+     * @param flagId The id of the flag.
+     */
+    void registerFlagId(@NotNull UUID flagId) {
+        flagIds.add(flagId);
+    }
+    
+    /**
+     * Check if a flag id has been seen since the plugin was enabled.
+     *
+     * @param flagId The id of the flag.
+     * @return True if the flag id is known, false otherwise.
+     */
+    boolean isKnownFlagId(@NotNull UUID flagId) {
+        return flagIds.contains(flagId);
+    }
+    
+    /**
+     * Gets the number of item entities currently known to be flags.
+     *
+     * @return The number of flag item entities.
+     */
+    int getFlagItemCount() {
+        return flagIdsByItem.size();
+    }
+    
+    /**
+     * Check if an entity is a flag item, a flag entity, or a flag carrier.
+     *
+     * @param entityId The UUID of the entity.
+     * @return True if the entity is tracked in any role, false otherwise.
+     */
+    boolean isTracked(@NotNull UUID entityId) {
+        return flagIdsByItem.containsKey(entityId) || flagEntities.contains(entityId) ||
+                carriers.contains(entityId);
+    }
+    
+    /**
+     * Check if an entity is currently wearing a flag.
+     *
+     * @param entityId The UUID of the entity.
+     * @return True if the entity is a flag carrier, false otherwise.
+     */
+    boolean isCarrier(@NotNull UUID entityId) {
+        return carriers.contains(entityId);
+    }
+    
+    /**
+     * Records that an entity is wearing a flag.
+     *
+     * @param entityId The UUID of the entity.
+     */
+    void registerCarrier(@NotNull UUID entityId) {
+        if (carriers.add(entityId)) {
+            changeTracked(1);
+        }
+    }
+    
+    /**
+     * Records that an entity is no longer wearing a flag.
+     *
+     * @param entityId The UUID of the entity.
+     * @return True if the entity was a flag carrier, false otherwise.
+     */
+    boolean unregisterCarrier(@NotNull UUID entityId) {
+        if (carriers.remove(entityId)) {
+            changeTracked(-1);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Check if an entity is marked as a flag.
+     *
+     * @param entityId The UUID of the entity.
+     * @return True if the entity is a flag entity, false otherwise.
+     */
+    boolean isFlagEntity(@NotNull UUID entityId) {
+        return flagEntities.contains(entityId);
+    }
+    
+    /**
+     * Records that an entity is marked as a flag.
+     *
+     * @param entityId The UUID of the entity.
+     */
+    void registerFlagEntity(@NotNull UUID entityId) {
+        if (flagEntities.add(entityId)) {
+            changeTracked(1);
+        }
+    }
+    
+    /**
+     * Records that an entity is no longer a flag, such as when it dies.
+     *
+     * @param entityId The UUID of the entity.
+     * @return True if the entity was a flag entity, false otherwise.
+     */
+    boolean unregisterFlagEntity(@NotNull UUID entityId) {
+        if (flagEntities.remove(entityId)) {
+            changeTracked(-1);
+            return true;
+        }
+        return false;
+    }
+}
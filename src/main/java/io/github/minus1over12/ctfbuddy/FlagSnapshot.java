@@ -0,0 +1,56 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * An immutable copy of the state of every flag at one point in time. Snapshots hold no Bukkit
+ * entities, so they can be read from any thread.
+ *
+ * @param version     The version of the flag positions the snapshot was taken from.
+ * @param publishedAt When the snapshot was taken, in milliseconds since the epoch.
+ * @param flags       The state of every flag. Each entry holds the UUID of the entity that is,
+ *                    or is holding, the flag, whether it is on the ground, an entity, or carried,
+ *                    where it was last seen, and when.
+ * @param byEntity    The same entries, keyed by the UUID of the entity that is, or is holding,
+ *                    the flag.
+ * @author War Pigeon
+ */
+record FlagSnapshot(long version, long publishedAt, @NotNull List<FlagPosition> flags,
+                    @NotNull Map<UUID, FlagPosition> byEntity) {
+    /**
+     * A snapshot with no flags, used before the first one is published.
+     */
+    static final FlagSnapshot EMPTY = new FlagSnapshot(-1, 0, List.of(), Map.of());
+    
+    /**
+     * Takes a snapshot of flag positions.
+     *
+     * @param version   The version of the positions.
+     * @param positions The positions to copy.
+     * @return The snapshot.
+     */
+    static @NotNull FlagSnapshot of(long version, @NotNull Iterable<FlagPosition> positions) {
+        Map<UUID, FlagPosition> byEntity = new HashMap<>();
+        for (FlagPosition position : positions) {
+            byEntity.put(position.entityId(), position);
+        }
+        return new FlagSnapshot(version, System.currentTimeMillis(),
+                List.copyOf(byEntity.values()), Map.copyOf(byEntity));
+    }
+    
+    /**
+     * Gets the state of a flag.
+     *
+     * @param entityId The UUID of the entity that is, or is holding, the flag.
+     * @return The state of the flag, or null if the entity is not a flag.
+     */
+    @Nullable FlagPosition get(@NotNull UUID entityId) {
+        return byEntity.get(entityId);
+    }
+}
@@ -0,0 +1,85 @@
+package io.github.minus1over12.ctfbuddy;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Publishes an immutable {@link FlagSnapshot} at most once per tick, and only when a flag has
+ * changed since the last one. Readers on any thread get the latest snapshot with a single volatile
+ * read, and never touch a live entity.
+ *
+ * @author War Pigeon
+ */
+final class FlagSnapshotPublisher {
+    /**
+     * Reference to the plugin class. Needed for scheduling tasks.
+     */
+    private final @NotNull Plugin plugin;
+    /**
+     * The positions to take snapshots of.
+     */
+    private final @NotNull FlagPositions positions;
+    /**
+     * The latest snapshot.
+     */
+    private volatile @NotNull FlagSnapshot snapshot = FlagSnapshot.EMPTY;
+    /**
+     * The task publishing snapshots, or null if the publisher is not running.
+     */
+    private @Nullable ScheduledTask task;
+    
+    /**
+     * Create a new FlagSnapshotPublisher.
+     *
+     * @param plugin    The plugin to schedule tasks for.
+     * @param positions The positions to take snapshots of.
+     */
+    FlagSnapshotPublisher(@NotNull Plugin plugin, @NotNull FlagPositions positions) {
+        this.plugin = plugin;
+        this.positions = positions;
+    }
+    
+    /**
+     * Starts publishing snapshots every tick.
+     */
+    synchronized void start() {
+        if (task == null) {
+            publish();
+            task = Bukkit.getGlobalRegionScheduler()
+                    .runAtFixedRate(plugin, scheduledTask -> publish(), 1, 1);
+        }
+    }
+    
+    /**
+     * Stops publishing snapshots. The last snapshot stays readable.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+    
+    /**
+     * Publishes a new snapshot if any flag has changed since the last one.
+     */
+    private void publish() {
+        long version = positions.getVersion();
+        if (version != snapshot.version()) {
+            // Read the version first, so a change made while copying is picked up next tick
+            snapshot = FlagSnapshot.of(version, positions.getPositions());
+        }
+    }
+    
+    /**
+     * Gets the latest snapshot. Safe to call from any thread.
+     *
+     * @return The latest snapshot.
+     */
+    @NotNull FlagSnapshot getSnapshot() {
+        return snapshot;
+    }
+}
@@ -1,14 +1,13 @@
 package io.github.minus1over12.ctfbuddy;
 
-import io.papermc.paper.util.Tick;
-import net.kyori.adventure.audience.Audience;
 import net.kyori.adventure.key.Key;
 import net.kyori.adventure.sound.Sound;
 import net.kyori.adventure.sound.SoundStop;
 import net.kyori.adventure.text.Component;
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
 import org.bukkit.NamespacedKey;
-import org.bukkit.Particle;
 import org.bukkit.PortalType;
 import org.bukkit.SoundCategory;
 import org.bukkit.World;
@@ -16,46 +15,67 @@ import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.enchantments.Enchantment;
 import org.bukkit.entity.Creeper;
 import org.bukkit.entity.Entity;
+import org.bukkit.entity.HumanEntity;
 import org.bukkit.entity.Item;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
 import org.bukkit.event.entity.EntityDeathEvent;
 import org.bukkit.event.entity.EntityPickupItemEvent;
 import org.bukkit.event.entity.EntityPortalEvent;
-import org.bukkit.event.entity.EntitySpawnEvent;
+import org.bukkit.event.entity.EntityRemoveEvent;
+import org.bukkit.event.entity.ItemSpawnEvent;
 import org.bukkit.event.entity.EntityTargetLivingEntityEvent;
 import org.bukkit.event.entity.EntityTransformEvent;
 import org.bukkit.event.entity.ItemDespawnEvent;
 import org.bukkit.event.inventory.InventoryPickupItemEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
 import org.bukkit.event.player.PlayerPortalEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.world.EntitiesLoadEvent;
+import org.bukkit.event.world.EntitiesUnloadEvent;
 import org.bukkit.event.world.WorldLoadEvent;
 import org.bukkit.inventory.EntityEquipment;
 import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemRarity;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.persistence.PersistentDataContainer;
 import org.bukkit.persistence.PersistentDataHolder;
 import org.bukkit.persistence.PersistentDataType;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scoreboard.Team;
+import org.bukkit.util.Vector;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * A class that tracks the flag item in the player's inventory.
+ * A class that tracks the flag item in the player's inventory. The handlers registered here stay
+ * registered at all times so flags can be discovered; the handlers that only matter while a flag
+ * exists are registered through {@link ActiveFlagListener} as needed.
  *
  * @author War Pigeon
  */
@@ -65,44 +85,163 @@ public class FlagTracker implements Listener {
      */
     private static final String ENTITY_ALLAY_ITEM_GIVEN = "entity.allay.item_given";
     /**
-     * String used in messages about flag being picked up by an entity.
+     * Reused location for reading where journaled events happen, one per thread.
      */
-    private static final String FLAG_PICKED_UP_BY = "Flag picked up by ";
+    private static final ThreadLocal<Location> JOURNAL_LOCATION =
+            ThreadLocal.withInitial(() -> new Location(null, 0, 0, 0));
     /**
      * Music played when a flag is picked up.
      */
     private static final String FLAG_MUSIC = "music.dragon";
+    /**
+     * How long to wait for an unloaded entity to load before giving up on making it a flag.
+     */
+    private static final long PENDING_TRACK_TIMEOUT_SECONDS = 30;
     /**
      * The key used to identify the flag item.
      */
     private final @NotNull NamespacedKey isFlagKey;
     /**
-     * Logger provided by Bukkit.
+     * The key used to store the id of a flag item.
      */
-    private final @NotNull Logger logger;
+    private final @NotNull NamespacedKey flagIdKey;
+    /**
+     * The key used to store the name of the team a flag item belongs to.
+     */
+    private final @NotNull NamespacedKey flagTeamKey;
+    /**
+     * The key used to mark chunks by whether they hold a flag. Chunks without the key have not
+     * been indexed yet.
+     */
+    private final @NotNull NamespacedKey flagChunkKey;
     /**
-     * Indicates if flags are allowed to travel to the end. Flags in the end can be destroyed by the
-     * void.
+     * The key used to mark entities that are wearing a flag.
      */
-    private final boolean allowEnd;
+    private final @NotNull NamespacedKey carrierKey;
     /**
-     * The action to use when a player quits with the flag.
+     * Logger provided by Bukkit.
+     */
+    private final @NotNull Logger logger;
+    /**
+     * The settings that can be changed by a reload. Read once per handler, so a reload midway
+     * through a handler does not mix old and new settings.
      */
-    private final @NotNull QuitMode quitMode;
+    private volatile @NotNull TrackerSettings settings;
     /**
      * Reference to the plugin class. Needed for scheduling tasks.
      */
     private final @NotNull Plugin plugin;
     
     /**
-     * Toggles use of firework "beacons" every minute.
+     * In-memory index of flag identities, used to avoid reading ItemMeta in hot handlers.
+     */
+    private final FlagRegistry registry = new FlagRegistry();
+    
+    /**
+     * Fires the particle beacons for all flags on a shared cadence.
+     */
+    private final @NotNull BeaconService beaconService;
+    
+    /**
+     * Scans loaded entities for flags without blocking the owning thread on the filtering.
+     */
+    private final @NotNull EntityScanPipeline scanPipeline;
+    
+    /**
+     * Journal that flag events are written to.
+     */
+    private final @NotNull FlagJournal journal;
+    
+    /**
+     * Last known positions of every flag.
+     */
+    private final @NotNull FlagPositions positions;
+    
+    /**
+     * Periodically saves flag positions so they can be recovered after a restart.
+     */
+    private final @NotNull FlagCheckpoint checkpoint;
+    
+    /**
+     * Counts and times every handler and beacon task.
+     */
+    private final HandlerStats stats = new HandlerStats();
+    
+    /**
+     * Listener for the handlers that only matter while a flag exists.
+     */
+    private final @NotNull ActiveFlagListener activeListener = new ActiveFlagListener(this);
+    
+    /**
+     * Whether {@link #activeListener} is currently registered. Guarded by the listener.
+     */
+    private boolean activeListenerRegistered;
+    
+    /**
+     * Returns flags stuck in hazards to their arena's return point.
      */
-    private final boolean particleBeacon;
+    private final @NotNull FlagWatchdog watchdog;
     
     /**
-     * A set of entities that are known to be flags.
+     * Runs sounds, music and action bars outside the events that cause them.
      */
-    private final Set<Entity> knownFlagEntities = new CopyOnWriteArraySet<>();
+    private final @NotNull CosmeticExecutor cosmetics;
+    
+    /**
+     * The game state of each arena, keyed by arena name. Arenas are added and removed by reloads.
+     */
+    private final Map<String, ArenaState> arenaStates = new ConcurrentHashMap<>();
+    
+    /**
+     * The capture zone each flag carrier is standing in, keyed by carrier UUID.
+     */
+    private final Map<UUID, CaptureZone> carrierZones = new ConcurrentHashMap<>();
+    
+    /**
+     * Filters and coalesces the moves of flag carriers for capture checks and position updates.
+     */
+    private final @NotNull CarrierMovement carrierMovement;
+    
+    /**
+     * Publishes an immutable copy of every flag's state for readers on other threads.
+     */
+    private final @NotNull FlagSnapshotPublisher snapshots;
+    
+    /**
+     * Keeps the chunks holding flags loaded, if turned on in the config.
+     */
+    private final @NotNull FlagChunkTickets chunkTickets;
+    
+    /**
+     * Makes the flags listed in match files, for {@code /makeflag load}.
+     */
+    private final @NotNull MatchProvisioner provisioner;
+    
+    /**
+     * Records where every flag travels.
+     */
+    private final @NotNull TrailRecorder trails;
+    
+    /**
+     * Serves flag state and events over HTTP, or null if the web server is turned off.
+     */
+    private final @Nullable FlagWebServer webServer;
+    
+    /**
+     * Shows players the direction and distance of the nearest flags.
+     */
+    private final @NotNull FlagLocator locator;
+    
+    /**
+     * Entities waiting for their chunk to load before they are made into flags, keyed by UUID.
+     */
+    private final Map<UUID, CompletableFuture<Entity>> pendingTracks = new ConcurrentHashMap<>();
+    
+    /**
+     * Flags restored from the checkpoint that have not been seen since, keyed by the chunk they
+     * were saved in. They are dropped if that chunk's entities load without them.
+     */
+    private final Map<String, List<FlagPosition>> unconfirmedRestores = new ConcurrentHashMap<>();
     
     /**
      * Create a new FlagTracker.
@@ -110,15 +249,118 @@ public class FlagTracker implements Listener {
      * @param plugin The plugin that this FlagTracker is associated with.
      */
     protected FlagTracker(@NotNull JavaPlugin plugin) {
+        this(plugin, null);
+    }
+    
+    /**
+     * Create a new FlagTracker that filters entity scans on the given executor.
+     *
+     * @param plugin       The plugin that this FlagTracker is associated with.
+     * @param scanExecutor Runs the filter stage of entity scans, or null to use a dedicated
+     *                     thread.
+     */
+    FlagTracker(@NotNull JavaPlugin plugin, @Nullable Executor scanExecutor) {
         this.isFlagKey = new NamespacedKey(plugin, "flag");
+        this.flagIdKey = new NamespacedKey(plugin, "flag_id");
+        this.flagTeamKey = new NamespacedKey(plugin, "flag_team");
+        this.flagChunkKey = new NamespacedKey(plugin, "flag_chunk");
+        this.carrierKey = new NamespacedKey(plugin, "flag_carrier");
         logger = plugin.getLogger();
         FileConfiguration config = plugin.getConfig();
-        allowEnd = config.getBoolean("allowEnd");
-        particleBeacon = config.getBoolean("useParticleBeacon");
-        quitMode = QuitMode.valueOf(config.getString("quitMode", "DROP").trim().toUpperCase());
+        settings = TrackerSettings.fromConfig(config, logger);
         this.plugin = plugin;
-        if (particleBeacon) {
-            Bukkit.getWorlds().forEach(world -> processPotentialFlagEntities(world.getEntities()));
+        syncArenaStates(settings);
+        cosmetics = new CosmeticExecutor(plugin, stats,
+                Math.max(1, config.getLong("cosmeticBudgetMicros", 500)),
+                Math.max(1, config.getInt("cosmeticQueueSize", 4096)));
+        cosmetics.start();
+        beaconService =
+                new BeaconService(plugin, registry, stats, settings.beacon(), this::hasBeacon);
+        if (settings.arenas().anyBeacons()) {
+            beaconService.start();
+        }
+        journal = new FlagJournal(plugin.getDataFolder().toPath().resolve("journal"), 4096,
+                Math.max(1, config.getLong("journalRotateMegabytes", 16)) * 1024 * 1024, logger,
+                config.getBoolean("journalToConsole", true) ? logger : null);
+        scanPipeline = scanExecutor == null ?
+                new EntityScanPipeline(plugin, this::readFlagRoles, this::needsFlagSetup,
+                        this::applyFlagSetup) :
+                new EntityScanPipeline(plugin, this::readFlagRoles, this::needsFlagSetup,
+                        this::applyFlagSetup, scanExecutor);
+        positions = new FlagPositions(plugin);
+        carrierMovement = new CarrierMovement(plugin, registry);
+        carrierMovement.addConsumer((carrier, to) -> positions.refresh(carrier));
+        carrierMovement.addConsumer(this::checkCapture);
+        snapshots = new FlagSnapshotPublisher(plugin, positions);
+        snapshots.start();
+        locator = new FlagLocator(plugin, snapshots, LocatorSettings.fromConfig(config));
+        locator.start();
+        webServer = config.getBoolean("webServer") ? startWebServer(config) : null;
+        chunkTickets = new FlagChunkTickets(plugin, snapshots,
+                Math.max(1, config.getInt("maxFlagChunkTickets", 64)),
+                TimeUnit.SECONDS.toMillis(
+                        Math.max(0, config.getInt("flagChunkTicketGraceSeconds", 30))));
+        if (settings.keepFlagChunksLoaded()) {
+            chunkTickets.start();
+        }
+        provisioner = new MatchProvisioner(plugin, this,
+                plugin.getDataFolder().toPath().resolve("matches"),
+                Math.max(1, config.getLong("matchLoadBudgetMicros", 1000)));
+        watchdog = new FlagWatchdog(plugin, snapshots, this::arenaOf, this::returnFlag,
+                stats, TimeUnit.SECONDS.toMillis(
+                        Math.max(0, config.getInt("hazardGraceSeconds", 15))));
+        int hazardCheckSeconds = config.getInt("hazardCheckSeconds", 5);
+        if (hazardCheckSeconds > 0) {
+            watchdog.start(Duration.ofSeconds(hazardCheckSeconds));
+        }
+        trails = new TrailRecorder(plugin, positions, snapshots,
+                plugin.getDataFolder().toPath().resolve("trails"),
+                Math.max(2, config.getInt("trailMaxSamples", 3600)),
+                Math.max(1, config.getInt("trailMaxFlags", 64)));
+        int trailSampleSeconds = config.getInt("trailSampleSeconds", 1);
+        if (trailSampleSeconds > 0) {
+            trails.start(Duration.ofSeconds(trailSampleSeconds));
+        }
+        Path checkpointFile = plugin.getDataFolder().toPath().resolve(FlagCheckpoint.FILE_NAME);
+        checkpoint = new FlagCheckpoint(plugin, positions, checkpointFile, logger);
+        registry.setOccupancyListener(this::updateActiveListener);
+        restoreCheckpoint(FlagCheckpoint.load(checkpointFile, logger));
+        checkpoint.start(
+                Duration.ofSeconds(Math.max(5, config.getInt("checkpointIntervalSeconds", 30))));
+        Bukkit.getWorlds().forEach(this::processLoadedChunks);
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            player.getScheduler().run(plugin, task -> findCarrier(player), null);
+        }
+    }
+    
+    /**
+     * Starts the web server for stream overlays and live maps.
+     *
+     * @param config The plugin config.
+     * @return The web server, or null if it could not be started.
+     */
+    private @Nullable FlagWebServer startWebServer(@NotNull FileConfiguration config) {
+        InetSocketAddress address =
+                new InetSocketAddress(config.getString("webServerAddress", "127.0.0.1"),
+                        config.getInt("webServerPort", 8765));
+        String token = config.getString("webServerToken", "");
+        if (token.isEmpty() && !FlagWebServer.isLoopback(address)) {
+            logger.warning("Not starting the web server on " + address +
+                    ", since it is not a loopback address and webServerToken is not set");
+            return null;
+        }
+        String allowedOrigin = config.getString("webServerAllowedOrigin", "");
+        try {
+            FlagWebServer server = new FlagWebServer(snapshots, address,
+                    token.isEmpty() ? null : token, allowedOrigin.isEmpty() ? null : allowedOrigin);
+            journal.setSubscriber(server::publishEvent);
+            server.start();
+            logger.info("Serving flag state on http://" + address.getHostString() + ":" +
+                    address.getPort() + "/flags");
+            return server;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not start the web server on " + address, e);
+            return null;
         }
     }
     
@@ -134,39 +376,91 @@ public class FlagTracker implements Listener {
     }
     
     /**
-     * Prevents hoppers from picking up a flag.
+     * Check if an item stack is the flag item. Stacks without any meta are rejected without
+     * cloning ItemMeta, since a flag always carries its tracking data in its meta.
+     *
+     * @param item The item stack to check.
+     * @return True if the item stack is the flag item, false otherwise.
+     */
+    private boolean isFlag(@NotNull ItemStack item) {
+        return item.hasItemMeta() && isFlag(item.getItemMeta());
+    }
+    
+    /**
+     * Reads the flag id from an item's meta.
+     *
+     * @param meta The meta of the flag item.
+     * @return The id of the flag, or null if the flag predates flag ids.
+     */
+    private @Nullable UUID getFlagId(@NotNull PersistentDataHolder meta) {
+        String flagId = meta.getPersistentDataContainer().get(flagIdKey, PersistentDataType.STRING);
+        return flagId == null ? null : UUID.fromString(flagId);
+    }
+    
+    /**
+     * Adds a flag item entity to the registry, assigning a flag id to the item if it does not
+     * have one yet.
+     *
+     * @param item The flag item entity.
+     */
+    private void registerFlagItem(@NotNull Item item) {
+        ItemStack itemStack = item.getItemStack();
+        ItemMeta meta = itemStack.getItemMeta();
+        UUID flagId = getFlagId(meta);
+        if (flagId == null) {
+            flagId = UUID.randomUUID();
+            meta.getPersistentDataContainer()
+                    .set(flagIdKey, PersistentDataType.STRING, flagId.toString());
+            itemStack.setItemMeta(meta);
+            item.setItemStack(itemStack);
+        }
+        registry.registerFlagItem(item.getUniqueId(), flagId);
+    }
+    
+    /**
+     * Prevents hoppers from picking up a flag. Called by {@link ActiveFlagListener}.
      *
      * @param event The event that triggered this method.
      */
-    @EventHandler
     public void onInventoryPickupItem(@NotNull InventoryPickupItemEvent event) {
-        if (isFlag(event.getItem().getItemStack().getItemMeta())) {
+        long start = System.nanoTime();
+        Item item = event.getItem();
+        boolean hit = settings.arenas().covers(item.getWorld()) &&
+                registry.isFlagItem(item.getUniqueId());
+        if (hit) {
             event.setCancelled(true);
         }
+        stats.record(HandlerStats.Probe.INVENTORY_PICKUP_ITEM, start, hit);
     }
     
     /**
-     * Prevents the flag from despawning.
+     * Prevents the flag from despawning. Called by {@link ActiveFlagListener}.
      *
      * @param event The event that triggered this method.
      */
-    @EventHandler
     public void stopDespawn(@NotNull ItemDespawnEvent event) {
-        if (isFlag(event.getEntity().getItemStack().getItemMeta())) {
+        long start = System.nanoTime();
+        Item item = event.getEntity();
+        boolean hit = settings.arenas().covers(item.getWorld()) &&
+                registry.isFlagItem(item.getUniqueId());
+        if (hit) {
             event.setCancelled(true);
         }
+        stats.record(HandlerStats.Probe.ITEM_DESPAWN, start, hit);
     }
     
     /**
      * Moves the flag to the helmet as a visual indicator, and to give the flag bearer a harder
-     * challenge; also makes them glow for visibility.
+     * challenge; also makes them glow for visibility. Called by {@link ActiveFlagListener}.
      *
      * @param event The event that triggered this method.
      */
-    @EventHandler
     public void onEntityPickupItem(@NotNull EntityPickupItemEvent event) {
+        long start = System.nanoTime();
         Item pickedUpItem = event.getItem();
-        if (isFlag(pickedUpItem.getItemStack().getItemMeta())) {
+        boolean hit = settings.arenas().covers(pickedUpItem.getWorld()) &&
+                registry.isFlagItem(pickedUpItem.getUniqueId());
+        if (hit) {
             LivingEntity entity = event.getEntity();
             EntityEquipment equipment = entity.getEquipment();
             if (equipment != null) {
@@ -187,61 +481,119 @@ public class FlagTracker implements Listener {
                     }
                 }
                 entity.setGlowing(true);
+                // Mark the carrier before dropping the item, so the registry never looks empty
+                UUID flagId = registry.getFlagId(pickedUpItem.getUniqueId());
+                setCarrier(entity, flagId);
+                registry.unregisterFlagItem(pickedUpItem.getUniqueId());
+                positions.untrack(pickedUpItem.getUniqueId());
+                // Removed after leaving the registry, so onEntityRemove does not count it as lost
                 pickedUpItem.remove();
-                logger.info(FLAG_PICKED_UP_BY + entity.getName() + " at " + entity.getLocation());
-                world.playSound(
-                        Sound.sound(Key.key(ENTITY_ALLAY_ITEM_GIVEN), Sound.Source.PLAYER, 1, 0.9f),
-                        entity);
+                Chunk itemChunk = pickedUpItem.getChunk();
+                markFlagChunk(itemChunk, positions.anyInChunk(itemChunk.getWorld().getName(),
+                        itemChunk.getX(), itemChunk.getZ(), pickedUpItem.getUniqueId()));
+                journal(FlagJournal.Action.PICKUP, entity, flagId);
+                // Everything below only changes what players see and hear, so it can wait
                 Component customName = pickedUpItem.customName();
-                if (entity instanceof Audience audience && customName != null) {
-                    audience.sendActionBar(
-                            Component.textOfChildren(Component.text("You picked up "), customName));
-                    audience.playSound(
-                            Sound.sound(Key.key("item.armor.equip_generic"), SoundCategory.PLAYERS,
-                                    1, 1));
-                    audience.stopSound(SoundStop.source(Sound.Source.MUSIC));
-                    audience.playSound(Sound.sound(Key.key(FLAG_MUSIC), Sound.Source.MUSIC, 1, 1));
-                }
+                cosmetics.submit(entity, carrier -> {
+                    carrier.getWorld().playSound(Sound.sound(Key.key(ENTITY_ALLAY_ITEM_GIVEN),
+                            Sound.Source.PLAYER, 1, 0.9f), carrier);
+                    if (customName != null) {
+                        carrier.sendActionBar(Component.textOfChildren(
+                                Component.text("You picked up "), customName));
+                        carrier.playSound(Sound.sound(Key.key("item.armor.equip_generic"),
+                                SoundCategory.PLAYERS, 1, 1));
+                        carrier.stopSound(SoundStop.source(Sound.Source.MUSIC));
+                        carrier.playSound(
+                                Sound.sound(Key.key(FLAG_MUSIC), Sound.Source.MUSIC, 1, 1));
+                    }
+                });
             }
             event.setCancelled(true); // Item was manually added, this prevents a duplicate
         }
+        stats.record(HandlerStats.Probe.ENTITY_PICKUP_ITEM, start, hit);
     }
     
     /**
      * Track an item as the flag. This changes some of the item's properties to prevent destruction,
      * and make its specialness more obvious.
      *
-     * @param item The item to track.
+     * @param item  The item to track.
+     * @param where Where the flag is made, which decides the arena it counts against.
+     * @throws IllegalArgumentException If the item has no meta.
+     * @throws IllegalStateException    If the location is not in an arena, or the arena is full.
      */
-    protected void trackItem(@NotNull ItemStack item) {
-        item.addUnsafeEnchantment(Enchantment.BINDING_CURSE, 1);
-        ItemMeta meta = item.getItemMeta();
-        if (meta == null) {
+    protected void trackItem(@NotNull ItemStack item, @NotNull Location where) {
+        trackItem(item, where, null);
+    }
+    
+    /**
+     * Track an item as the flag of a team. Carrying it into a zone of the same team does not
+     * score.
+     *
+     * @param item  The item to track.
+     * @param where Where the flag is made, which decides the arena it counts against.
+     * @param team  The name of the team the flag belongs to, or null to keep the item's team, if
+     *              any.
+     * @throws IllegalArgumentException If the item has no meta.
+     * @throws IllegalStateException    If the location is not in an arena, or the arena is full.
+     */
+    void trackItem(@NotNull ItemStack item, @NotNull Location where, @Nullable String team) {
+        ItemMeta existing = item.getItemMeta();
+        if (existing == null) {
             throw new IllegalArgumentException("ItemMeta is null");
         }
+        UUID existingId = getFlagId(existing);
+        UUID flagId = existingId == null ? UUID.randomUUID() : existingId;
+        reserveFlag(settings.arenas().find(where), flagId);
+        item.addUnsafeEnchantment(Enchantment.BINDING_CURSE, 1);
+        ItemMeta meta = item.getItemMeta();
         meta.getPersistentDataContainer().set(isFlagKey, PersistentDataType.BOOLEAN, true);
+        if (existingId == null) {
+            meta.getPersistentDataContainer()
+                    .set(flagIdKey, PersistentDataType.STRING, flagId.toString());
+        }
+        if (team != null) {
+            meta.getPersistentDataContainer().set(flagTeamKey, PersistentDataType.STRING, team);
+        }
         meta.setUnbreakable(true);
         meta.setFireResistant(true);
         meta.setMaxStackSize(1);
         meta.setRarity(ItemRarity.EPIC);
         item.setItemMeta(meta);
+        registry.registerFlagId(flagId);
     }
     
     /**
      * Check if a dead entity is the flag. This gets rid of the glowing effect for players, and
-     * helps ensure the flag gets dropped from mobs.
+     * helps ensure the flag gets dropped from mobs. Called by {@link ActiveFlagListener}.
      *
      * @param event The event that triggered this method.
      */
-    @EventHandler
     public void onEntityDeath(@NotNull EntityDeathEvent event) {
+        long start = System.nanoTime();
         LivingEntity entity = event.getEntity();
-        if (event.getDrops().stream().anyMatch(itemStack -> isFlag(itemStack.getItemMeta()))) {
+        UUID entityId = entity.getUniqueId();
+        if (!settings.arenas().covers(entity.getWorld())) {
+            stats.record(HandlerStats.Probe.ENTITY_DEATH, start, false);
+            return;
+        }
+        boolean carrier = registry.isCarrier(entityId);
+        if (!carrier && !registry.isFlagEntity(entityId)) {
+            stats.record(HandlerStats.Probe.ENTITY_DEATH, start, false);
+            return;
+        }
+        if (carrier) {
+            clearCarrier(entity);
+        }
+        journal(FlagJournal.Action.DEATH, entity, null);
+        if (carrier && event.getDrops().stream().anyMatch(this::isFlag)) {
             entity.setGlowing(false);
-            entity.stopSound(SoundStop.namedOnSource(Key.key(FLAG_MUSIC), Sound.Source.MUSIC));
+            stopFlagMusic(entity);
         } else if (isFlag(entity)) {
-            logger.info("Flag entity " + entity + " died at " + entity.getLocation());
-        } else {
+            registry.unregisterFlagEntity(entityId);
+            positions.untrack(entityId);
+            arenaStates.values().forEach(state -> state.removeFlag(entityId));
+        } else if (carrier) {
             EntityEquipment equipment = entity.getEquipment();
             if (equipment != null) {
                 ItemStack helmet = equipment.getHelmet();
@@ -250,23 +602,28 @@ public class FlagTracker implements Listener {
                     entity.getWorld().dropItemNaturally(entity.getLocation(), helmet);
                     entity.setGlowing(false);
                     equipment.setHelmet(null);
-                    entity.stopSound(
-                            SoundStop.namedOnSource(Key.key(FLAG_MUSIC), Sound.Source.MUSIC));
+                    stopFlagMusic(entity);
                 }
             }
         }
+        stats.record(HandlerStats.Probe.ENTITY_DEATH, start, true);
     }
     
     /**
-     * Reacts to the flag being dropped on the ground. This uses EntitySpawnEvent to get every
+     * Reacts to the flag being dropped on the ground. This uses ItemSpawnEvent to get every
      * possible case, instead of needing to figure out every event that can lead to an Item entity
-     * being created that may be the flag.
+     * being created that may be the flag. It stays registered while no game is running, since a
+     * flag can be dropped from an inventory the registry knows nothing about.
      *
      * @param event The event that triggered this method.
      */
     @EventHandler
-    public void onEntitySpawn(@NotNull EntitySpawnEvent event) {
-        if (event.getEntity() instanceof Item item && isFlag(item.getItemStack().getItemMeta())) {
+    public void onEntitySpawn(@NotNull ItemSpawnEvent event) {
+        long start = System.nanoTime();
+        Item item = event.getEntity();
+        boolean hit = settings.arenas().covers(item.getWorld()) && isFlag(item.getItemStack());
+        if (hit) {
+            registerFlagItem(item);
             item.setUnlimitedLifetime(true);
             item.setWillAge(false);
             item.setCustomNameVisible(true);
@@ -275,89 +632,175 @@ public class FlagTracker implements Listener {
             item.setPersistent(true);
             item.setGlowing(true);
             item.getPersistentDataContainer().set(isFlagKey, PersistentDataType.BOOLEAN, true);
-            logger.info("Flag item on ground at " + item.getLocation());
-            item.getWorld().playSound(
+            markFlagChunk(item.getChunk(), true);
+            UUID flagId = registry.getFlagId(item.getUniqueId());
+            positions.track(item, FlagPosition.Kind.ITEM, flagId);
+            journal(FlagJournal.Action.DROP, item, flagId);
+            beaconService.add(item);
+            cosmetics.submit(item, flag -> flag.getWorld().playSound(
                     Sound.sound(Key.key("entity.allay.item_thrown"), Sound.Source.AMBIENT, 1, 0.9f),
-                    item);
-            if (particleBeacon) {
-                addIndicatorSchedule(item);
-            }
+                    flag));
         }
+        stats.record(HandlerStats.Probe.ENTITY_SPAWN, start, hit);
     }
     
     /**
-     * Prevent the flag from being teleported to the end, if not allowed.
+     * Prevent the flag from being teleported to the end, if not allowed, or out of the arena
+     * worlds. Called by {@link ActiveFlagListener}.
      *
      * @param event The event that triggered this method.
      */
-    @EventHandler
     public void onEntityPortal(@NotNull EntityPortalEvent event) {
-        if (!allowEnd && event.getPortalType().equals(PortalType.ENDER)) {
-            // Prevent the flag from being teleported to the end, if not allowed
-            Entity entity = event.getEntity();
-            if (entity instanceof Item item && isFlag(item.getItemStack().getItemMeta()) ||
-                    isFlag(entity)) {
+        long start = System.nanoTime();
+        boolean hit = false;
+        Entity entity = event.getEntity();
+        ArenaIndex arenas = settings.arenas();
+        Arena arena = arenas.findHome(entity);
+        Location to = event.getTo();
+        boolean toEnd = event.getPortalType().equals(PortalType.ENDER);
+        boolean leavingArenas =
+                to != null && to.getWorld() != null && !arenas.covers(to.getWorld());
+        if (arena != null && (!arena.allowEnd() && toEnd || leavingArenas)) {
+            // Prevent the flag from being teleported to the end, if not allowed, or out of arenas
+            UUID entityId = entity.getUniqueId();
+            if (registry.isFlagItem(entityId) ||
+                    registry.isFlagEntity(entityId) && isFlag(entity)) {
                 event.setCancelled(true);
-            } else if (entity instanceof LivingEntity livingEntity) {
+                hit = true;
+                journal(FlagJournal.Action.PORTAL_BLOCKED, entity, registry.getFlagId(entityId));
+            } else if (registry.isCarrier(entityId) &&
+                    entity instanceof LivingEntity livingEntity) {
                 EntityEquipment equipment = livingEntity.getEquipment();
                 if (equipment != null && isFlag(equipment.getHelmet().getItemMeta())) {
                     event.setCancelled(true);
+                    hit = true;
+                    journal(FlagJournal.Action.PORTAL_BLOCKED, entity, null);
                 }
             }
         }
+        stats.record(HandlerStats.Probe.ENTITY_PORTAL, start, hit);
     }
     
     /**
      * Prevent the player from teleporting to the end with the flag, if configured to not be
-     * allowed.
+     * allowed, or out of the arena worlds. Called by {@link ActiveFlagListener}.
      *
      * @param event The event that triggered this method.
      */
-    @EventHandler
     public void onPlayerPortal(@NotNull PlayerPortalEvent event) {
-        if (!allowEnd &&
-                event.getTo().getWorld().getEnvironment().equals(World.Environment.THE_END) &&
-                isFlag(event.getPlayer().getEquipment().getHelmet().getItemMeta())) {
+        long start = System.nanoTime();
+        ArenaIndex arenas = settings.arenas();
+        Arena arena = arenas.findHome(event.getPlayer());
+        World toWorld = event.getTo().getWorld();
+        boolean hit = arena != null && registry.isCarrier(event.getPlayer().getUniqueId()) &&
+                (!arena.allowEnd() && toWorld.getEnvironment().equals(World.Environment.THE_END) ||
+                        !arenas.covers(toWorld)) &&
+                isFlag(event.getPlayer().getEquipment().getHelmet().getItemMeta());
+        if (hit) {
             event.setCancelled(true);
+            journal(FlagJournal.Action.PORTAL_BLOCKED, event.getPlayer(), null);
         }
+        stats.record(HandlerStats.Probe.PLAYER_PORTAL, start, hit);
     }
     
     /**
-     * Handle the player quitting the game.
+     * Handle the player quitting the game. Called by {@link ActiveFlagListener}.
      *
      * @param event The event that triggered this method.
      */
-    @EventHandler
     public void onPlayerQuit(@NotNull PlayerQuitEvent event) {
+        long start = System.nanoTime();
         Player quitter = event.getPlayer();
-        ItemStack helmet = quitter.getInventory().getHelmet();
-        if (helmet != null && isFlag(helmet.getItemMeta())) {
-            // Acts on the player if they have the flag on logout to prevent it from being
-            // un-stealable
-            switch (quitMode) {
-                case KILL -> quitter.setHealth(0);
-                case DROP -> {
-                    quitter.getWorld().dropItemNaturally(quitter.getLocation(),
-                            quitter.getInventory().getHelmet());
-                    quitter.getInventory().setHelmet(null);
+        Arena arena = settings.arenas().findHome(quitter);
+        if (arena == null) {
+            stats.record(HandlerStats.Probe.PLAYER_QUIT, start, false);
+            return;
+        }
+        UUID quitterId = quitter.getUniqueId();
+        boolean hit = registry.isCarrier(quitterId);
+        if (hit) {
+            ItemStack helmet = quitter.getInventory().getHelmet();
+            if (helmet != null && isFlag(helmet.getItemMeta())) {
+                journal(FlagJournal.Action.QUIT, quitter, null);
+                // Acts on the player if they have the flag on logout to prevent it from being
+                // un-stealable
+                switch (arena.quitMode()) {
+                    case KILL -> quitter.setHealth(0);
+                    case DROP -> {
+                        quitter.getWorld().dropItemNaturally(quitter.getLocation(),
+                                quitter.getInventory().getHelmet());
+                        quitter.getInventory().setHelmet(null);
+                    }
                 }
+                quitter.setGlowing(false);
             }
-            quitter.setGlowing(false);
-            
+            clearCarrier(quitter);
         }
         Entity vehicle = quitter.getVehicle();
         if (vehicle != null) {
-            vehicle.getPassengers().stream().filter(this::isFlag).forEach(Entity::leaveVehicle);
+            vehicle.getPassengers().stream()
+                    .filter(passenger -> registry.isFlagEntity(passenger.getUniqueId()))
+                    .forEach(Entity::leaveVehicle);
         }
+        stats.record(HandlerStats.Probe.PLAYER_QUIT, start, hit);
+    }
+    
+    /**
+     * Adds a player to the carrier index if they log in while wearing a flag.
+     *
+     * @param event The event that triggered this method.
+     */
+    @EventHandler
+    public void onPlayerJoin(@NotNull PlayerJoinEvent event) {
+        long start = System.nanoTime();
+        boolean hit = findCarrier(event.getPlayer());
+        stats.record(HandlerStats.Probe.PLAYER_JOIN, start, hit);
+    }
+    
+    /**
+     * Adds a player to the carrier index if they are wearing a flag. The helmet is read, rather
+     * than the carrier mark, so carriers from before the mark existed are found and marked too.
+     * Must run on the player's thread.
+     *
+     * @param player The player to check.
+     * @return True if the player is wearing a flag, false otherwise.
+     */
+    private boolean findCarrier(@NotNull Player player) {
+        ItemStack helmet = player.getInventory().getHelmet();
+        if (helmet == null || !settings.arenas().covers(player.getWorld()) || !isFlag(helmet)) {
+            return false;
+        }
+        UUID flagId = getFlagId(helmet.getItemMeta());
+        setCarrier(player, flagId);
+        if (flagId != null) {
+            Location location = player.getLocation();
+            countExistingFlag(location.getWorld().getName(), location.getX(), location.getY(),
+                    location.getZ(), flagId);
+        }
+        return true;
     }
     
     /**
      * Track an entity as a flag.
      *
      * @param entity The entity to track.
+     * @throws IllegalStateException If the entity is not in an arena, or the arena is full.
      */
     protected void trackEntity(@NotNull Entity entity) {
+        reserveFlag(settings.arenas().find(entity), entity.getUniqueId());
+        setUpFlagEntity(entity);
+    }
+    
+    /**
+     * Sets an entity up as a flag, without counting it against its arena's limit.
+     *
+     * @param entity The entity to set up.
+     */
+    private void setUpFlagEntity(@NotNull Entity entity) {
         entity.getPersistentDataContainer().set(isFlagKey, PersistentDataType.BOOLEAN, true);
+        registry.registerFlagEntity(entity.getUniqueId());
+        positions.track(entity, FlagPosition.Kind.ENTITY, null);
+        markFlagChunk(entity.getChunk(), true);
         entity.setGlowing(true);
         entity.setCustomNameVisible(true);
         entity.setInvulnerable(true);
@@ -365,50 +808,473 @@ public class FlagTracker implements Listener {
         if (entity instanceof LivingEntity livingEntity) {
             livingEntity.setRemoveWhenFarAway(false);
         }
-        if (particleBeacon) {
-            addIndicatorSchedule(entity);
+        beaconService.add(entity);
+    }
+    
+    /**
+     * Gets the in-memory index of flag identities.
+     *
+     * @return The flag registry.
+     */
+    @NotNull FlagRegistry getRegistry() {
+        return registry;
+    }
+    
+    /**
+     * Gets the service that fires particle beacons.
+     *
+     * @return The beacon service.
+     */
+    @NotNull BeaconService getBeaconService() {
+        return beaconService;
+    }
+    
+    /**
+     * Gets the handler and beacon task statistics.
+     *
+     * @return The statistics.
+     */
+    @NotNull HandlerStats getStats() {
+        return stats;
+    }
+    
+    /**
+     * Gets the capture zones.
+     *
+     * @return The capture zone index.
+     */
+    @NotNull CaptureZoneIndex getCaptureZones() {
+        return settings.captureZones();
+    }
+    
+    /**
+     * Gets every arena.
+     *
+     * @return The arenas, in config order.
+     */
+    @NotNull List<Arena> getArenas() {
+        return settings.arenas().getArenas();
+    }
+    
+    /**
+     * Gets the executor running cosmetic effects.
+     *
+     * @return The cosmetic executor.
+     */
+    @NotNull CosmeticExecutor getCosmetics() {
+        return cosmetics;
+    }
+    
+    /**
+     * Gets the journal of flag events.
+     *
+     * @return The journal.
+     */
+    @NotNull FlagJournal getJournal() {
+        return journal;
+    }
+    
+    /**
+     * Gets the game state of an arena.
+     *
+     * @param name The name of the arena.
+     * @return The state of the arena, or null if there is no arena with that name.
+     */
+    @Nullable ArenaState getArenaState(@NotNull String name) {
+        return arenaStates.get(name);
+    }
+    
+    /**
+     * Gets the last known positions of every flag.
+     *
+     * @return The flag positions.
+     */
+    @NotNull FlagPositions getPositions() {
+        return positions;
+    }
+    
+    /**
+     * Gets the movement pipeline of flag carriers.
+     *
+     * @return The carrier movement pipeline.
+     */
+    @NotNull CarrierMovement getCarrierMovement() {
+        return carrierMovement;
+    }
+    
+    /**
+     * Gets the flag locator.
+     *
+     * @return The flag locator.
+     */
+    @NotNull FlagLocator getLocator() {
+        return locator;
+    }
+    
+    /**
+     * Gets the flag trail recorder.
+     *
+     * @return The trail recorder.
+     */
+    @NotNull TrailRecorder getTrails() {
+        return trails;
+    }
+    
+    /**
+     * Gets the chunk tickets keeping flag chunks loaded.
+     *
+     * @return The flag chunk tickets.
+     */
+    @NotNull FlagChunkTickets getChunkTickets() {
+        return chunkTickets;
+    }
+    
+    /**
+     * Gets the provisioner making the flags of match files.
+     *
+     * @return The match provisioner.
+     */
+    @NotNull MatchProvisioner getProvisioner() {
+        return provisioner;
+    }
+    
+    /**
+     * Gets the latest immutable copy of every flag's state. Safe to call from any thread.
+     *
+     * @return The latest flag snapshot.
+     */
+    @NotNull FlagSnapshot getSnapshot() {
+        return snapshots.getSnapshot();
+    }
+    
+    /**
+     * Track an entity as a flag, given its UUID. If the entity is not loaded, its last known
+     * position is used to find it.
+     *
+     * @param entityUUID The UUID of the entity to track.
+     * @return A future that completes with the entity once it is tracked, or fails with an
+     * IllegalArgumentException if the entity is not loaded and has no known position.
+     */
+    protected @NotNull CompletableFuture<Entity> trackEntity(@NotNull UUID entityUUID) {
+        Entity entity = Bukkit.getEntity(entityUUID);
+        if (entity != null) {
+            return trackLoadedEntity(entity);
+        }
+        FlagPosition lastKnown = positions.getPosition(entityUUID);
+        World world = lastKnown == null ? null : Bukkit.getWorld(lastKnown.world());
+        if (world == null) {
+            return CompletableFuture.failedFuture(
+                    new IllegalArgumentException("Entity not found"));
         }
+        return trackEntity(entityUUID, world, lastKnown.chunkX(), lastKnown.chunkZ());
     }
     
     /**
-     * Track an entity as a flag, given its UUID.
+     * Track an entity as a flag, given its UUID and the chunk it is in. The chunk is loaded in
+     * the background and held until the entity loads, so this never blocks the server.
      *
      * @param entityUUID The UUID of the entity to track.
+     * @param world      The world the entity is in.
+     * @param chunkX     The x coordinate of the chunk the entity is in.
+     * @param chunkZ     The z coordinate of the chunk the entity is in.
+     * @return A future that completes with the entity once it is tracked, or fails if the entity
+     * is not in the chunk or does not load in time.
      */
-    protected void trackEntity(@NotNull UUID entityUUID) {
+    protected @NotNull CompletableFuture<Entity> trackEntity(@NotNull UUID entityUUID,
+                                                             @NotNull World world, int chunkX,
+                                                             int chunkZ) {
         Entity entity = Bukkit.getEntity(entityUUID);
-        if (entity == null) {
-            throw new IllegalArgumentException("Entity not found");
+        if (entity != null) {
+            return trackLoadedEntity(entity);
+        }
+        CompletableFuture<Entity> pending = new CompletableFuture<>();
+        CompletableFuture<Entity> existing = pendingTracks.putIfAbsent(entityUUID, pending);
+        if (existing != null) {
+            return existing;
+        }
+        pending.orTimeout(PENDING_TRACK_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .whenComplete((tracked, throwable) -> {
+                    pendingTracks.remove(entityUUID, pending);
+                    Bukkit.getRegionScheduler().execute(plugin, world, chunkX, chunkZ, () -> {
+                        // Plugin tickets are not counted, so leave one a flag is relying on
+                        if (!chunkTickets.isHeld(world.getName(), chunkX, chunkZ)) {
+                            world.removePluginChunkTicket(chunkX, chunkZ, plugin);
+                        }
+                    });
+                });
+        world.getChunkAtAsync(chunkX, chunkZ).thenAccept(chunk -> {
+            if (pending.isDone()) {
+                return;
+            }
+            // Hold the chunk until the entity loads; the ticket is removed once the track is done
+            chunk.addPluginChunkTicket(plugin);
+            if (chunk.isEntitiesLoaded()) {
+                for (Entity chunkEntity : chunk.getEntities()) {
+                    if (chunkEntity.getUniqueId().equals(entityUUID)) {
+                        completePendingTrack(chunkEntity, pending);
+                        return;
+                    }
+                }
+                pending.completeExceptionally(new IllegalArgumentException(
+                        "Entity not found in chunk " + chunkX + ", " + chunkZ));
+            }
+        });
+        return pending;
+    }
+    
+    /**
+     * Tracks an entity that is already loaded as a flag, on the thread that owns it.
+     *
+     * @param entity The entity to track.
+     * @return A future that completes with the entity once it is tracked.
+     */
+    private @NotNull CompletableFuture<Entity> trackLoadedEntity(@NotNull Entity entity) {
+        CompletableFuture<Entity> tracked = new CompletableFuture<>();
+        if (entity.getScheduler().run(plugin, task -> completePendingTrack(entity, tracked),
+                () -> tracked.completeExceptionally(
+                        new IllegalArgumentException("Entity was removed"))) == null) {
+            tracked.completeExceptionally(new IllegalArgumentException("Entity was removed"));
+        }
+        return tracked;
+    }
+    
+    /**
+     * Tracks an entity as a flag and completes the future waiting on it. Must run on the thread
+     * that owns the entity.
+     *
+     * @param entity  The entity to track.
+     * @param pending The future waiting on the entity.
+     */
+    private void completePendingTrack(@NotNull Entity entity,
+                                      @NotNull CompletableFuture<Entity> pending) {
+        if (!pending.isDone()) {
+            try {
+                trackEntity(entity);
+                pending.complete(entity);
+            } catch (IllegalStateException e) {
+                pending.completeExceptionally(e);
+            }
         }
-        trackEntity(entity);
     }
     
     /**
-     * Method used to cancel entity attacks if needed.
+     * Method used to cancel entity attacks if needed. Called by {@link ActiveFlagListener}.
      *
      * @param event The event that triggered this method.
      */
-    @EventHandler
     public void onEntityTarget(@NotNull EntityTargetLivingEntityEvent event) {
+        long start = System.nanoTime();
         Entity entity = event.getEntity();
-        if (entity instanceof Creeper && isFlag(entity)) {
+        boolean hit = entity instanceof Creeper && settings.arenas().covers(entity.getWorld()) &&
+                registry.isFlagEntity(entity.getUniqueId());
+        if (hit) {
             // Prevent flag Creepers from blowing themselves up
             event.setCancelled(true);
         }
+        stats.record(HandlerStats.Probe.ENTITY_TARGET, start, hit);
     }
     
     /**
-     * Prevents an entity from being destroyed by transformation.
+     * Prevents an entity from being destroyed by transformation. Called by
+     * {@link ActiveFlagListener}.
      *
      * @param event The event that triggered this method.
      */
-    @EventHandler
     public void onEntityTransform(@NotNull EntityTransformEvent event) {
-        if (isFlag(event.getEntity())) {
-            trackEntity(event.getTransformedEntity());
+        long start = System.nanoTime();
+        Entity entity = event.getEntity();
+        UUID entityId = entity.getUniqueId();
+        boolean hit = settings.arenas().covers(entity.getWorld()) &&
+                registry.isFlagEntity(entityId);
+        if (hit) {
+            registry.unregisterFlagEntity(entityId);
+            positions.untrack(entityId);
+            Entity transformed = event.getTransformedEntity();
+            // The flag keeps its place in the arena's count under its new UUID
+            arenaStates.values().forEach(state -> {
+                if (state.removeFlag(entityId)) {
+                    state.addFlag(transformed.getUniqueId(), 0);
+                }
+            });
+            setUpFlagEntity(transformed);
+        }
+        stats.record(HandlerStats.Probe.ENTITY_TRANSFORM, start, hit);
+    }
+    
+    /**
+     * Forgets a flag, or flag carrier, that left the world for good, such as by /kill, falling
+     * into the void, or a plugin removing it. Entities unloading with their chunk are kept.
+     * Called by {@link ActiveFlagListener}.
+     *
+     * @param event The event that triggered this method.
+     */
+    public void onEntityRemove(@NotNull EntityRemoveEvent event) {
+        long start = System.nanoTime();
+        if (event.getCause() == EntityRemoveEvent.Cause.UNLOAD) {
+            stats.record(HandlerStats.Probe.ENTITY_REMOVE, start, false);
+            return;
+        }
+        Entity entity = event.getEntity();
+        UUID entityId = entity.getUniqueId();
+        boolean hit = registry.isTracked(entityId);
+        if (hit) {
+            if (registry.isCarrier(entityId)) {
+                clearCarrier(entity);
+            }
+            UUID flagId = registry.unregisterFlagItem(entityId);
+            registry.unregisterFlagEntity(entityId);
+            positions.untrack(entityId);
+            beaconService.remove(entityId);
+            UUID arenaFlag = flagId == null ? entityId : flagId;
+            arenaStates.values().forEach(state -> state.removeFlag(arenaFlag));
+            journal(FlagJournal.Action.REMOVED, entity, flagId);
+        }
+        stats.record(HandlerStats.Probe.ENTITY_REMOVE, start, hit);
+    }
+    
+    /**
+     * Passes player moves to the carrier movement pipeline. Called by
+     * {@link ActiveFlagListener}.
+     *
+     * @param event The event that triggered this method.
+     */
+    public void onPlayerMove(@NotNull PlayerMoveEvent event) {
+        long start = System.nanoTime();
+        boolean hit = carrierMovement.offer(event);
+        stats.record(HandlerStats.Probe.PLAYER_MOVE, start, hit);
+    }
+    
+    /**
+     * Checks if a flag carrier has walked into a capture zone. A carrier only scores in a zone of
+     * their own scoreboard team, with a flag of another team or of no team. The scoreboard is
+     * owned by the global region, so the carrier's team is checked there before the capture is
+     * scored back on the carrier's thread.
+     *
+     * @param carrier The player carrying the flag.
+     * @param to      Where the carrier moved to.
+     */
+    private void checkCapture(@NotNull Player carrier, @NotNull Location to) {
+        CaptureZoneIndex captureZones = settings.captureZones();
+        if (captureZones.isEmpty()) {
+            return;
+        }
+        UUID carrierId = carrier.getUniqueId();
+        CaptureZone zone =
+                captureZones.find(to.getWorld().getName(), to.getX(), to.getY(), to.getZ());
+        CaptureZone previous =
+                zone == null ? carrierZones.remove(carrierId) : carrierZones.put(carrierId, zone);
+        // Zones are compared by value, so a reload does not count a carrier already inside as new
+        if (zone == null || zone.equals(previous)) {
+            return;
+        }
+        Arena arena = settings.arenas().find(to);
+        String teamName = captureZones.getTeamNames().get(zone.team());
+        if (arena == null || !isCapturableBy(carrier, teamName)) {
+            return;
+        }
+        Bukkit.getGlobalRegionScheduler().execute(plugin, () -> {
+            Team team = Bukkit.getScoreboardManager().getMainScoreboard().getEntityTeam(carrier);
+            if (team != null && team.getName().equals(teamName)) {
+                carrier.getScheduler().run(plugin, task -> scoreCapture(carrier, teamName, arena),
+                        null);
+            }
+        });
+    }
+    
+    /**
+     * Scores a capture checked by {@link #checkCapture(Player, Location)}, if the carrier still has
+     * the flag. Must run on the carrier's thread.
+     *
+     * @param carrier  The player that carried the flag into the team's zone.
+     * @param teamName The name of the team that owns the zone.
+     * @param arena    The arena the zone is in.
+     */
+    private void scoreCapture(@NotNull Player carrier, @NotNull String teamName,
+                              @NotNull Arena arena) {
+        ArenaState state = arenaStates.get(arena.name());
+        // The carry may have ended, or already scored, while the team was checked
+        if (state != null && registry.isCarrier(carrier.getUniqueId()) &&
+                isCapturableBy(carrier, teamName) && capture(carrier, teamName, state)) {
+            endRun(carrier, arena, state);
         }
     }
     
+    /**
+     * Check if the flag a carrier is wearing can be captured by a team, which is true unless the
+     * flag belongs to that team.
+     *
+     * @param carrier  The player carrying the flag.
+     * @param teamName The name of the team.
+     * @return True if the carrier is wearing a flag of another team or of no team, false
+     * otherwise.
+     */
+    private boolean isCapturableBy(@NotNull Player carrier, @NotNull String teamName) {
+        ItemStack helmet = carrier.getInventory().getHelmet();
+        return helmet != null && isFlag(helmet) && !teamName.equals(helmet.getItemMeta()
+                .getPersistentDataContainer().get(flagTeamKey, PersistentDataType.STRING));
+    }
+    
+    /**
+     * Takes a captured flag off its carrier, so one carry only scores once. The flag is dropped at
+     * the arena's return point, or taken out of the match if the arena has none.
+     *
+     * @param carrier The player that captured the flag.
+     * @param arena   The arena the flag was captured in.
+     * @param state   The state of the arena.
+     */
+    private void endRun(@NotNull Player carrier, @NotNull Arena arena, @NotNull ArenaState state) {
+        ItemStack helmet = carrier.getInventory().getHelmet();
+        carrier.setGlowing(false);
+        clearCarrier(carrier);
+        stopFlagMusic(carrier);
+        if (helmet == null || !isFlag(helmet.getItemMeta())) {
+            return;
+        }
+        carrier.getInventory().setHelmet(null);
+        Arena.ReturnPoint returnPoint = arena.returnPoint();
+        World world = returnPoint == null ? null : Bukkit.getWorld(returnPoint.world());
+        if (world == null) {
+            UUID flagId = getFlagId(helmet.getItemMeta());
+            if (flagId != null) {
+                state.removeFlag(flagId);
+            }
+            return;
+        }
+        Location location = new Location(world, returnPoint.x(), returnPoint.y(), returnPoint.z());
+        Runnable drop = () -> world.dropItem(location, helmet).setVelocity(new Vector());
+        if (Bukkit.isOwnedByCurrentRegion(location)) {
+            drop.run();
+        } else {
+            Bukkit.getRegionScheduler().execute(plugin, location, drop);
+        }
+    }
+    
+    /**
+     * Scores a capture for a team, and announces it.
+     *
+     * @param carrier  The player that carried the flag into the team's zone.
+     * @param teamName The name of the team that owns the zone.
+     * @param state    The state of the arena the zone is in.
+     * @return True if the capture was scored, false if the team no longer exists.
+     */
+    private boolean capture(@NotNull Player carrier, @NotNull String teamName,
+                            @NotNull ArenaState state) {
+        TeamScores currentScores = state.getScores();
+        int team = currentScores.getTeamNames().indexOf(teamName);
+        if (team < 0) {
+            // The team was removed by a reload since the zone was found
+            return false;
+        }
+        int score = currentScores.addCapture(team);
+        ItemStack helmet = carrier.getInventory().getHelmet();
+        journal(FlagJournal.Action.CAPTURE, carrier,
+                helmet == null ? null : getFlagId(helmet.getItemMeta()));
+        Component announcement = Component.textOfChildren(carrier.name(),
+                Component.text(" captured a flag for " + teamName + " (" + score + ")"));
+        cosmetics.submit(() -> plugin.getServer().broadcast(announcement));
+        return true;
+    }
+    
     /**
      * Sets scheduled tasks back up when a world loads.
      *
@@ -416,81 +1282,583 @@ public class FlagTracker implements Listener {
      */
     @EventHandler
     public void onWorldLoad(@NotNull WorldLoadEvent event) {
-        if (particleBeacon) {
-            processPotentialFlagEntities(event.getWorld().getEntities());
+        long start = System.nanoTime();
+        if (settings.arenas().covers(event.getWorld())) {
+            processLoadedChunks(event.getWorld());
         }
+        stats.record(HandlerStats.Probe.WORLD_LOAD, start, false);
     }
     
     /**
-     * Sets up scheduled tasks for flags that are already in the world as they load in.
+     * Sets up scheduled tasks for flags that are already in the world as they load in, and
+     * finishes any /makeflag that was waiting for an entity to load. Only chunks marked as holding
+     * a flag, or not yet indexed, are scanned.
      *
      * @param event The event that triggered this method.
      */
     @EventHandler
     public void onEntitiesLoad(@NotNull EntitiesLoadEvent event) {
-        if (particleBeacon) {
-            processPotentialFlagEntities(event.getEntities());
+        long start = System.nanoTime();
+        if (!pendingTracks.isEmpty()) {
+            for (Entity entity : event.getEntities()) {
+                CompletableFuture<Entity> pending = pendingTracks.get(entity.getUniqueId());
+                if (pending != null) {
+                    completePendingTrack(entity, pending);
+                }
+            }
+        }
+        Chunk chunk = event.getChunk();
+        boolean hit = false;
+        if (settings.arenas().covers(chunk.getWorld()) && needsScan(chunk)) {
+            hit = processPotentialFlagEntities(event.getEntities());
+            markFlagChunk(chunk, hit);
+        }
+        dropMissingRestores(chunk, event.getEntities());
+        stats.record(HandlerStats.Probe.ENTITIES_LOAD, start, hit);
+    }
+    
+    /**
+     * Records whether a chunk holds a flag as it unloads, so the next load knows whether it needs
+     * to be scanned, and saves where its flags were left.
+     *
+     * @param event The event that triggered this method.
+     */
+    @EventHandler
+    public void onEntitiesUnload(@NotNull EntitiesUnloadEvent event) {
+        long start = System.nanoTime();
+        Chunk chunk = event.getChunk();
+        if (!settings.arenas().covers(chunk.getWorld())) {
+            stats.record(HandlerStats.Probe.ENTITIES_UNLOAD, start, false);
+            return;
+        }
+        boolean hasFlag = false;
+        if (!registry.isEmpty()) {
+            for (Entity entity : event.getEntities()) {
+                if (registry.isTracked(entity.getUniqueId())) {
+                    positions.unload(entity);
+                    hasFlag = true;
+                }
+            }
+        }
+        markFlagChunk(chunk, hasFlag);
+        stats.record(HandlerStats.Probe.ENTITIES_UNLOAD, start, hasFlag);
+    }
+    
+    /**
+     * Scans the loaded chunks of a world that are marked as holding a flag, or not yet indexed.
+     * Chunks whose entities are not loaded yet are left for {@link #onEntitiesLoad}.
+     *
+     * @param world The world to scan.
+     */
+    private void processLoadedChunks(@NotNull World world) {
+        for (Chunk chunk : world.getLoadedChunks()) {
+            scanLoadedChunk(chunk);
+        }
+    }
+    
+    /**
+     * Scans a chunk if its entities are loaded and it is marked as holding a flag, or not yet
+     * indexed.
+     *
+     * @param chunk The chunk to scan.
+     */
+    private void scanLoadedChunk(@NotNull Chunk chunk) {
+        if (!chunk.isEntitiesLoaded()) {
+            return;
+        }
+        boolean scan = needsScan(chunk);
+        if (scan || !unconfirmedRestores.isEmpty()) {
+            List<Entity> entities = Arrays.asList(chunk.getEntities());
+            if (scan) {
+                markFlagChunk(chunk, processPotentialFlagEntities(entities));
+            }
+            dropMissingRestores(chunk, entities);
         }
     }
     
     /**
-     * Goes through a stream and sets up indicator schedules for any flag entities that do not
-     * already have one.
+     * Restores the flags saved in a checkpoint. Their identities go straight into the registry,
+     * so hoppers and despawn timers respect them as soon as they load, and the chunks that held
+     * them are loaded in the background so their beacons come back without waiting for a player
+     * to wander nearby. Carriers are not restored, since players are found again when they join
+     * and mobs when their chunk is scanned. Restored flags are counted against their arenas, so
+     * flags made before a restart still count towards each arena's limit.
+     *
+     * @param saved The positions read from the checkpoint.
+     */
+    private void restoreCheckpoint(@NotNull List<FlagPosition> saved) {
+        Map<String, List<FlagPosition>> byChunk = new HashMap<>();
+        for (FlagPosition position : saved) {
+            UUID entityId = position.entityId();
+            switch (position.kind()) {
+                case ITEM -> {
+                    if (position.flagId() == null) {
+                        registry.registerPendingFlagItem(entityId);
+                    } else {
+                        registry.registerFlagItem(entityId, position.flagId());
+                        countExistingFlag(position.world(), position.x(), position.y(),
+                                position.z(), position.flagId());
+                    }
+                }
+                case ENTITY -> {
+                    registry.registerFlagEntity(entityId);
+                    countExistingFlag(position.world(), position.x(), position.y(), position.z(),
+                            entityId);
+                }
+                case CARRIER -> {
+                    continue;
+                }
+            }
+            positions.restore(position);
+            byChunk.computeIfAbsent(
+                    chunkKey(position.world(), position.chunkX(), position.chunkZ()),
+                    key -> new ArrayList<>()).add(position);
+        }
+        unconfirmedRestores.putAll(byChunk);
+        int restored = 0;
+        for (List<FlagPosition> chunkPositions : byChunk.values()) {
+            restored += chunkPositions.size();
+            FlagPosition position = chunkPositions.getFirst();
+            World world = Bukkit.getWorld(position.world());
+            if (world != null) {
+                world.getChunkAtAsync(position.chunkX(), position.chunkZ())
+                        .thenAccept(this::scanLoadedChunk);
+            }
+        }
+        if (restored > 0) {
+            logger.info("Restored " + restored + " flag positions from the checkpoint");
+        }
+    }
+    
+    /**
+     * Drops the flags restored from the checkpoint into a chunk that are not among its entities,
+     * since they were removed while the server was down, or moved out of the chunk after the last
+     * checkpoint. A flag that moved is found again when its new chunk is scanned.
+     *
+     * @param chunk    The chunk whose entities have loaded.
+     * @param entities The entities of the chunk.
+     */
+    private void dropMissingRestores(@NotNull Chunk chunk, @NotNull List<Entity> entities) {
+        if (unconfirmedRestores.isEmpty()) {
+            return;
+        }
+        List<FlagPosition> restored = unconfirmedRestores.remove(
+                chunkKey(chunk.getWorld().getName(), chunk.getX(), chunk.getZ()));
+        if (restored == null) {
+            return;
+        }
+        Set<UUID> present = new HashSet<>();
+        for (Entity entity : entities) {
+            present.add(entity.getUniqueId());
+        }
+        for (FlagPosition position : restored) {
+            UUID entityId = position.entityId();
+            if (present.contains(entityId) || positions.isLive(entityId)) {
+                continue;
+            }
+            UUID flag;
+            if (position.kind() == FlagPosition.Kind.ITEM) {
+                flag = registry.unregisterFlagItem(entityId);
+            } else {
+                registry.unregisterFlagEntity(entityId);
+                flag = entityId;
+            }
+            positions.untrack(entityId);
+            // Counted again if the flag turns up elsewhere
+            if (flag != null) {
+                arenaStates.values().forEach(state -> state.removeFlag(flag));
+            }
+        }
+    }
+    
+    /**
+     * Builds the key of a chunk in {@link #unconfirmedRestores}.
+     *
+     * @param world  The name of the world.
+     * @param chunkX The x coordinate of the chunk.
+     * @param chunkZ The z coordinate of the chunk.
+     * @return The key.
+     */
+    private static @NotNull String chunkKey(@NotNull String world, int chunkX, int chunkZ) {
+        return world + ':' + chunkX + ':' + chunkZ;
+    }
+    
+    /**
+     * Check if a chunk needs its entities scanned for flags.
+     *
+     * @param chunk The chunk to check.
+     * @return False if the chunk is indexed as holding no flags, true otherwise.
+     */
+    private boolean needsScan(@NotNull Chunk chunk) {
+        return chunk.getPersistentDataContainer()
+                .getOrDefault(flagChunkKey, PersistentDataType.BOOLEAN, true);
+    }
+    
+    /**
+     * Marks a chunk by whether it holds a flag. The chunk is only written to if the mark changes,
+     * so chunks that keep their mark are not saved again.
+     *
+     * @param chunk   The chunk to mark.
+     * @param hasFlag Whether the chunk holds a flag.
+     */
+    private void markFlagChunk(@NotNull Chunk chunk, boolean hasFlag) {
+        PersistentDataContainer container = chunk.getPersistentDataContainer();
+        Boolean marked = container.get(flagChunkKey, PersistentDataType.BOOLEAN);
+        if (marked == null || marked != hasFlag) {
+            container.set(flagChunkKey, PersistentDataType.BOOLEAN, hasFlag);
+        }
+    }
+    
+    /**
+     * Scans entities for flags and flag carriers, adding them to the registry and setting up
+     * indicator schedules for any flag entities that do not already have one.
      *
      * @param entities The entities to process.
+     * @return True if any of the entities is a flag or a flag carrier, false otherwise.
      */
-    private void processPotentialFlagEntities(@NotNull List<Entity> entities) {
-        assert !particleBeacon;
-        entities.parallelStream()
-                .filter(entity -> isFlag(entity) && !knownFlagEntities.contains(entity))
-                .forEach(this::addIndicatorSchedule);
-        
+    private boolean processPotentialFlagEntities(@NotNull List<Entity> entities) {
+        return scanPipeline.scan(entities).foundAny();
     }
     
     /**
-     * Adds an indicator schedule to an entity.
+     * Reads the flag roles of an entity from the marks in its PersistentDataContainer. This only
+     * reads, since it runs for every scanned entity; the registry is filled in when the scan is
+     * applied. Helmets are not read, so players who carried a flag from before the carrier mark
+     * existed are found when they join instead.
      *
-     * @param entity the entity to add the schedule to.
+     * @param entity The entity to read.
+     * @return The role bits of the entity.
      */
-    private void addIndicatorSchedule(@NotNull Entity entity) {
-        assert !particleBeacon;
-        entity.getScheduler().runAtFixedRate(plugin, scheduledTask -> {
-                    if (!isFlag(entity) && entity instanceof LivingEntity livingEntity) {
-                        EntityEquipment equipment = livingEntity.getEquipment();
-                        if (equipment != null && !isFlag(equipment.getHelmet().getItemMeta())) {
-                            scheduledTask.cancel();
-                            return;
-                        }
+    private int readFlagRoles(@NotNull Entity entity) {
+        PersistentDataContainer container = entity.getPersistentDataContainer();
+        if (container.isEmpty()) {
+            return 0;
+        }
+        int roles = 0;
+        if (container.getOrDefault(carrierKey, PersistentDataType.BOOLEAN, false)) {
+            roles |= EntityScanPipeline.CARRIER;
+        }
+        if (container.getOrDefault(isFlagKey, PersistentDataType.BOOLEAN, false)) {
+            roles |= EntityScanPipeline.FLAG;
+        }
+        return roles;
+    }
+    
+    /**
+     * Check if a scanned entity still needs work on its owning thread. Safe to call from any
+     * thread.
+     *
+     * @param entityId The UUID of the entity.
+     * @param roles    The role bits of the entity.
+     * @return True if the entity needs to be registered, its position tracked, its flag id read or
+     * a beacon added, false otherwise.
+     */
+    private boolean needsFlagSetup(@NotNull UUID entityId, int roles) {
+        if (!positions.isLive(entityId)) {
+            return true;
+        }
+        if ((roles & EntityScanPipeline.CARRIER) != 0 && !registry.isCarrier(entityId)) {
+            return true;
+        }
+        if ((roles & EntityScanPipeline.FLAG) == 0) {
+            return false;
+        }
+        if (registry.isFlagItem(entityId)) {
+            return registry.getFlagId(entityId) == null || !beaconService.contains(entityId);
+        }
+        return !registry.isFlagEntity(entityId) || !beaconService.contains(entityId);
+    }
+    
+    /**
+     * Finishes setting up a scanned flag or flag carrier on its owning thread, adding it to the
+     * registry first.
+     *
+     * @param entity The flag entity or flag carrier.
+     * @param roles  The role bits of the entity.
+     */
+    private void applyFlagSetup(@NotNull Entity entity, int roles) {
+        UUID entityId = entity.getUniqueId();
+        if ((roles & EntityScanPipeline.CARRIER) != 0) {
+            registry.registerCarrier(entityId);
+        }
+        if ((roles & EntityScanPipeline.FLAG) == 0) {
+            positions.track(entity, FlagPosition.Kind.CARRIER, null);
+            return;
+        }
+        UUID flag;
+        if (entity instanceof Item item) {
+            if (registry.getFlagId(entityId) == null) {
+                registerFlagItem(item);
+            }
+            flag = registry.getFlagId(entityId);
+            positions.track(item, FlagPosition.Kind.ITEM, flag);
+        } else {
+            registry.registerFlagEntity(entityId);
+            flag = entityId;
+            positions.track(entity, FlagPosition.Kind.ENTITY, null);
+        }
+        if (flag != null) {
+            Location location = entity.getLocation();
+            countExistingFlag(location.getWorld().getName(), location.getX(), location.getY(),
+                    location.getZ(), flag);
+        }
+        beaconService.add(entity);
+    }
+    
+    /**
+     * Finds the arena a flag belongs to: the arena that counts it, or for a flag no arena in its
+     * current world counts, the arena it is in or the first arena of its world. Safe to call from
+     * any thread.
+     *
+     * @param entityId The UUID of the flag entity.
+     * @param world    The name of the world the flag is in.
+     * @param x        The x coordinate of the flag.
+     * @param y        The y coordinate of the flag.
+     * @param z        The z coordinate of the flag.
+     * @return The arena, or null if the flag's world has no arena.
+     */
+    private @Nullable Arena arenaOf(@NotNull UUID entityId, @NotNull String world, double x,
+                                    double y, double z) {
+        ArenaIndex arenas = settings.arenas();
+        UUID flagId = registry.getFlagId(entityId);
+        UUID flag = flagId != null ? flagId : entityId;
+        for (Arena arena : arenas.getArenas()) {
+            ArenaState state = arenaStates.get(arena.name());
+            if (state != null && state.hasFlag(flag)
+                    && (arena.world() == null || arena.world().equals(world))) {
+                return arena;
+            }
+        }
+        return arenas.findHome(world, x, y, z);
+    }
+    
+    /**
+     * Counts a flag that already exists, such as one restored from the checkpoint or found by a
+     * scan, against the arena it is in. It is counted even if the arena is full, since the flag
+     * is already out, and is left alone if an arena already counts it.
+     *
+     * @param world The name of the world the flag is in.
+     * @param x     The x coordinate of the flag.
+     * @param y     The y coordinate of the flag.
+     * @param z     The z coordinate of the flag.
+     * @param flag  The flag id of an item flag, or the entity UUID of an entity flag.
+     */
+    private void countExistingFlag(@NotNull String world, double x, double y, double z,
+                                   @NotNull UUID flag) {
+        for (ArenaState state : arenaStates.values()) {
+            if (state.hasFlag(flag)) {
+                return;
+            }
+        }
+        Arena arena = settings.arenas().findHome(world, x, y, z);
+        ArenaState state = arena == null ? null : arenaStates.get(arena.name());
+        if (state != null) {
+            state.addFlag(flag, 0);
+        }
+    }
+    
+    /**
+     * Records that an entity is wearing a flag, both in the registry and in the entity's
+     * PersistentDataContainer so the next scan can find it without reading its helmet.
+     *
+     * @param entity The entity.
+     * @param flagId The id of the flag being worn, or null if it is not known.
+     */
+    private void setCarrier(@NotNull Entity entity, @Nullable UUID flagId) {
+        registry.registerCarrier(entity.getUniqueId());
+        entity.getPersistentDataContainer().set(carrierKey, PersistentDataType.BOOLEAN, true);
+        positions.track(entity, FlagPosition.Kind.CARRIER, flagId);
+    }
+    
+    /**
+     * Records that an entity is no longer wearing a flag.
+     *
+     * @param entity The entity.
+     */
+    private void clearCarrier(@NotNull Entity entity) {
+        registry.unregisterCarrier(entity.getUniqueId());
+        carrierZones.remove(entity.getUniqueId());
+        carrierMovement.forget(entity.getUniqueId());
+        entity.getPersistentDataContainer().remove(carrierKey);
+        positions.untrack(entity.getUniqueId());
+    }
+    
+    /**
+     * Returns a flag to a return point. Must run on the thread that owns the flag.
+     *
+     * @param flag        The flag entity.
+     * @param returnPoint Where to return the flag to.
+     */
+    private void returnFlag(@NotNull Entity flag, @NotNull Arena.ReturnPoint returnPoint) {
+        World world = Bukkit.getWorld(returnPoint.world());
+        UUID entityId = flag.getUniqueId();
+        if (world == null || !flag.isValid() || !registry.isTracked(entityId)) {
+            return;
+        }
+        journal(FlagJournal.Action.RETURN, flag, registry.getFlagId(entityId));
+        flag.setVelocity(new Vector());
+        flag.setFireTicks(0);
+        flag.teleportAsync(new Location(world, returnPoint.x(), returnPoint.y(), returnPoint.z()))
+                .thenAccept(moved -> {
+                    if (moved) {
+                        positions.refresh(flag);
                     }
-                    World world = entity.getWorld();
-                    int worldHeight = world.getMaxHeight() - world.getMinHeight();
-                    world.playSound(
-                            Sound.sound(Key.key("entity.firework_rocket.launch"),
-                                    Sound.Source.AMBIENT, 512,
-                                    1), entity);
-                    Particle.FIREWORK.builder().count(worldHeight * 2).location(entity.getLocation())
-                            .offset(0, worldHeight, 0).receivers(512).spawn();
-                }, () -> knownFlagEntities.remove(entity), Tick.tick()
-                        .fromDuration(Duration.ofSeconds(ThreadLocalRandom.current().nextInt(60,
-                                120))),
-                Tick.tick().fromDuration(Duration.ofMinutes(1)));
-        
-        knownFlagEntities.add(entity);
-        
-    }
-    
-    /**
-     * The action to take when a player quits with the flag.
-     */
-    private enum QuitMode {
-        /**
-         * Kill the player when they quit with the flag.
-         */
-        KILL,
-        /**
-         * Drop the flag when the player quits.
-         */
-        DROP
+                });
+    }
+    
+    /**
+     * Queues stopping the flag music for an entity that no longer carries a flag. The stop is
+     * never dropped, so the music cannot keep playing after the flag is gone.
+     *
+     * @param entity The entity.
+     */
+    private void stopFlagMusic(@NotNull Entity entity) {
+        cosmetics.submitCleanup(entity, listener -> listener.stopSound(
+                SoundStop.namedOnSource(Key.key(FLAG_MUSIC), Sound.Source.MUSIC)));
+    }
+    
+    /**
+     * Records a flag event in the journal, at the location of the entity involved.
+     *
+     * @param action The event to record.
+     * @param actor  The entity involved.
+     * @param flagId The id of the flag, or null if it is not known.
+     */
+    private void journal(@NotNull FlagJournal.Action action, @NotNull Entity actor,
+                         @Nullable UUID flagId) {
+        Location location = actor.getLocation(JOURNAL_LOCATION.get());
+        journal.record(action, actor.getUniqueId(),
+                actor instanceof HumanEntity human ? human.getName() : null, flagId,
+                location.getWorld().getName(), location.getX(), location.getY(), location.getZ());
+    }
+    
+    /**
+     * Registers the game-active listener while any flag is known, and unregisters it once the last
+     * flag is gone, so servers with no game running do not pay for the flag handlers.
+     */
+    private void updateActiveListener() {
+        synchronized (activeListener) {
+            boolean active = !registry.isEmpty() && plugin.isEnabled();
+            if (active && !activeListenerRegistered) {
+                Bukkit.getPluginManager().registerEvents(activeListener, plugin);
+                activeListenerRegistered = true;
+            } else if (!active && activeListenerRegistered) {
+                HandlerList.unregisterAll(activeListener);
+                activeListenerRegistered = false;
+            }
+        }
+    }
+    
+    /**
+     * Check if the game-active listener is registered.
+     *
+     * @return True if the game-active handlers are receiving events, false otherwise.
+     */
+    boolean isGameActive() {
+        synchronized (activeListener) {
+            return activeListenerRegistered;
+        }
+    }
+    
+    /**
+     * Gives every arena in the settings a state, carrying over the state of arenas that keep their
+     * name, and drops the state of arenas that are gone.
+     *
+     * @param newSettings The settings to match.
+     */
+    private void syncArenaStates(@NotNull TrackerSettings newSettings) {
+        List<String> teamNames = newSettings.captureZones().getTeamNames();
+        Set<String> names = new HashSet<>();
+        for (Arena arena : newSettings.arenas().getArenas()) {
+            names.add(arena.name());
+            arenaStates.computeIfAbsent(arena.name(), name -> new ArenaState(teamNames))
+                    .setTeams(teamNames);
+        }
+        arenaStates.keySet().retainAll(names);
+    }
+    
+    /**
+     * Counts a new flag against the limit of the arena it is made in.
+     *
+     * @param arena The arena the flag is made in, or null if it is not in an arena.
+     * @param flag  The id of the flag.
+     * @throws IllegalStateException If the flag is not in an arena, or the arena is full.
+     */
+    private void reserveFlag(@Nullable Arena arena, @NotNull UUID flag) {
+        if (arena == null) {
+            throw new IllegalStateException("Flags can only be made in an arena");
+        }
+        ArenaState state = arenaStates.get(arena.name());
+        if (state != null && !state.addFlag(flag, arena.maxFlags())) {
+            throw new IllegalStateException(
+                    "Arena " + arena.name() + " already has " + arena.maxFlags() + " flags");
+        }
+    }
+    
+    /**
+     * Check if a flag should fire its beacon, given the arena it is in. Must run on the thread
+     * that owns the flag.
+     *
+     * @param flag The flag.
+     * @return True if the flag's arena uses beacons, false otherwise.
+     */
+    private boolean hasBeacon(@NotNull Entity flag) {
+        Arena arena = settings.arenas().find(flag);
+        return arena != null && arena.particleBeacon();
+    }
+    
+    /**
+     * Swaps in new settings, and starts or stops the tasks they turn on or off. Flags already
+     * known keep their beacons and positions, so nothing is rescanned.
+     *
+     * @param newSettings The new settings.
+     */
+    synchronized void applySettings(@NotNull TrackerSettings newSettings) {
+        TrackerSettings old = settings;
+        syncArenaStates(newSettings);
+        settings = newSettings;
+        beaconService.setSettings(newSettings.beacon());
+        boolean beacons = newSettings.arenas().anyBeacons();
+        if (beacons && !old.arenas().anyBeacons()) {
+            beaconService.start();
+        } else if (!beacons && old.arenas().anyBeacons()) {
+            beaconService.stop();
+        }
+        if (newSettings.keepFlagChunksLoaded() && !old.keepFlagChunksLoaded()) {
+            chunkTickets.start();
+        } else if (!newSettings.keepFlagChunksLoaded() && old.keepFlagChunksLoaded()) {
+            chunkTickets.stopAndRelease();
+        }
+    }
+    
+    /**
+     * Stops the background work of the tracker.
+     */
+    void shutdown() {
+        registry.setOccupancyListener(null);
+        beaconService.stop();
+        locator.stop();
+        if (webServer != null) {
+            journal.setSubscriber(null);
+            webServer.stop();
+        }
+        snapshots.stop();
+        provisioner.stop();
+        chunkTickets.stop();
+        trails.stop();
+        try {
+            Path trailFile = trails.exportNow();
+            if (trailFile != null) {
+                logger.info("Flag trails written to " + trailFile);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write flag trails", e);
+        }
+        watchdog.stop();
+        cosmetics.stop();
+        scanPipeline.shutdown();
+        checkpoint.stop();
+        journal.close();
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,376 @@
+package io.github.minus1over12.ctfbuddy;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import io.papermc.paper.util.Tick;
+import org.bukkit.Bukkit;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Returns flags that are stuck in a hazard to their arena's return point. Every pass groups the
+ * flags in the latest snapshot by chunk, and a single task on each chunk's region reads the exact
+ * position of all its flags and takes a snapshot of the chunk. Once every chunk has reported, the
+ * snapshots are checked together off the main thread, so the cost on the region threads is one
+ * task and one chunk copy per flag chunk, however many flags and arenas there are.
+ *
+ * <p>A flag is in a hazard if it is in or on lava, inside a solid block, outside its arena's
+ * region, or below the bottom of the world. Flags that stay in a hazard for the whole grace
+ * period are returned; flags below the world are returned right away, before the void removes
+ * them. Flags in unloaded chunks, flags being carried, and flags in arenas with no return point
+ * are left alone.</p>
+ *
+ * @author War Pigeon
+ */
+final class FlagWatchdog {
+    /**
+     * Reference to the plugin class. Needed for scheduling tasks.
+     */
+    private final @NotNull Plugin plugin;
+    /**
+     * Source of the flag snapshots to check.
+     */
+    private final @NotNull FlagSnapshotPublisher snapshots;
+    /**
+     * Finds the arena each flag belongs to, under the current settings.
+     */
+    private final @NotNull ArenaLookup arenas;
+    /**
+     * Returns a flag to a return point. Called on the thread that owns the flag.
+     */
+    private final @NotNull BiConsumer<Entity, Arena.ReturnPoint> returner;
+    /**
+     * Counts and times the chunk tasks.
+     */
+    private final @NotNull HandlerStats stats;
+    /**
+     * Time a flag may stay in a hazard before it is returned, in milliseconds.
+     */
+    private final long graceMillis;
+    /**
+     * When each flag in a hazard was first seen in it, keyed by entity UUID. Only used by the
+     * check at the end of a pass, and passes never overlap.
+     */
+    private final Map<UUID, Long> hazardSince = new HashMap<>();
+    /**
+     * Whether a pass is in progress.
+     */
+    private final AtomicBoolean passRunning = new AtomicBoolean();
+    /**
+     * The task starting passes, or null if the watchdog is not running.
+     */
+    private @Nullable ScheduledTask task;
+    
+    /**
+     * Create a new FlagWatchdog.
+     *
+     * @param plugin      The plugin to schedule tasks for.
+     * @param snapshots   Source of the flag snapshots to check.
+     * @param arenas      Finds the arena each flag belongs to. Called off the main thread.
+     * @param returner    Returns a flag to a return point. Called on the thread that owns the
+     *                    flag.
+     * @param stats       The statistics to record chunk tasks in.
+     * @param graceMillis Time a flag may stay in a hazard before it is returned, in milliseconds.
+     */
+    FlagWatchdog(@NotNull Plugin plugin, @NotNull FlagSnapshotPublisher snapshots,
+                 @NotNull ArenaLookup arenas,
+                 @NotNull BiConsumer<Entity, Arena.ReturnPoint> returner,
+                 @NotNull HandlerStats stats, long graceMillis) {
+        this.plugin = plugin;
+        this.snapshots = snapshots;
+        this.arenas = arenas;
+        this.returner = returner;
+        this.stats = stats;
+        this.graceMillis = graceMillis;
+    }
+    
+    /**
+     * Starts checking flags.
+     *
+     * @param interval Time between passes.
+     */
+    synchronized void start(@NotNull Duration interval) {
+        if (task == null) {
+            int intervalTicks = Math.max(1, Tick.tick().fromDuration(interval));
+            task = Bukkit.getGlobalRegionScheduler()
+                    .runAtFixedRate(plugin, scheduledTask -> startPass(), intervalTicks,
+                            intervalTicks);
+        }
+    }
+    
+    /**
+     * Stops checking flags. A pass already in progress finishes.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+    
+    /**
+     * Hands every chunk holding a flag to its region, unless the last pass has not finished.
+     */
+    private void startPass() {
+        if (!passRunning.compareAndSet(false, true)) {
+            return;
+        }
+        Map<WatchedChunk, List<UUID>> byChunk = new HashMap<>();
+        for (FlagPosition position : snapshots.getSnapshot().flags()) {
+            if (position.kind() != FlagPosition.Kind.CARRIER) {
+                byChunk.computeIfAbsent(new WatchedChunk(position.world(), position.chunkX(),
+                        position.chunkZ()), chunk -> new ArrayList<>()).add(position.entityId());
+            }
+        }
+        Queue<ChunkCheck> checks = new ConcurrentLinkedQueue<>();
+        if (byChunk.isEmpty()) {
+            finishPass(checks);
+            return;
+        }
+        AtomicInteger remaining = new AtomicInteger(byChunk.size());
+        byChunk.forEach((chunk, flags) -> {
+            World world = Bukkit.getWorld(chunk.world());
+            if (world == null) {
+                if (remaining.decrementAndGet() == 0) {
+                    finishPass(checks);
+                }
+                return;
+            }
+            Bukkit.getRegionScheduler().execute(plugin, world, chunk.x(), chunk.z(), () -> {
+                try {
+                    ChunkCheck check = readChunk(world, chunk, flags);
+                    if (check != null) {
+                        checks.add(check);
+                    }
+                } finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        finishPass(checks);
+                    }
+                }
+            });
+        });
+    }
+    
+    /**
+     * Reads the positions of the flags in a chunk and takes a snapshot of it. Must run on the
+     * thread that owns the chunk.
+     *
+     * @param world The world the chunk is in.
+     * @param chunk The chunk.
+     * @param flags The UUIDs of the flag entities last seen in the chunk.
+     * @return What to check, or null if the chunk is not loaded or its flags have moved on.
+     */
+    private @Nullable ChunkCheck readChunk(@NotNull World world, @NotNull WatchedChunk chunk,
+                                           @NotNull List<UUID> flags) {
+        long start = System.nanoTime();
+        List<Sample> samples = new ArrayList<>(flags.size());
+        if (world.isChunkLoaded(chunk.x(), chunk.z())) {
+            Location location = new Location(world, 0, 0, 0);
+            for (UUID entityId : flags) {
+                Entity entity = world.getEntity(entityId);
+                if (entity == null || !Bukkit.isOwnedByCurrentRegion(entity)) {
+                    continue;
+                }
+                entity.getLocation(location);
+                // A flag that has crossed into another chunk is checked there on the next pass
+                if (location.getBlockX() >> 4 == chunk.x() &&
+                        location.getBlockZ() >> 4 == chunk.z()) {
+                    samples.add(new Sample(entity, location.getX(), location.getY(),
+                            location.getZ(), entity.getHeight()));
+                }
+            }
+        }
+        if (samples.isEmpty()) {
+            stats.record(HandlerStats.Probe.HAZARD_CHECK, start, false);
+            return null;
+        }
+        ChunkCheck check = new ChunkCheck(world.getName(), world.getMinHeight(),
+                world.getMaxHeight(), world.getChunkAt(chunk.x(), chunk.z())
+                .getChunkSnapshot(false, false, false), samples);
+        stats.record(HandlerStats.Probe.HAZARD_CHECK, start, true);
+        return check;
+    }
+    
+    /**
+     * Checks the chunk snapshots of a pass off the main thread and returns the flags that have
+     * been in a hazard too long.
+     *
+     * @param checks The chunks read in the pass.
+     */
+    private void finishPass(@NotNull Queue<ChunkCheck> checks) {
+        Bukkit.getAsyncScheduler().runNow(plugin, scheduledTask -> {
+            try {
+                checkHazards(checks);
+            } finally {
+                passRunning.set(false);
+            }
+        });
+    }
+    
+    /**
+     * Checks every sampled flag against the hazard rules.
+     *
+     * @param checks The chunks read in the pass.
+     */
+    private void checkHazards(@NotNull Queue<ChunkCheck> checks) {
+        long now = System.currentTimeMillis();
+        Set<UUID> inHazard = new HashSet<>();
+        for (ChunkCheck check : checks) {
+            for (Sample sample : check.samples()) {
+                UUID entityId = sample.entity().getUniqueId();
+                Arena arena = arenas.arenaOf(entityId, check.world(), sample.x(), sample.y(),
+                        sample.z());
+                if (arena == null || arena.returnPoint() == null) {
+                    continue;
+                }
+                Hazard hazard = findHazard(check, sample, arena);
+                if (hazard == null) {
+                    continue;
+                }
+                long since = hazardSince.computeIfAbsent(entityId, id -> now);
+                if (hazard == Hazard.VOID || now - since >= graceMillis) {
+                    Entity entity = sample.entity();
+                    Arena.ReturnPoint returnPoint = arena.returnPoint();
+                    entity.getScheduler().run(plugin,
+                            scheduledTask -> returner.accept(entity, returnPoint), null);
+                } else {
+                    inHazard.add(entityId);
+                }
+            }
+        }
+        // Flags that left their hazard, were returned, or were not seen start over
+        hazardSince.keySet().retainAll(inHazard);
+    }
+    
+    /**
+     * Finds the hazard a flag is in.
+     *
+     * @param check  The chunk the flag is in.
+     * @param sample The flag.
+     * @param arena  The arena the flag is in.
+     * @return The hazard, or null if the flag is safe.
+     */
+    private static @Nullable Hazard findHazard(@NotNull ChunkCheck check, @NotNull Sample sample,
+                                               @NotNull Arena arena) {
+        int blockY = (int) Math.floor(sample.y());
+        if (blockY < check.minHeight()) {
+            return Hazard.VOID;
+        }
+        if (!arena.contains(sample.x(), sample.y(), sample.z())) {
+            return Hazard.OUT_OF_ARENA;
+        }
+        if (blockY >= check.maxHeight()) {
+            return null;
+        }
+        int blockX = (int) Math.floor(sample.x()) & 15;
+        int blockZ = (int) Math.floor(sample.z()) & 15;
+        ChunkSnapshot snapshot = check.snapshot();
+        if (snapshot.getBlockType(blockX, blockY, blockZ) == Material.LAVA ||
+                blockY > check.minHeight() &&
+                        snapshot.getBlockType(blockX, blockY - 1, blockZ) == Material.LAVA) {
+            return Hazard.LAVA;
+        }
+        // The feet of a flag standing on a block shorter than a full block, such as soul sand or
+        // mud, are inside that block, so the block around its middle is checked instead
+        int middleY = (int) Math.floor(sample.y() + sample.height() / 2);
+        return middleY < check.maxHeight() &&
+                snapshot.getBlockType(blockX, middleY, blockZ).isOccluding() ?
+                Hazard.INSIDE_BLOCK : null;
+    }
+    
+    /**
+     * Finds the arena a flag belongs to.
+     */
+    @FunctionalInterface
+    interface ArenaLookup {
+        /**
+         * Finds the arena a flag belongs to, which may not be the arena it is in if it has strayed.
+         * Called off the main thread, so it must not touch Bukkit objects.
+         *
+         * @param entityId The UUID of the flag entity.
+         * @param world    The name of the world the flag is in.
+         * @param x        The x coordinate of the flag.
+         * @param y        The y coordinate of the flag.
+         * @param z        The z coordinate of the flag.
+         * @return The arena, or null if the flag belongs to no arena.
+         */
+        @Nullable Arena arenaOf(@NotNull UUID entityId, @NotNull String world, double x, double y,
+                                double z);
+    }
+    
+    /**
+     * Something that can leave a flag stuck or lost.
+     */
+    private enum Hazard {
+        /**
+         * In or on top of lava. Flags are fire resistant, so they float there forever.
+         */
+        LAVA,
+        /**
+         * Below the bottom of the world.
+         */
+        VOID,
+        /**
+         * Inside a solid block, where players cannot reach it.
+         */
+        INSIDE_BLOCK,
+        /**
+         * Outside the region of its arena.
+         */
+        OUT_OF_ARENA
+    }
+    
+    /**
+     * A chunk holding flags.
+     *
+     * @param world The name of the world.
+     * @param x     The x coordinate of the chunk.
+     * @param z     The z coordinate of the chunk.
+     */
+    private record WatchedChunk(@NotNull String world, int x, int z) {
+    }
+    
+    /**
+     * The exact position of a flag, read on the thread that owns it.
+     *
+     * @param entity The flag entity.
+     * @param x      The x coordinate.
+     * @param y      The y coordinate.
+     * @param z      The z coordinate.
+     * @param height The height of the entity.
+     */
+    private record Sample(@NotNull Entity entity, double x, double y, double z, double height) {
+    }
+    
+    /**
+     * A snapshot of a chunk and the flags in it, ready to be checked off the main thread.
+     *
+     * @param world     The name of the world.
+     * @param minHeight The lowest block height of the world.
+     * @param maxHeight The height above the highest block of the world.
+     * @param snapshot  The blocks of the chunk.
+     * @param samples   The flags in the chunk.
+     */
+    private record ChunkCheck(@NotNull String world, int minHeight, int maxHeight,
+                              @NotNull ChunkSnapshot snapshot, @NotNull List<Sample> samples) {
+    }
+}
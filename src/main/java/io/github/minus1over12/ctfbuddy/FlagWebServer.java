@@ -0,0 +1,331 @@
+package io.github.minus1over12.ctfbuddy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small HTTP server for stream overlays and live maps. {@code /flags} serves the latest flag
+ * snapshot as JSON, and {@code /events} streams journal records as server-sent events. Every
+ * response body is serialized once and the same bytes are shared by every client, so the cost of
+ * a change does not grow with the number of viewers. Requests are handled on virtual threads and
+ * never touch the server's tick threads.
+ *
+ * <p>When a token is set, every request must carry it, as a {@code Bearer} authorization header
+ * or a {@code token} query parameter, since browser event streams cannot set headers. Browsers
+ * only let pages read responses if the page is from the allowed origin, if one is set, so other
+ * sites open in a viewer's browser cannot read player names and positions.
+ *
+ * @author War Pigeon
+ */
+final class FlagWebServer {
+    /**
+     * Events a slow client can fall behind by before it is disconnected.
+     */
+    private static final int CLIENT_BACKLOG = 256;
+    /**
+     * Time between keep-alive comments on an idle event stream.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 15;
+    /**
+     * Keep-alive comment sent on idle event streams, so proxies do not close them.
+     */
+    private static final byte[] KEEP_ALIVE = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+    /**
+     * Marker queued to an event stream to end it.
+     */
+    private static final byte[] CLOSE = new byte[0];
+    
+    /**
+     * Source of the flag snapshots to serve.
+     */
+    private final @NotNull FlagSnapshotPublisher snapshots;
+    /**
+     * The HTTP server.
+     */
+    private final @NotNull HttpServer server;
+    /**
+     * Executor running a virtual thread per request.
+     */
+    private final @NotNull ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    /**
+     * The pending events of every connected event stream.
+     */
+    private final Set<BlockingQueue<byte[]>> clients = ConcurrentHashMap.newKeySet();
+    /**
+     * The token every request must carry, encoded as UTF-8, or null if requests need no token.
+     */
+    private final byte @Nullable [] token;
+    /**
+     * The origin whose pages may read the responses, or null to allow no other site.
+     */
+    private final @Nullable String allowedOrigin;
+    /**
+     * The serialized form of the latest snapshot served, or null if none has been served.
+     */
+    private volatile @Nullable SerializedSnapshot serialized;
+    
+    /**
+     * Create a new FlagWebServer. The server does not accept connections until it is started.
+     *
+     * @param snapshots     Source of the flag snapshots to serve.
+     * @param address       The address to listen on.
+     * @param token         The token every request must carry, or null if requests need no
+     *                      token.
+     * @param allowedOrigin The origin whose pages may read the responses, or null to allow no
+     *                      other site.
+     * @throws IOException If the address could not be bound.
+     */
+    FlagWebServer(@NotNull FlagSnapshotPublisher snapshots, @NotNull InetSocketAddress address,
+                  @Nullable String token, @Nullable String allowedOrigin) throws IOException {
+        this.snapshots = snapshots;
+        this.token = token == null ? null : token.getBytes(StandardCharsets.UTF_8);
+        this.allowedOrigin = allowedOrigin;
+        server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext("/flags", this::serveFlags);
+        server.createContext("/events", this::serveEvents);
+    }
+    
+    /**
+     * Check if an address only accepts connections from the local machine.
+     *
+     * @param address The address.
+     * @return True if the address is a loopback address, false otherwise.
+     */
+    static boolean isLoopback(@NotNull InetSocketAddress address) {
+        return address.getAddress() != null && address.getAddress().isLoopbackAddress();
+    }
+    
+    /**
+     * Starts accepting connections.
+     */
+    void start() {
+        server.start();
+    }
+    
+    /**
+     * Closes every event stream and stops the server.
+     */
+    void stop() {
+        for (BlockingQueue<byte[]> client : clients) {
+            client.clear();
+            client.offer(CLOSE);
+        }
+        server.stop(0);
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Sends a journal record to every connected event stream. Never blocks; clients that have
+     * fallen too far behind are disconnected.
+     *
+     * @param record The record, as a JSON object.
+     */
+    void publishEvent(@NotNull String record) {
+        if (clients.isEmpty()) {
+            return;
+        }
+        byte[] frame = ("data: " + record + "\n\n").getBytes(StandardCharsets.UTF_8);
+        for (BlockingQueue<byte[]> client : clients) {
+            if (!client.offer(frame)) {
+                clients.remove(client);
+                client.clear();
+                client.offer(CLOSE);
+            }
+        }
+    }
+    
+    /**
+     * Serves the latest flag snapshot.
+     *
+     * @param exchange The request.
+     * @throws IOException If the response could not be sent.
+     */
+    private void serveFlags(@NotNull HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!accept(exchange)) {
+                return;
+            }
+            byte[] body = serializedSnapshot();
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+    
+    /**
+     * Streams journal records until the client disconnects.
+     *
+     * @param exchange The request.
+     * @throws IOException If the response could not be sent.
+     */
+    private void serveEvents(@NotNull HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!accept(exchange)) {
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            BlockingQueue<byte[]> client = new ArrayBlockingQueue<>(CLIENT_BACKLOG);
+            clients.add(client);
+            try {
+                OutputStream out = exchange.getResponseBody();
+                out.write(KEEP_ALIVE);
+                out.flush();
+                while (true) {
+                    byte[] frame = client.poll(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+                    if (frame == CLOSE) {
+                        return;
+                    }
+                    out.write(frame == null ? KEEP_ALIVE : frame);
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                clients.remove(client);
+            }
+        }
+    }
+    
+    /**
+     * Checks the method and token of a request, and answers it with an error if either is wrong.
+     * Allows the allowed origin, if any, to read accepted requests.
+     *
+     * @param exchange The request.
+     * @return True if the request should be served, false if it has been answered.
+     * @throws IOException If the error could not be sent.
+     */
+    private boolean accept(@NotNull HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            exchange.sendResponseHeaders(405, -1);
+            return false;
+        }
+        if (token != null && !hasToken(exchange)) {
+            exchange.sendResponseHeaders(401, -1);
+            return false;
+        }
+        if (allowedOrigin != null) {
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", allowedOrigin);
+            exchange.getResponseHeaders().set("Vary", "Origin");
+        }
+        return true;
+    }
+    
+    /**
+     * Check if a request carries the token, in its authorization header or its query.
+     *
+     * @param exchange The request.
+     * @return True if the request carries the token, false otherwise.
+     */
+    private boolean hasToken(@NotNull HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization != null && authorization.startsWith("Bearer ") &&
+                matchesToken(authorization.substring("Bearer ".length()))) {
+            return true;
+        }
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return false;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith("token=") && matchesToken(
+                    URLDecoder.decode(parameter.substring("token=".length()),
+                            StandardCharsets.UTF_8))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Compares a candidate with the token, in time that does not depend on where they differ.
+     *
+     * @param candidate The candidate token.
+     * @return True if the candidate is the token, false otherwise.
+     */
+    private boolean matchesToken(@NotNull String candidate) {
+        return MessageDigest.isEqual(token, candidate.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Gets the latest snapshot as JSON, serializing it only if it has changed since it was last
+     * served.
+     *
+     * @return The JSON body.
+     */
+    private byte @NotNull [] serializedSnapshot() {
+        FlagSnapshot snapshot = snapshots.getSnapshot();
+        SerializedSnapshot cached = serialized;
+        if (cached != null && cached.version() == snapshot.version()) {
+            return cached.body();
+        }
+        synchronized (this) {
+            cached = serialized;
+            if (cached == null || cached.version() != snapshot.version()) {
+                cached = new SerializedSnapshot(snapshot.version(), toJson(snapshot));
+                serialized = cached;
+            }
+            return cached.body();
+        }
+    }
+    
+    /**
+     * Serializes a snapshot as JSON.
+     *
+     * @param snapshot The snapshot.
+     * @return The JSON, encoded as UTF-8.
+     */
+    private static byte @NotNull [] toJson(@NotNull FlagSnapshot snapshot) {
+        StringBuilder json = new StringBuilder(64 + snapshot.flags().size() * 192);
+        json.append("{\"version\":").append(snapshot.version());
+        json.append(",\"time\":").append(snapshot.publishedAt());
+        json.append(",\"flags\":[");
+        boolean first = true;
+        for (FlagPosition flag : snapshot.flags()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"entity\":\"").append(flag.entityId()).append('"');
+            json.append(",\"state\":\"").append(flag.kind().name()).append('"');
+            json.append(",\"flag\":");
+            FlagJournal.appendJsonString(json,
+                    flag.flagId() == null ? null : flag.flagId().toString());
+            json.append(",\"world\":");
+            FlagJournal.appendJsonString(json, flag.world());
+            json.append(",\"x\":").append(flag.x());
+            json.append(",\"y\":").append(flag.y());
+            json.append(",\"z\":").append(flag.z());
+            json.append(",\"time\":").append(flag.time()).append('}');
+        }
+        json.append("]}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * A snapshot serialized as JSON.
+     *
+     * @param version The version of the snapshot.
+     * @param body    The JSON, encoded as UTF-8.
+     */
+    private record SerializedSnapshot(long version, byte @NotNull [] body) {
+    }
+}
@@ -0,0 +1,232 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and times every event handler and beacon task, so the tick cost of the plugin can be
+ * shown during an event. All counters are striped, so recording never takes a lock.
+ *
+ * @author War Pigeon
+ */
+final class HandlerStats {
+    /**
+     * Number of calls made to each probe.
+     */
+    private final LongAdder[] calls = new LongAdder[Probe.values().length];
+    /**
+     * Number of calls to each probe that involved a flag.
+     */
+    private final LongAdder[] hits = new LongAdder[Probe.values().length];
+    /**
+     * Latencies of the calls to each probe.
+     */
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Probe.values().length];
+    
+    /**
+     * Create a new HandlerStats with every counter at zero.
+     */
+    HandlerStats() {
+        for (int i = 0; i < calls.length; i++) {
+            calls[i] = new LongAdder();
+            hits[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+    
+    /**
+     * Records a call. Safe to call from any thread.
+     *
+     * @param probe      The handler or task that was called.
+     * @param startNanos The value of {@link System#nanoTime()} when the call started.
+     * @param hit        Whether the call involved a flag.
+     */
+    void record(@NotNull Probe probe, long startNanos, boolean hit) {
+        int index = probe.ordinal();
+        latencies[index].record(System.nanoTime() - startNanos);
+        calls[index].increment();
+        if (hit) {
+            hits[index].increment();
+        }
+    }
+    
+    /**
+     * Gets the current figures of every probe that has been called.
+     *
+     * @return The figures, in probe order.
+     */
+    @NotNull List<Row> snapshot() {
+        List<Row> rows = new ArrayList<>();
+        for (Probe probe : Probe.values()) {
+            int index = probe.ordinal();
+            long callCount = calls[index].sum();
+            if (callCount > 0) {
+                LatencyHistogram latency = latencies[index];
+                rows.add(new Row(probe, callCount, hits[index].sum(), latency.quantile(0.5),
+                        latency.quantile(0.99), latency.getMax()));
+            }
+        }
+        return rows;
+    }
+    
+    /**
+     * Gets the total number of calls to every probe.
+     *
+     * @return The total number of calls.
+     */
+    long getTotalCalls() {
+        long total = 0;
+        for (LongAdder callCount : calls) {
+            total += callCount.sum();
+        }
+        return total;
+    }
+    
+    /**
+     * Gets the highest 99th percentile latency of any probe.
+     *
+     * @return The highest p99 latency in nanoseconds.
+     */
+    long getWorstP99() {
+        long worst = 0;
+        for (LatencyHistogram latency : latencies) {
+            worst = Math.max(worst, latency.quantile(0.99));
+        }
+        return worst;
+    }
+    
+    /**
+     * Sets every counter back to zero.
+     */
+    void reset() {
+        for (int i = 0; i < calls.length; i++) {
+            calls[i].reset();
+            hits[i].reset();
+            latencies[i].reset();
+        }
+    }
+    
+    /**
+     * The handlers and tasks that are measured.
+     */
+    enum Probe {
+        /**
+         * A hopper or other inventory trying to pick up an item.
+         */
+        INVENTORY_PICKUP_ITEM,
+        /**
+         * An item trying to despawn.
+         */
+        ITEM_DESPAWN,
+        /**
+         * An entity picking up an item.
+         */
+        ENTITY_PICKUP_ITEM,
+        /**
+         * An entity dying.
+         */
+        ENTITY_DEATH,
+        /**
+         * An entity spawning.
+         */
+        ENTITY_SPAWN,
+        /**
+         * An entity going through a portal.
+         */
+        ENTITY_PORTAL,
+        /**
+         * A player going through a portal.
+         */
+        PLAYER_PORTAL,
+        /**
+         * A player quitting.
+         */
+        PLAYER_QUIT,
+        /**
+         * A player joining.
+         */
+        PLAYER_JOIN,
+        /**
+         * An entity picking a target.
+         */
+        ENTITY_TARGET,
+        /**
+         * An entity transforming into another.
+         */
+        ENTITY_TRANSFORM,
+        /**
+         * An entity being removed from the world.
+         */
+        ENTITY_REMOVE,
+        /**
+         * A player moving.
+         */
+        PLAYER_MOVE,
+        /**
+         * A world loading.
+         */
+        WORLD_LOAD,
+        /**
+         * The entities of a chunk loading.
+         */
+        ENTITIES_LOAD,
+        /**
+         * The entities of a chunk unloading.
+         */
+        ENTITIES_UNLOAD,
+        /**
+         * Handing every beacon to its entity scheduler.
+         */
+        BEACON_DISPATCH,
+        /**
+         * Firing a single beacon.
+         */
+        BEACON_FIRE,
+        /**
+         * Running the queued cosmetic effects for a tick.
+         */
+        COSMETIC_DRAIN,
+        /**
+         * Reading the flags in a chunk for the hazard watchdog.
+         */
+        HAZARD_CHECK
+    }
+    
+    /**
+     * The figures of a single probe.
+     *
+     * @param probe    The handler or task.
+     * @param calls    Number of calls.
+     * @param hits     Number of calls that involved a flag.
+     * @param p50Nanos Median latency in nanoseconds.
+     * @param p99Nanos 99th percentile latency in nanoseconds.
+     * @param maxNanos Largest latency in nanoseconds.
+     */
+    record Row(@NotNull Probe probe, long calls, long hits, long p50Nanos, long p99Nanos,
+               long maxNanos) {
+        /**
+         * Gets the share of calls that involved a flag.
+         *
+         * @return The hit ratio, between 0 and 1.
+         */
+        double hitRatio() {
+            return calls == 0 ? 0 : (double) hits / calls;
+        }
+        
+        /**
+         * Formats the figures as a single line.
+         *
+         * @return The formatted line.
+         */
+        @NotNull String format() {
+            return String.format(Locale.ROOT,
+                    "%-22s calls=%d hit=%.1f%% p50=%.1fus p99=%.1fus max=%.1fus",
+                    probe.name().toLowerCase(Locale.ROOT), calls, hitRatio() * 100,
+                    p50Nanos / 1000.0, p99Nanos / 1000.0, maxNanos / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package io.github.minus1over12.ctfbuddy;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds. Buckets are powers of two split into four
+ * sub-buckets, so quantiles are accurate to within a quarter of their magnitude. Every bucket is a
+ * striped counter, so recording from many threads at once does not contend.
+ *
+ * @author War Pigeon
+ */
+final class LatencyHistogram {
+    /**
+     * Number of bits of each value, below its highest bit, used to pick a sub-bucket.
+     */
+    private static final int SUB_BUCKET_BITS = 2;
+    /**
+     * Number of sub-buckets in each power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Total number of buckets, enough to cover every non-negative long.
+     */
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    
+    /**
+     * Number of values recorded in each bucket.
+     */
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    /**
+     * The largest value recorded.
+     */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    
+    /**
+     * Create a new, empty LatencyHistogram.
+     */
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+    
+    /**
+     * Records a latency. Safe to call from any thread.
+     *
+     * @param nanos The latency in nanoseconds. Negative values are recorded as 0.
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[bucketOf(value)].increment();
+        max.accumulate(value);
+    }
+    
+    /**
+     * Estimates a quantile of the recorded latencies. The estimate is the upper bound of the
+     * bucket the quantile falls in, capped at the largest recorded value.
+     *
+     * @param quantile The quantile, between 0 and 1.
+     * @return The estimated latency in nanoseconds, or 0 if nothing has been recorded.
+     */
+    long quantile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+    
+    /**
+     * Gets the largest recorded latency.
+     *
+     * @return The largest latency in nanoseconds, or 0 if nothing has been recorded.
+     */
+    long getMax() {
+        return max.get();
+    }
+    
+    /**
+     * Clears the histogram. Values recorded while the reset is running may or may not be kept.
+     */
+    void reset() {
+        for (LongAdder count : counts) {
+            count.reset();
+        }
+        max.reset();
+    }
+    
+    /**
+     * Works out which bucket a value belongs in.
+     *
+     * @param value The non-negative value.
+     * @return The bucket index.
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+    
+    /**
+     * Gets the largest value that belongs in a bucket.
+     *
+     * @param bucket The bucket index.
+     * @return The largest value in the bucket.
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        long lowerBound = (long) (SUB_BUCKETS | subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,51 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+
+/**
+ * Settings for the flag locator.
+ *
+ * @param mode     How the locator is shown to players.
+ * @param interval Time between locator updates for each viewer.
+ * @param maxFlags The most flags listed at once.
+ * @author War Pigeon
+ */
+record LocatorSettings(@NotNull Mode mode, @NotNull Duration interval, int maxFlags) {
+    /**
+     * Reads the locator settings from the plugin config.
+     *
+     * @param config The plugin config.
+     * @return The locator settings.
+     */
+    static @NotNull LocatorSettings fromConfig(@NotNull ConfigurationSection config) {
+        return new LocatorSettings(
+                Mode.valueOf(config.getString("locator", "NONE").trim().toUpperCase()),
+                Duration.ofMillis(Math.max(50, config.getLong("locatorIntervalMillis", 500))),
+                Math.max(1, config.getInt("locatorMaxFlags", 3)));
+    }
+    
+    /**
+     * How the locator is shown to players.
+     */
+    enum Mode {
+        /**
+         * The locator is turned off.
+         */
+        NONE,
+        /**
+         * The direction and distance of the nearest flags are shown in a boss bar.
+         */
+        BOSS_BAR,
+        /**
+         * The direction and distance of the nearest flags are shown above the hotbar.
+         */
+        ACTION_BAR,
+        /**
+         * The player's compass points at the nearest flag.
+         */
+        COMPASS
+    }
+}
@@ -0,0 +1,451 @@
+package io.github.minus1over12.ctfbuddy;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import net.kyori.adventure.text.Component;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Item;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scoreboard.Team;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Makes every flag listed in a match file, for {@code /makeflag load}. The file is read off the
+ * main thread, the chunks the flags go in are loaded in the background, and a global task makes
+ * the flags of the loaded chunks each tick until its time budget is spent, leaving the rest for
+ * the next tick. Setting up a large match therefore never lands in a single tick.
+ *
+ * <p>A match file lives in the {@code matches} folder inside the plugin folder, and lists its
+ * flags under {@code flags}, each with a {@code name}, a {@code world}, a {@code location} and
+ * either an {@code item} material or a {@code mob} entity type. An optional {@code team} adds the
+ * flag to the scoreboard team of that name, so it glows in the team's color, and makes an item flag
+ * that team's own flag, which only other teams can capture.</p>
+ *
+ * @author War Pigeon
+ */
+final class MatchProvisioner {
+    /**
+     * Match names allowed, so a name cannot reach outside the matches folder.
+     */
+    private static final Pattern MATCH_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+    
+    /**
+     * Reference to the plugin class. Needed for scheduling tasks and owning chunk tickets.
+     */
+    private final @NotNull Plugin plugin;
+    /**
+     * The tracker the flags are made with.
+     */
+    private final @NotNull FlagTracker flagTracker;
+    /**
+     * Folder the match files are read from.
+     */
+    private final @NotNull Path directory;
+    /**
+     * Time each tick may spend making flags, in nanoseconds.
+     */
+    private final long budgetNanos;
+    /**
+     * Chunks that are loaded and waiting for their flags to be made.
+     */
+    private final Queue<ChunkJob> ready = new ConcurrentLinkedQueue<>();
+    /**
+     * Number of match loads with chunks not done yet.
+     */
+    private int activeLoads;
+    /**
+     * The task making flags, or null if no match is loading.
+     */
+    private @Nullable ScheduledTask task;
+    
+    /**
+     * Create a new MatchProvisioner.
+     *
+     * @param plugin       The plugin to schedule tasks for.
+     * @param flagTracker  The tracker to make the flags with.
+     * @param directory    Folder the match files are read from.
+     * @param budgetMicros Time each tick may spend making flags, in microseconds.
+     */
+    MatchProvisioner(@NotNull Plugin plugin, @NotNull FlagTracker flagTracker,
+                     @NotNull Path directory, long budgetMicros) {
+        this.plugin = plugin;
+        this.flagTracker = flagTracker;
+        this.directory = directory;
+        this.budgetNanos = budgetMicros * 1000;
+    }
+    
+    /**
+     * Makes every flag in a match file. Safe to call from any thread.
+     *
+     * @param match The name of the match file, without the extension.
+     * @return A future completed once every flag has been made or has failed, or failed if the
+     * file cannot be read.
+     */
+    @NotNull CompletableFuture<Result> load(@NotNull String match) {
+        if (!MATCH_NAME.matcher(match).matches()) {
+            return CompletableFuture.failedFuture(
+                    new IllegalArgumentException("Invalid match name " + match));
+        }
+        CompletableFuture<Result> result = new CompletableFuture<>();
+        Bukkit.getAsyncScheduler().runNow(plugin, scheduledTask -> {
+            Path file = directory.resolve(match + ".yml");
+            try {
+                YamlConfiguration config = new YamlConfiguration();
+                config.loadFromString(Files.readString(file));
+                start(readSpecs(config), result);
+            } catch (IOException | InvalidConfigurationException e) {
+                result.completeExceptionally(
+                        new IllegalArgumentException("Could not read " + file.getFileName(), e));
+            }
+        });
+        return result;
+    }
+    
+    /**
+     * Reads the flag specs from a match file. Entries that cannot be read are kept as failures.
+     *
+     * @param config The match file.
+     * @return The specs, and the failures of the entries that could not be read.
+     */
+    private static @NotNull Specs readSpecs(@NotNull YamlConfiguration config) {
+        List<FlagSpec> specs = new ArrayList<>();
+        List<String> failures = new ArrayList<>();
+        for (Map<?, ?> entry : config.getMapList("flags")) {
+            try {
+                String name = CaptureZoneIndex.requireString(entry, "name");
+                Object team = entry.get("team");
+                Material item = null;
+                EntityType mob = null;
+                if (entry.containsKey("item") == entry.containsKey("mob")) {
+                    throw new IllegalArgumentException("needs either an item or a mob");
+                } else if (entry.containsKey("item")) {
+                    item = Material.matchMaterial(CaptureZoneIndex.requireString(entry, "item"));
+                    if (item == null || !item.isItem() || item.isAir()) {
+                        throw new IllegalArgumentException("unknown item " + entry.get("item"));
+                    }
+                } else {
+                    mob = EntityType.valueOf(CaptureZoneIndex.requireString(entry, "mob")
+                            .trim().toUpperCase(Locale.ROOT));
+                    if (!mob.isSpawnable()) {
+                        throw new IllegalArgumentException(mob + " cannot be spawned");
+                    }
+                }
+                double[] location = CaptureZoneIndex.requirePoint(entry, "location");
+                specs.add(new FlagSpec(name, team == null ? null : team.toString(), item, mob,
+                        CaptureZoneIndex.requireString(entry, "world"), location[0], location[1],
+                        location[2]));
+            } catch (IllegalArgumentException e) {
+                failures.add(entry.get("name") + ": " + e.getMessage());
+            }
+        }
+        return new Specs(specs, failures);
+    }
+    
+    /**
+     * Groups the specs by chunk and starts loading the chunks.
+     *
+     * @param specs  The specs to make, and the failures found while reading them.
+     * @param result The future to complete once every flag is done.
+     */
+    private void start(@NotNull Specs specs, @NotNull CompletableFuture<Result> result) {
+        Map<ChunkKey, List<FlagSpec>> byChunk = new LinkedHashMap<>();
+        Load load = new Load(result);
+        specs.failures().forEach(load::fail);
+        for (FlagSpec spec : specs.specs()) {
+            byChunk.computeIfAbsent(new ChunkKey(spec.world(), (int) Math.floor(spec.x()) >> 4,
+                    (int) Math.floor(spec.z()) >> 4), key -> new ArrayList<>()).add(spec);
+        }
+        if (byChunk.isEmpty()) {
+            result.complete(new Result(0, List.copyOf(specs.failures())));
+            return;
+        }
+        load.remaining.set(byChunk.size());
+        startLoad();
+        byChunk.forEach((key, chunkSpecs) -> {
+            World world = Bukkit.getWorld(key.world());
+            if (world == null) {
+                chunkSpecs.forEach(spec -> load.fail(spec.name() + ": unknown world"));
+                load.chunkDone();
+                return;
+            }
+            world.getChunkAtAsync(key.x(), key.z()).whenComplete((chunk, throwable) -> {
+                if (throwable != null) {
+                    chunkSpecs.forEach(spec -> load.fail(spec.name() + ": chunk did not load"));
+                    load.chunkDone();
+                    return;
+                }
+                // Hold the chunk until its flags are made
+                chunk.addPluginChunkTicket(plugin);
+                ready.add(new ChunkJob(world, key, chunkSpecs, load));
+            });
+        });
+    }
+    
+    /**
+     * Counts a new match load, and starts the task making flags if it is not already running.
+     */
+    private synchronized void startLoad() {
+        activeLoads++;
+        if (task == null) {
+            task = Bukkit.getGlobalRegionScheduler()
+                    .runAtFixedRate(plugin, scheduledTask -> drain(), 1, 1);
+        }
+    }
+    
+    /**
+     * Stops making flags. Chunks still waiting keep their tickets until the plugin is disabled.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        activeLoads = 0;
+        ready.clear();
+    }
+    
+    /**
+     * Counts a finished match load, and stops the task making flags once no load is left.
+     */
+    private synchronized void finishLoad() {
+        if (activeLoads > 0 && --activeLoads == 0 && task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+    
+    /**
+     * Makes the flags of loaded chunks until the tick's budget is spent. Chunks owned by another
+     * region are handed to it. At least one chunk is handled each tick, so loading always makes
+     * progress.
+     */
+    private void drain() {
+        long start = System.nanoTime();
+        ChunkJob job;
+        while ((job = ready.poll()) != null) {
+            ChunkJob current = job;
+            if (Bukkit.isOwnedByCurrentRegion(job.world(), job.key().x(), job.key().z())) {
+                makeFlags(current);
+            } else {
+                Bukkit.getRegionScheduler().execute(plugin, job.world(), job.key().x(),
+                        job.key().z(), () -> makeFlags(current));
+            }
+            if (System.nanoTime() - start >= budgetNanos) {
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Makes the flags of a chunk, then lets the chunk go. Must run on the thread that owns the
+     * chunk.
+     *
+     * @param job The chunk and its flags.
+     */
+    private void makeFlags(@NotNull ChunkJob job) {
+        World world = job.world();
+        try {
+            for (FlagSpec spec : job.specs()) {
+                try {
+                    Entity flag = makeFlag(world, spec);
+                    if (spec.team() != null) {
+                        joinTeam(flag, spec.team());
+                    }
+                    job.load().made.incrementAndGet();
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    job.load().fail(spec.name() + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            int chunkX = job.key().x();
+            int chunkZ = job.key().z();
+            // Plugin tickets are not counted, so leave one a flag is relying on
+            if (!flagTracker.getChunkTickets().isHeld(world.getName(), chunkX, chunkZ)) {
+                world.removePluginChunkTicket(chunkX, chunkZ, plugin);
+            }
+            job.load().chunkDone();
+        }
+    }
+    
+    /**
+     * Spawns and tracks a single flag.
+     *
+     * @param world The world to spawn the flag in.
+     * @param spec  The flag to make.
+     * @return The flag entity.
+     * @throws IllegalStateException If the flag is not in an arena, or the arena is full.
+     */
+    private @NotNull Entity makeFlag(@NotNull World world, @NotNull FlagSpec spec) {
+        Location location = new Location(world, spec.x(), spec.y(), spec.z());
+        if (spec.item() != null) {
+            ItemStack stack = new ItemStack(spec.item());
+            ItemMeta meta = stack.getItemMeta();
+            meta.displayName(Component.text(spec.name()));
+            stack.setItemMeta(meta);
+            flagTracker.trackItem(stack, location, spec.team());
+            // Dropping the flag fires ItemSpawnEvent, which sets up the item like any dropped flag
+            Item item = world.dropItem(location, stack);
+            item.setVelocity(new Vector());
+            return item;
+        }
+        Entity entity = world.spawnEntity(location, spec.mob());
+        entity.customName(Component.text(spec.name()));
+        try {
+            flagTracker.trackEntity(entity);
+        } catch (IllegalStateException e) {
+            entity.remove();
+            throw e;
+        }
+        return entity;
+    }
+    
+    /**
+     * Adds a flag to a scoreboard team on the global region, which owns the scoreboard.
+     *
+     * @param flag     The flag entity.
+     * @param teamName The name of the team.
+     */
+    private void joinTeam(@NotNull Entity flag, @NotNull String teamName) {
+        Bukkit.getGlobalRegionScheduler().execute(plugin, () -> {
+            Team team = Bukkit.getScoreboardManager().getMainScoreboard().getTeam(teamName);
+            if (team == null) {
+                plugin.getLogger().warning("No scoreboard team named " + teamName + " for flag " +
+                        flag.getUniqueId());
+            } else {
+                team.addEntity(flag);
+            }
+        });
+    }
+    
+    /**
+     * The outcome of loading a match.
+     *
+     * @param made     The number of flags made.
+     * @param failures Why each flag that was not made failed.
+     */
+    record Result(int made, @NotNull List<String> failures) {
+    }
+    
+    /**
+     * A flag listed in a match file.
+     *
+     * @param name  The name of the flag.
+     * @param team  The team the flag belongs to, and the scoreboard team to add it to, or null for
+     *              none.
+     * @param item  The material of an item flag, or null for a mob flag.
+     * @param mob   The type of a mob flag, or null for an item flag.
+     * @param world The name of the world to make the flag in.
+     * @param x     The x coordinate.
+     * @param y     The y coordinate.
+     * @param z     The z coordinate.
+     */
+    private record FlagSpec(@NotNull String name, @Nullable String team, @Nullable Material item,
+                            @Nullable EntityType mob, @NotNull String world, double x, double y,
+                            double z) {
+    }
+    
+    /**
+     * The flags read from a match file.
+     *
+     * @param specs    The flags that could be read.
+     * @param failures Why each entry that could not be read failed.
+     */
+    private record Specs(@NotNull List<FlagSpec> specs, @NotNull List<String> failures) {
+    }
+    
+    /**
+     * A chunk flags are made in.
+     *
+     * @param world The name of the world.
+     * @param x     The x coordinate of the chunk.
+     * @param z     The z coordinate of the chunk.
+     */
+    private record ChunkKey(@NotNull String world, int x, int z) {
+    }
+    
+    /**
+     * A loaded chunk and the flags to make in it.
+     *
+     * @param world The world the chunk is in.
+     * @param key   The chunk.
+     * @param specs The flags to make.
+     * @param load  The match load the flags belong to.
+     */
+    private record ChunkJob(@NotNull World world, @NotNull ChunkKey key,
+                            @NotNull List<FlagSpec> specs, @NotNull Load load) {
+    }
+    
+    /**
+     * Progress of a single match load.
+     */
+    private final class Load {
+        /**
+         * The future to complete once every chunk is done.
+         */
+        private final @NotNull CompletableFuture<Result> result;
+        /**
+         * Number of flags made.
+         */
+        private final AtomicInteger made = new AtomicInteger();
+        /**
+         * Why each flag that was not made failed.
+         */
+        private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+        /**
+         * Number of chunks not done yet.
+         */
+        private final AtomicInteger remaining = new AtomicInteger();
+        
+        /**
+         * Create a new Load.
+         *
+         * @param result The future to complete once every chunk is done.
+         */
+        private Load(@NotNull CompletableFuture<Result> result) {
+            this.result = result;
+        }
+        
+        /**
+         * Records a flag that could not be made.
+         *
+         * @param failure Why the flag failed.
+         */
+        private void fail(@NotNull String failure) {
+            failures.add(failure);
+        }
+        
+        /**
+         * Records that a chunk is done, and completes the load if it was the last.
+         */
+        private void chunkDone() {
+            if (remaining.decrementAndGet() == 0) {
+                finishLoad();
+                result.complete(new Result(made.get(), List.copyOf(failures)));
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.List;
+
+/**
+ * Capture scores per team, kept in a plain int array indexed by team. Updates go through a
+ * VarHandle, so captures in different regions can score at the same time without a lock.
+ *
+ * @author War Pigeon
+ */
+final class TeamScores {
+    /**
+     * Handle for atomic access to the elements of the score array.
+     */
+    private static final VarHandle SCORES = MethodHandles.arrayElementVarHandle(int[].class);
+    
+    /**
+     * The names of the teams, indexed by team.
+     */
+    private final @NotNull List<String> teamNames;
+    /**
+     * Score of each team, indexed by team.
+     */
+    private final int[] scores;
+    
+    /**
+     * Create a new TeamScores with every team at zero.
+     *
+     * @param teamNames The names of the teams, indexed by team.
+     */
+    TeamScores(@NotNull List<String> teamNames) {
+        this.teamNames = List.copyOf(teamNames);
+        scores = new int[teamNames.size()];
+    }
+    
+    /**
+     * Creates scores for a new list of teams, keeping the score of every team that is in both.
+     *
+     * @param newTeamNames The names of the new teams, indexed by team.
+     * @return The new scores.
+     */
+    @NotNull TeamScores carryOver(@NotNull List<String> newTeamNames) {
+        TeamScores carried = new TeamScores(newTeamNames);
+        for (int team = 0; team < carried.scores.length; team++) {
+            int oldTeam = teamNames.indexOf(carried.teamNames.get(team));
+            if (oldTeam >= 0) {
+                SCORES.setVolatile(carried.scores, team, get(oldTeam));
+            }
+        }
+        return carried;
+    }
+    
+    /**
+     * Adds a capture to a team's score. Safe to call from any thread.
+     *
+     * @param team The index of the team.
+     * @return The team's new score.
+     */
+    int addCapture(int team) {
+        return (int) SCORES.getAndAdd(scores, team, 1) + 1;
+    }
+    
+    /**
+     * Gets a team's score. Safe to call from any thread.
+     *
+     * @param team The index of the team.
+     * @return The team's score.
+     */
+    int get(int team) {
+        return (int) SCORES.getVolatile(scores, team);
+    }
+    
+    /**
+     * Gets the names of the teams.
+     *
+     * @return The team names, indexed by team.
+     */
+    @NotNull List<String> getTeamNames() {
+        return teamNames;
+    }
+    
+    /**
+     * Sets every team's score back to zero.
+     */
+    void reset() {
+        for (int i = 0; i < scores.length; i++) {
+            SCORES.setVolatile(scores, i, 0);
+        }
+    }
+}
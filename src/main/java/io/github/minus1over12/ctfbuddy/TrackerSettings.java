@@ -0,0 +1,74 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * The settings of {@link FlagTracker} that can be changed with {@code /ctfbuddy reload}. A new
+ * instance is built for every reload and swapped in whole, so a handler that reads the settings
+ * once always sees a consistent set.
+ *
+ * @param arenas               The arenas, each with its own end, quit and beacon settings.
+ * @param beacon               Settings for how often beacons fire and who sees them.
+ * @param captureZones         Capture zones, indexed by chunk.
+ * @param keepFlagChunksLoaded Whether chunks holding flags are kept loaded with chunk tickets.
+ * @author War Pigeon
+ */
+record TrackerSettings(@NotNull ArenaIndex arenas, @NotNull BeaconSettings beacon,
+                       @NotNull CaptureZoneIndex captureZones, boolean keepFlagChunksLoaded) {
+    /**
+     * Reads the settings from the plugin config. Safe to call from any thread.
+     *
+     * @param config The plugin config.
+     * @param logger Logger to report skipped arenas and capture zones to.
+     * @return The settings.
+     * @throws IllegalArgumentException If a setting has an invalid value.
+     */
+    static @NotNull TrackerSettings fromConfig(@NotNull ConfigurationSection config,
+                                               @NotNull Logger logger) {
+        String quitModeName =
+                config.getString("quitMode", "DROP").trim().toUpperCase(Locale.ROOT);
+        QuitMode quitMode;
+        try {
+            quitMode = QuitMode.valueOf(quitModeName);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    "Unknown quitMode " + quitModeName + ", expected KILL or DROP", e);
+        }
+        Arena.ReturnPoint returnPoint = null;
+        String returnWorld = config.getString("flagReturnWorld", "");
+        List<Double> returnCoordinates = config.getDoubleList("flagReturnPoint");
+        if (!returnWorld.isBlank()) {
+            if (returnCoordinates.size() != 3) {
+                throw new IllegalArgumentException(
+                        "flagReturnPoint must be a list of three numbers");
+            }
+            returnPoint = new Arena.ReturnPoint(returnWorld, returnCoordinates.get(0),
+                    returnCoordinates.get(1), returnCoordinates.get(2));
+        }
+        Arena defaults = new Arena(ArenaIndex.DEFAULT_ARENA, null, null,
+                config.getBoolean("allowEnd"), quitMode, config.getBoolean("useParticleBeacon"), 0,
+                returnPoint);
+        return new TrackerSettings(ArenaIndex.fromConfig(config, defaults, logger),
+                BeaconSettings.fromConfig(config), CaptureZoneIndex.fromConfig(config, logger),
+                config.getBoolean("keepFlagChunksLoaded"));
+    }
+    
+    /**
+     * The action to take when a player quits with the flag.
+     */
+    enum QuitMode {
+        /**
+         * Kill the player when they quit with the flag.
+         */
+        KILL,
+        /**
+         * Drop the flag when the player quits.
+         */
+        DROP
+    }
+}
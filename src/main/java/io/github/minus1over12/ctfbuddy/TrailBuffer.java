@@ -0,0 +1,253 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Fixed-size ring of the positions a single flag has been sampled at. Positions are stored in
+ * eighths of a block and times in milliseconds, each as an int delta from the sample before it,
+ * so a sample costs sixteen bytes plus two for the world and nothing is boxed. Once the ring is
+ * full the oldest sample is dropped for each new one.
+ *
+ * <p>Not thread safe; TrailRecorder only touches a buffer from one thread at a time.</p>
+ *
+ * @author War Pigeon
+ */
+final class TrailBuffer {
+    /**
+     * Number of fixed-point units in a block.
+     */
+    static final int UNITS_PER_BLOCK = 8;
+    
+    /**
+     * Change in x since the previous sample, in eighths of a block.
+     */
+    private final int[] dx;
+    /**
+     * Change in y since the previous sample, in eighths of a block.
+     */
+    private final int[] dy;
+    /**
+     * Change in z since the previous sample, in eighths of a block.
+     */
+    private final int[] dz;
+    /**
+     * Time since the previous sample, in milliseconds.
+     */
+    private final int[] dt;
+    /**
+     * Index into the world table of each sample.
+     */
+    private final short[] worlds;
+    /**
+     * Index of the oldest sample.
+     */
+    private int head;
+    /**
+     * Number of samples held.
+     */
+    private int size;
+    /**
+     * Absolute x of the oldest sample, in eighths of a block.
+     */
+    private long firstX;
+    /**
+     * Absolute y of the oldest sample, in eighths of a block.
+     */
+    private long firstY;
+    /**
+     * Absolute z of the oldest sample, in eighths of a block.
+     */
+    private long firstZ;
+    /**
+     * Time of the oldest sample, in milliseconds since the epoch.
+     */
+    private long firstTime;
+    /**
+     * Absolute x of the newest sample, in eighths of a block.
+     */
+    private long lastX;
+    /**
+     * Absolute y of the newest sample, in eighths of a block.
+     */
+    private long lastY;
+    /**
+     * Absolute z of the newest sample, in eighths of a block.
+     */
+    private long lastZ;
+    /**
+     * Time of the newest sample, in milliseconds since the epoch.
+     */
+    private long lastTime;
+    
+    /**
+     * Create a new, empty TrailBuffer.
+     *
+     * @param capacity The most samples to hold.
+     */
+    TrailBuffer(int capacity) {
+        dx = new int[capacity];
+        dy = new int[capacity];
+        dz = new int[capacity];
+        dt = new int[capacity];
+        worlds = new short[capacity];
+    }
+    
+    /**
+     * Create a copy of another buffer.
+     *
+     * @param other The buffer to copy.
+     */
+    private TrailBuffer(@NotNull TrailBuffer other) {
+        dx = other.dx.clone();
+        dy = other.dy.clone();
+        dz = other.dz.clone();
+        dt = other.dt.clone();
+        worlds = other.worlds.clone();
+        head = other.head;
+        size = other.size;
+        firstX = other.firstX;
+        firstY = other.firstY;
+        firstZ = other.firstZ;
+        firstTime = other.firstTime;
+        lastX = other.lastX;
+        lastY = other.lastY;
+        lastZ = other.lastZ;
+        lastTime = other.lastTime;
+    }
+    
+    /**
+     * Adds a sample, dropping the oldest one if the buffer is full.
+     *
+     * @param world The index of the world in the recorder's world table.
+     * @param x     The x coordinate.
+     * @param y     The y coordinate.
+     * @param z     The z coordinate.
+     * @param time  When the position was recorded, in milliseconds since the epoch.
+     */
+    void add(short world, double x, double y, double z, long time) {
+        long fixedX = Math.round(x * UNITS_PER_BLOCK);
+        long fixedY = Math.round(y * UNITS_PER_BLOCK);
+        long fixedZ = Math.round(z * UNITS_PER_BLOCK);
+        if (size == 0) {
+            firstX = fixedX;
+            firstY = fixedY;
+            firstZ = fixedZ;
+            firstTime = time;
+        } else if (size == dx.length) {
+            // The second oldest sample becomes the oldest, so fold its delta into the start
+            head = (head + 1) % dx.length;
+            firstX += dx[head];
+            firstY += dy[head];
+            firstZ += dz[head];
+            firstTime += dt[head];
+            size--;
+        }
+        int index = (head + size) % dx.length;
+        // Deltas of one sample are far inside int range, even for a teleport across the world
+        dx[index] = size == 0 ? 0 : (int) (fixedX - lastX);
+        dy[index] = size == 0 ? 0 : (int) (fixedY - lastY);
+        dz[index] = size == 0 ? 0 : (int) (fixedZ - lastZ);
+        dt[index] = size == 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, time - lastTime);
+        worlds[index] = world;
+        lastX = fixedX;
+        lastY = fixedY;
+        lastZ = fixedZ;
+        lastTime = time;
+        size++;
+    }
+    
+    /**
+     * Drops every sample taken at or before a time, such as the samples already exported. The
+     * time of the newest sample is kept even if every sample is dropped, so a sample is never
+     * added twice.
+     *
+     * @param time The time to drop samples up to, in milliseconds since the epoch.
+     */
+    void dropUpTo(long time) {
+        while (size > 0 && firstTime <= time) {
+            size--;
+            if (size == 0) {
+                head = 0;
+            } else {
+                // The second oldest sample becomes the oldest, so fold its delta into the start
+                head = (head + 1) % dx.length;
+                firstX += dx[head];
+                firstY += dy[head];
+                firstZ += dz[head];
+                firstTime += dt[head];
+            }
+        }
+    }
+    
+    /**
+     * Gets the number of samples held.
+     *
+     * @return The number of samples.
+     */
+    int size() {
+        return size;
+    }
+    
+    /**
+     * Gets the time of the newest sample.
+     *
+     * @return The time of the newest sample in milliseconds since the epoch, or 0 if nothing was
+     * ever added.
+     */
+    long getLastTime() {
+        return lastTime;
+    }
+    
+    /**
+     * Copies the buffer, so it can be read on another thread while this one keeps recording.
+     *
+     * @return The copy.
+     */
+    @NotNull TrailBuffer copy() {
+        return new TrailBuffer(this);
+    }
+    
+    /**
+     * Hands every sample to a visitor, oldest first, with the deltas decoded.
+     *
+     * @param visitor The visitor.
+     * @throws IOException If the visitor throws.
+     */
+    void forEach(@NotNull Visitor visitor) throws IOException {
+        long x = firstX;
+        long y = firstY;
+        long z = firstZ;
+        long time = firstTime;
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % dx.length;
+            if (i > 0) {
+                x += dx[index];
+                y += dy[index];
+                z += dz[index];
+                time += dt[index];
+            }
+            visitor.visit(worlds[index], (double) x / UNITS_PER_BLOCK,
+                    (double) y / UNITS_PER_BLOCK, (double) z / UNITS_PER_BLOCK, time);
+        }
+    }
+    
+    /**
+     * Receives decoded samples.
+     */
+    @FunctionalInterface
+    interface Visitor {
+        /**
+         * Called with a single sample.
+         *
+         * @param world The index of the world in the recorder's world table.
+         * @param x     The x coordinate.
+         * @param y     The y coordinate.
+         * @param z     The z coordinate.
+         * @param time  When the position was recorded, in milliseconds since the epoch.
+         * @throws IOException If the sample could not be handled.
+         */
+        void visit(short world, double x, double y, double z, long time) throws IOException;
+    }
+}
@@ -0,0 +1,274 @@
+package io.github.minus1over12.ctfbuddy;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import io.papermc.paper.util.Tick;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records where every flag travels, for heatmaps after a match. A single global task samples the
+ * latest flag snapshot into a {@link TrailBuffer} per flag, and asks the flags to refresh their
+ * positions for the next sample. Trails are only touched by that task, so they need no locking;
+ * exports copy them on the same thread and write the copy off the main thread as gzipped CSV.
+ * Exported samples are dropped, so each export holds what was recorded since the last one, and a
+ * trail left empty gives up its slot when a new flag needs one. Memory is bounded by the number
+ * of trails and the size of each ring, however long a match runs.
+ *
+ * @author War Pigeon
+ */
+final class TrailRecorder {
+    /**
+     * First line of every export, naming the columns.
+     */
+    private static final String CSV_HEADER = "flag,world,time,x,y,z";
+    
+    /**
+     * Reference to the plugin class. Needed for scheduling tasks.
+     */
+    private final @NotNull Plugin plugin;
+    /**
+     * Positions asked to refresh after each sample.
+     */
+    private final @NotNull FlagPositions positions;
+    /**
+     * Source of the flag snapshots to sample.
+     */
+    private final @NotNull FlagSnapshotPublisher snapshots;
+    /**
+     * Directory exports are written to.
+     */
+    private final @NotNull Path directory;
+    /**
+     * The most samples kept for each flag.
+     */
+    private final int capacity;
+    /**
+     * The most flags a trail is kept for.
+     */
+    private final int maxTrails;
+    /**
+     * The trail of each flag, keyed by flag id, or by entity UUID if the flag id is not known.
+     * Only used on the global region thread.
+     */
+    private final Map<UUID, TrailBuffer> trails = new HashMap<>();
+    /**
+     * Names of the worlds samples were taken in, indexed by the world index stored with each
+     * sample. Only used on the global region thread.
+     */
+    private final List<String> worldNames = new ArrayList<>();
+    /**
+     * Index of each world name in {@link #worldNames}. Only used on the global region thread.
+     */
+    private final Map<String, Short> worldIndexes = new HashMap<>();
+    /**
+     * The task sampling positions, or null if the recorder is not running.
+     */
+    private @Nullable ScheduledTask task;
+    
+    /**
+     * Create a new TrailRecorder.
+     *
+     * @param plugin    The plugin to schedule tasks for.
+     * @param positions Positions asked to refresh after each sample.
+     * @param snapshots Source of the flag snapshots to sample.
+     * @param directory Directory exports are written to.
+     * @param capacity  The most samples kept for each flag.
+     * @param maxTrails The most flags a trail is kept for.
+     */
+    TrailRecorder(@NotNull Plugin plugin, @NotNull FlagPositions positions,
+                  @NotNull FlagSnapshotPublisher snapshots, @NotNull Path directory, int capacity,
+                  int maxTrails) {
+        this.plugin = plugin;
+        this.positions = positions;
+        this.snapshots = snapshots;
+        this.directory = directory;
+        this.capacity = capacity;
+        this.maxTrails = maxTrails;
+    }
+    
+    /**
+     * Starts sampling flag positions.
+     *
+     * @param interval Time between samples.
+     */
+    synchronized void start(@NotNull Duration interval) {
+        if (task == null) {
+            int intervalTicks = Math.max(1, Tick.tick().fromDuration(interval));
+            task = Bukkit.getGlobalRegionScheduler()
+                    .runAtFixedRate(plugin, scheduledTask -> sample(), intervalTicks,
+                            intervalTicks);
+        }
+    }
+    
+    /**
+     * Stops sampling. Recorded trails are kept.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+    
+    /**
+     * Adds the latest position of every flag to its trail, then asks the flags to refresh their
+     * positions for the next sample.
+     */
+    private void sample() {
+        for (FlagPosition position : snapshots.getSnapshot().flags()) {
+            UUID key = position.flagId() == null ? position.entityId() : position.flagId();
+            TrailBuffer trail = trails.get(key);
+            if (trail == null) {
+                if (trails.size() >= maxTrails && !evictEmptyTrail()) {
+                    continue;
+                }
+                trail = new TrailBuffer(capacity);
+                trails.put(key, trail);
+            }
+            if (position.time() > trail.getLastTime()) {
+                trail.add(worldIndex(position.world()), position.x(), position.y(), position.z(),
+                        position.time());
+            }
+        }
+        positions.sample();
+    }
+    
+    /**
+     * Frees the slot of a trail whose samples have all been exported.
+     *
+     * @return True if a trail was removed, false if every trail still has samples to export.
+     */
+    private boolean evictEmptyTrail() {
+        Iterator<TrailBuffer> iterator = trails.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().size() == 0) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Gets the index of a world in the world table, adding it if needed.
+     *
+     * @param world The name of the world.
+     * @return The index of the world.
+     */
+    private short worldIndex(@NotNull String world) {
+        return worldIndexes.computeIfAbsent(world, name -> {
+            worldNames.add(name);
+            return (short) (worldNames.size() - 1);
+        });
+    }
+    
+    /**
+     * Copies the trails on the global region thread and writes the copy to a new export file off
+     * the main thread. Once the file is written, the samples in it are dropped from the trails, so
+     * the next export only holds samples taken since this copy.
+     *
+     * @return A future completed with the export file once it is written.
+     */
+    @NotNull CompletableFuture<Path> export() {
+        CompletableFuture<Path> future = new CompletableFuture<>();
+        Bukkit.getGlobalRegionScheduler().execute(plugin, () -> {
+            Map<UUID, TrailBuffer> copies = new HashMap<>();
+            trails.forEach((key, trail) -> {
+                if (trail.size() > 0) {
+                    copies.put(key, trail.copy());
+                }
+            });
+            List<String> worlds = List.copyOf(worldNames);
+            Bukkit.getAsyncScheduler().runNow(plugin, scheduledTask -> {
+                Path file;
+                try {
+                    file = write(copies, worlds);
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                    return;
+                }
+                Bukkit.getGlobalRegionScheduler().execute(plugin, () -> {
+                    copies.forEach((key, copy) -> {
+                        TrailBuffer trail = trails.get(key);
+                        if (trail != null) {
+                            trail.dropUpTo(copy.getLastTime());
+                        }
+                    });
+                    future.complete(file);
+                });
+            });
+        });
+        return future;
+    }
+    
+    /**
+     * Writes the trails to a new export file on the calling thread, and drops them once written.
+     * Only for use once sampling has stopped, such as when the plugin is disabled.
+     *
+     * @return The export file, or null if there was nothing to export.
+     * @throws IOException If the file could not be written.
+     */
+    @Nullable Path exportNow() throws IOException {
+        if (trails.values().stream().allMatch(trail -> trail.size() == 0)) {
+            return null;
+        }
+        Path file = write(trails, worldNames);
+        trails.clear();
+        return file;
+    }
+    
+    /**
+     * Writes trails to a new export file.
+     *
+     * @param toWrite The trails to write.
+     * @param worlds  The world table the trails refer to.
+     * @return The export file.
+     * @throws IOException If the file could not be written.
+     */
+    private @NotNull Path write(@NotNull Map<UUID, TrailBuffer> toWrite,
+                                @NotNull List<String> worlds) throws IOException {
+        Files.createDirectories(directory);
+        Path file = directory.resolve("trails-" + System.currentTimeMillis() + ".csv.gz");
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(Files.newOutputStream(file)), StandardCharsets.UTF_8))) {
+            writer.write(CSV_HEADER);
+            writer.newLine();
+            for (Map.Entry<UUID, TrailBuffer> entry : toWrite.entrySet()) {
+                String flag = entry.getKey().toString();
+                entry.getValue().forEach((world, x, y, z, time) -> {
+                    writer.write(flag);
+                    writer.write(',');
+                    writer.write(worlds.get(world));
+                    writer.write(',');
+                    writer.write(Long.toString(time));
+                    writer.write(',');
+                    writer.write(Double.toString(x));
+                    writer.write(',');
+                    writer.write(Double.toString(y));
+                    writer.write(',');
+                    writer.write(Double.toString(z));
+                    writer.newLine();
+                });
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,1066 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Item;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scoreboard.Scoreboard;
+import org.bukkit.scoreboard.ScoreboardManager;
+import org.bukkit.scoreboard.Team;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.when;
+
+/**
+ * Headless load simulation of a match, run with {@code ./gradlew simulate}. Stand-in players pick
+ * up, carry, drop and lose flags while a mob farm and its hoppers run, chunks unload and load
+ * again, and carriers quit and try portals. The traffic is drawn from a seeded random source, so
+ * any run can be replayed exactly from its seed.
+ *
+ * <p>After every tick the simulation checks that each flag exists exactly once, that the registry
+ * agrees with the world, that no flag on the ground has lost its beacon, that no carry scored
+ * more than once, and that no team captured its own flag. At the end it reports tick times, the
+ * memory allocated per tick, the traffic, the captures and the handler statistics, and exits with
+ * status 1 if any check failed. The stand-ins are Mockito stubs, so tick times and allocations
+ * include stub dispatch and the simulated server; compare results between runs rather than against
+ * real server timings.</p>
+ *
+ * @author War Pigeon
+ */
+public final class LoadSimulation {
+    /**
+     * Length of a tick on a real server, in nanoseconds.
+     */
+    private static final long TICK_BUDGET_NANOS = 50_000_000;
+    /**
+     * Ticks a chunk must have been loaded before its flags must have their beacons back.
+     */
+    private static final long SETTLE_TICKS = 100;
+    /**
+     * The most failed checks listed in the report.
+     */
+    private static final int MAX_LISTED_VIOLATIONS = 20;
+    /**
+     * Item entities made ready before each tick.
+     */
+    private static final int SPARE_ITEMS = 64;
+    /**
+     * Number of mobs in the mob farm.
+     */
+    private static final int FARM_MOBS = 32;
+    /**
+     * Distance from the center of the world that players and flags start within, in blocks.
+     */
+    private static final double PLAY_RADIUS = 96;
+    /**
+     * The names of the teams. Players and flags are dealt to them in turn.
+     */
+    private static final List<String> TEAMS = List.of("red", "blue");
+    /**
+     * The x coordinate of the center of each team's capture zone, indexed like {@link #TEAMS}.
+     */
+    private static final double[] ZONE_X = {-80, 80};
+    /**
+     * Chance each tick that a flag on the ground is picked up.
+     */
+    private static final double PICKUP_CHANCE = 0.05;
+    /**
+     * Chance each tick that a flag on the ground tries to despawn.
+     */
+    private static final double DESPAWN_CHANCE = 0.01;
+    /**
+     * Chance each tick that a flag, or a flag carrier, walks into an end portal.
+     */
+    private static final double PORTAL_CHANCE = 0.005;
+    /**
+     * Chance each tick that a flag carrier dies.
+     */
+    private static final double DEATH_CHANCE = 0.01;
+    /**
+     * Chance that a dying flag carrier keeps their inventory.
+     */
+    private static final double KEEP_INVENTORY_CHANCE = 0.2;
+    /**
+     * Chance each tick that a flag carrier quits.
+     */
+    private static final double CARRIER_QUIT_CHANCE = 0.005;
+    /**
+     * Chance each tick that any other player quits.
+     */
+    private static final double QUIT_CHANCE = 0.0005;
+    /**
+     * Chance each tick that an offline player joins again.
+     */
+    private static final double JOIN_CHANCE = 0.02;
+    /**
+     * Chance each tick that a hopper goes for a flag instead of the farm's loot.
+     */
+    private static final double HOPPER_FLAG_CHANCE = 0.1;
+    /**
+     * Chance each tick that a chunk with no players in it unloads.
+     */
+    private static final double UNLOAD_CHANCE = 0.02;
+    /**
+     * Chance each tick that an unloaded chunk loads again.
+     */
+    private static final double LOAD_CHANCE = 0.05;
+    /**
+     * Used to read the memory allocated by the simulation thread.
+     */
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    
+    /**
+     * The size and seed of the run.
+     */
+    private final @NotNull Options options;
+    /**
+     * Source of every random choice, seeded so a run can be replayed.
+     */
+    private final @NotNull Random random;
+    /**
+     * Runs the tasks of the tracker.
+     */
+    private final SimScheduler scheduler = new SimScheduler();
+    /**
+     * The world the match is played in.
+     */
+    private final SimWorld world = new SimWorld(scheduler);
+    /**
+     * The scoreboard team of each player, keyed by player UUID.
+     */
+    private final Map<UUID, Team> playerTeams = new HashMap<>();
+    /**
+     * Each flag's item stack, mapped to the number of the flag.
+     */
+    private final Map<ItemStack, Integer> flagStacks = new IdentityHashMap<>();
+    /**
+     * The end portal destination.
+     */
+    private final Location endPortal;
+    /**
+     * Number of events of each kind of traffic, indexed by {@link Traffic#ordinal()}.
+     */
+    private final long[] traffic = new long[Traffic.values().length];
+    /**
+     * The first failed checks, for the report.
+     */
+    private final List<String> violations = new ArrayList<>();
+    /**
+     * The scratch plugin folder.
+     */
+    private Path dataFolder;
+    /**
+     * The tracker under load.
+     */
+    private FlagTracker flagTracker;
+    /**
+     * Fires events at the tracker.
+     */
+    private SimEvents events;
+    /**
+     * The mobs of the mob farm.
+     */
+    private final List<SimWorld.SimEntity> farmMobs = new ArrayList<>();
+    /**
+     * Number of failed checks.
+     */
+    private long violationCount;
+    /**
+     * The current tick.
+     */
+    private long tick;
+    
+    /**
+     * Create a new LoadSimulation.
+     *
+     * @param options The size and seed of the run.
+     */
+    private LoadSimulation(@NotNull Options options) {
+        this.options = options;
+        this.random = new Random(options.seed());
+        this.endPortal = new Location(world.getEnd(), 0, 64, 0);
+    }
+    
+    /**
+     * Runs the simulation.
+     *
+     * @param args Options as {@code key=value} pairs; see {@link Options}.
+     */
+    public static void main(@NotNull String @NotNull [] args) {
+        Options options = Options.parse(args);
+        boolean passed = new LoadSimulation(options).run();
+        System.exit(passed ? 0 : 1);
+    }
+    
+    /**
+     * Creates a stub that only answers the calls set up for it.
+     *
+     * @param type The type to stub.
+     * @param <T>  The type to stub.
+     * @return The stub.
+     */
+    static <T> @NotNull T stub(@NotNull Class<T> type) {
+        return Mockito.mock(type, Mockito.withSettings().stubOnly());
+    }
+    
+    /**
+     * Sets up the match, plays it, and reports the results.
+     *
+     * @return True if every check held, false otherwise.
+     */
+    private boolean run() {
+        setUp();
+        int totalTicks = options.warmupTicks() + options.ticks();
+        long[] tickNanos = new long[options.ticks()];
+        long[] tickBytes = new long[options.ticks()];
+        for (int i = 0; i < totalTicks; i++) {
+            world.prepareItems(SPARE_ITEMS);
+            List<Carry> carries = findCarries();
+            long[] scores = teamScores();
+            long startBytes = THREADS.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            tick++;
+            scheduler.tick();
+            long elapsed = System.nanoTime() - start;
+            long allocated = THREADS.getCurrentThreadAllocatedBytes() - startBytes;
+            checkCaptures(carries, scores);
+            startBytes = THREADS.getCurrentThreadAllocatedBytes();
+            start = System.nanoTime();
+            playTick();
+            elapsed += System.nanoTime() - start;
+            allocated += THREADS.getCurrentThreadAllocatedBytes() - startBytes;
+            int measured = i - options.warmupTicks();
+            if (measured >= 0) {
+                tickNanos[measured] = elapsed;
+                tickBytes[measured] = allocated;
+            }
+            checkInvariants(false);
+        }
+        settle();
+        checkInvariants(true);
+        flagTracker.shutdown();
+        deleteDataFolder();
+        report(tickNanos, tickBytes);
+        return violationCount == 0;
+    }
+    
+    /**
+     * Installs the stand-in server, starts the tracker, brings every player online and makes the
+     * flags.
+     */
+    private void setUp() {
+        Logger logger = Logger.getLogger("CTFBuddySimulation");
+        logger.setLevel(Level.WARNING);
+        Server server = stub(Server.class);
+        World matchWorld = world.getWorld();
+        when(server.getLogger()).thenReturn(logger);
+        when(server.getWorlds()).thenReturn(List.of(matchWorld));
+        when(server.getWorld(any(String.class))).thenAnswer(invocation -> {
+            String name = invocation.getArgument(0);
+            return name.equals(SimWorld.NAME) ? matchWorld :
+                    name.equals(SimWorld.END_NAME) ? world.getEnd() : null;
+        });
+        when(server.getPlayer(any(UUID.class))).thenAnswer(invocation -> {
+            SimWorld.SimEntity entity = world.getEntity(invocation.getArgument(0));
+            return entity != null && entity.getKind() == SimWorld.SimEntity.Kind.PLAYER &&
+                    entity.isOnline() ? entity.getStub() : null;
+        });
+        when(server.getEntity(any(UUID.class))).thenAnswer(invocation -> {
+            SimWorld.SimEntity entity = world.getEntity(invocation.getArgument(0));
+            return entity == null ? null : entity.getStub();
+        });
+        when(server.isOwnedByCurrentRegion(any(Entity.class))).thenReturn(true);
+        when(server.isOwnedByCurrentRegion(any(World.class), anyInt(), anyInt())).thenReturn(true);
+        when(server.isOwnedByCurrentRegion(any(Location.class))).thenReturn(true);
+        when(server.getGlobalRegionScheduler()).thenReturn(scheduler.getGlobal());
+        when(server.getAsyncScheduler()).thenReturn(scheduler.getAsync());
+        when(server.getRegionScheduler()).thenReturn(scheduler.getRegion());
+        when(server.getPluginManager()).thenReturn(stub(PluginManager.class));
+        when(server.getScoreboardManager()).thenReturn(createScoreboardManager());
+        Bukkit.setServer(server);
+        
+        JavaPlugin plugin = stub(JavaPlugin.class);
+        when(plugin.getName()).thenReturn("CTFBuddy");
+        dataFolder = createDataFolder();
+        when(plugin.getDataFolder()).thenReturn(dataFolder.toFile());
+        when(plugin.getLogger()).thenReturn(logger);
+        when(plugin.getConfig()).thenReturn(createConfig());
+        when(plugin.isEnabled()).thenReturn(true);
+        when(plugin.getServer()).thenReturn(server);
+        flagTracker = new FlagTracker(plugin, scheduler.getScanExecutor());
+        events = new SimEvents(flagTracker);
+        world.setSpawnListener(events::itemSpawn);
+        
+        for (int i = 0; i < options.players(); i++) {
+            SimWorld.SimEntity player = world.addPlayer("Player" + i, randomCoordinate(),
+                    randomCoordinate());
+            playerTeams.put(player.getId(), createTeam(TEAMS.get(i % TEAMS.size())));
+            world.setOnline(player, true);
+            events.join((Player) player.getStub());
+        }
+        for (int i = 0; i < FARM_MOBS; i++) {
+            double x = 110 + random.nextDouble() * 8;
+            double z = 110 + random.nextDouble() * 8;
+            farmMobs.add(world.addMob(x, z));
+        }
+        world.prepareItems(options.flags());
+        for (int i = 0; i < options.flags(); i++) {
+            ItemStack stack = SimWorld.stackWithMeta();
+            Location location =
+                    new Location(world.getWorld(), randomCoordinate(), 64, randomCoordinate());
+            flagTracker.trackItem(stack, location, TEAMS.get(i % TEAMS.size()));
+            flagStacks.put(stack, i);
+            world.spawnItem(location, stack);
+        }
+    }
+    
+    /**
+     * Creates the stand-in scoreboard manager, whose main scoreboard puts each player on the team
+     * in {@link #playerTeams}.
+     *
+     * @return The scoreboard manager.
+     */
+    private @NotNull ScoreboardManager createScoreboardManager() {
+        Scoreboard scoreboard = stub(Scoreboard.class);
+        when(scoreboard.getEntityTeam(any(Entity.class))).thenAnswer(
+                invocation -> playerTeams.get(invocation.<Entity>getArgument(0).getUniqueId()));
+        ScoreboardManager manager = stub(ScoreboardManager.class);
+        when(manager.getMainScoreboard()).thenReturn(scoreboard);
+        return manager;
+    }
+    
+    /**
+     * Creates a stand-in scoreboard team.
+     *
+     * @param name The name of the team.
+     * @return The team.
+     */
+    private static @NotNull Team createTeam(@NotNull String name) {
+        Team team = stub(Team.class);
+        when(team.getName()).thenReturn(name);
+        return team;
+    }
+    
+    /**
+     * Creates the plugin config for the run. Beacons fire every second so their bookkeeping is
+     * exercised, the hazard watchdog is off, since the stand-in chunks have no blocks, and captured
+     * flags are dropped in the middle of the world.
+     *
+     * @return The config.
+     */
+    private static @NotNull YamlConfiguration createConfig() {
+        YamlConfiguration config = new YamlConfiguration();
+        config.set("allowEnd", false);
+        config.set("quitMode", "DROP");
+        config.set("useParticleBeacon", true);
+        config.set("beaconIntervalSeconds", 1);
+        config.set("journalToConsole", false);
+        config.set("hazardCheckSeconds", 0);
+        config.set("checkpointIntervalSeconds", 5);
+        config.set("flagReturnWorld", SimWorld.NAME);
+        config.set("flagReturnPoint", List.of(0, 64, 0));
+        config.set("captureZones", List.of(
+                Map.of("team", "red", "world", SimWorld.NAME, "shape", "sphere",
+                        "center", List.of(-80, 64, 0), "radius", 6),
+                Map.of("team", "blue", "world", SimWorld.NAME, "shape", "sphere",
+                        "center", List.of(80, 64, 0), "radius", 6)));
+        return config;
+    }
+    
+    /**
+     * Creates a scratch plugin folder, since the tracker writes its journal, checkpoint and
+     * trails there.
+     *
+     * @return The plugin folder.
+     */
+    private static @NotNull Path createDataFolder() {
+        try {
+            return Files.createTempDirectory("ctfbuddy-simulation");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Deletes the scratch plugin folder and everything the tracker wrote to it.
+     */
+    private void deleteDataFolder() {
+        try (Stream<Path> files = Files.walk(dataFolder)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not delete " + dataFolder + ": " + e);
+        }
+    }
+    
+    /**
+     * Plays the traffic of one tick.
+     */
+    private void playTick() {
+        List<SimWorld.SimEntity> groundFlags = new ArrayList<>();
+        List<SimWorld.SimEntity> groundLoot = new ArrayList<>();
+        List<SimWorld.SimEntity> carriers = new ArrayList<>();
+        List<SimWorld.SimEntity> walkers = new ArrayList<>();
+        List<SimWorld.SimEntity> offline = new ArrayList<>();
+        for (SimWorld.SimEntity entity : world.getEntities()) {
+            switch (entity.getKind()) {
+                case ITEM -> {
+                    if (world.chunkOf(entity).isLoaded()) {
+                        (isFlag(entity.getStack()) ? groundFlags : groundLoot).add(entity);
+                    }
+                }
+                case PLAYER -> {
+                    if (!entity.isOnline()) {
+                        offline.add(entity);
+                    } else if (isFlag(entity.getHelmet())) {
+                        carriers.add(entity);
+                    } else {
+                        walkers.add(entity);
+                    }
+                }
+                case MOB -> {
+                }
+            }
+        }
+        churnChunks();
+        for (SimWorld.SimEntity carrier : carriers) {
+            walk(carrier, ownZone(carrier), 0.6);
+        }
+        for (SimWorld.SimEntity walker : walkers) {
+            walk(walker, null, 0.3);
+        }
+        loadChunksWithPlayers();
+        for (SimWorld.SimEntity flag : groundFlags) {
+            playGroundFlag(flag, walkers);
+        }
+        for (SimWorld.SimEntity carrier : carriers) {
+            playCarrier(carrier);
+        }
+        for (SimWorld.SimEntity player : offline) {
+            if (random.nextDouble() < JOIN_CHANCE) {
+                count(Traffic.JOIN);
+                world.setOnline(player, true);
+                events.join((Player) player.getStub());
+            }
+        }
+        for (SimWorld.SimEntity walker : walkers) {
+            if (walker.isOnline() && random.nextDouble() < QUIT_CHANCE) {
+                quit(walker);
+            }
+        }
+        playFarm(groundFlags, groundLoot);
+    }
+    
+    /**
+     * Plays what can happen to a flag on the ground: it tries to despawn, drifts into an end
+     * portal, or is picked up.
+     *
+     * @param flag    The flag item entity.
+     * @param walkers The online players not carrying a flag at the start of the tick.
+     */
+    private void playGroundFlag(@NotNull SimWorld.SimEntity flag,
+                                @NotNull List<SimWorld.SimEntity> walkers) {
+        Item item = (Item) flag.getStub();
+        if (random.nextDouble() < DESPAWN_CHANCE) {
+            count(Traffic.DESPAWN);
+            if (!events.despawn(item)) {
+                violation("Despawn of flag " + flagNumber(flag.getStack()) + " was not cancelled");
+            }
+        }
+        if (random.nextDouble() < PORTAL_CHANCE) {
+            count(Traffic.PORTAL);
+            if (!events.entityPortal(item, endPortal)) {
+                violation("Flag " + flagNumber(flag.getStack()) + " was let into the end");
+            }
+        }
+        if (flag.isRemoved() || walkers.isEmpty() || random.nextDouble() >= PICKUP_CHANCE) {
+            return;
+        }
+        SimWorld.SimEntity picker = walkers.get(random.nextInt(walkers.size()));
+        if (!picker.isOnline() || picker.getHelmet() != null) {
+            return;
+        }
+        count(Traffic.PICKUP);
+        picker.moveTo(flag.getX(), flag.getY(), flag.getZ());
+        if (!events.pickup((LivingEntity) picker.getStub(), item)) {
+            violation("Pickup of flag " + flagNumber(flag.getStack()) +
+                    " was not cancelled, so the server would hand out a second copy");
+        }
+    }
+    
+    /**
+     * Plays what can happen to a flag carrier: they try a portal, die, or quit.
+     *
+     * @param carrier The carrier.
+     */
+    private void playCarrier(@NotNull SimWorld.SimEntity carrier) {
+        if (!carrier.isOnline() || !isFlag(carrier.getHelmet())) {
+            return;
+        }
+        Player player = (Player) carrier.getStub();
+        if (random.nextDouble() < PORTAL_CHANCE) {
+            count(Traffic.PORTAL);
+            if (!events.playerPortal(player, endPortal)) {
+                violation("Carrier of flag " + flagNumber(carrier.getHelmet()) +
+                        " was let into the end");
+            }
+        }
+        if (random.nextDouble() < DEATH_CHANCE) {
+            count(Traffic.CARRIER_DEATH);
+            ItemStack helmet = carrier.getHelmet();
+            boolean keepInventory = random.nextDouble() < KEEP_INVENTORY_CHANCE;
+            List<ItemStack> drops = keepInventory ? List.of() : List.of(helmet);
+            events.death(player, drops);
+            if (!keepInventory) {
+                // The server drops the loot once the event is over
+                carrier.setHelmet(null);
+                world.spawnItem(player.getLocation(), helmet);
+            }
+            carrier.moveTo(randomCoordinate(), 64, randomCoordinate());
+        } else if (random.nextDouble() < CARRIER_QUIT_CHANCE) {
+            quit(carrier);
+        }
+    }
+    
+    /**
+     * Takes a player offline.
+     *
+     * @param player The player.
+     */
+    private void quit(@NotNull SimWorld.SimEntity player) {
+        count(Traffic.QUIT);
+        events.quit((Player) player.getStub());
+        world.setOnline(player, false);
+    }
+    
+    /**
+     * Plays the mob farm: mobs die and drop loot, and hoppers collect loot, or try to collect a
+     * flag lying nearby.
+     *
+     * @param groundFlags The flags on the ground in loaded chunks at the start of the tick.
+     * @param groundLoot  The loot on the ground in loaded chunks at the start of the tick.
+     */
+    private void playFarm(@NotNull List<SimWorld.SimEntity> groundFlags,
+                          @NotNull List<SimWorld.SimEntity> groundLoot) {
+        for (int i = 0; i < options.mobDeaths(); i++) {
+            count(Traffic.MOB_DEATH);
+            SimWorld.SimEntity mob = farmMobs.get(random.nextInt(farmMobs.size()));
+            ItemStack loot = SimWorld.plainStack();
+            LivingEntity stub = (LivingEntity) mob.getStub();
+            events.death(stub, List.of(loot));
+            if (world.chunkOf(mob).isLoaded()) {
+                groundLoot.add(world.getEntity(world.spawnItem(stub.getLocation(), loot)
+                        .getUniqueId()));
+            }
+        }
+        for (int i = 0; i < options.hoppers(); i++) {
+            boolean forFlag = !groundFlags.isEmpty() && random.nextDouble() < HOPPER_FLAG_CHANCE;
+            List<SimWorld.SimEntity> targets = forFlag ? groundFlags : groundLoot;
+            if (targets.isEmpty()) {
+                continue;
+            }
+            SimWorld.SimEntity target = targets.get(random.nextInt(targets.size()));
+            if (target.isRemoved()) {
+                continue;
+            }
+            count(Traffic.HOPPER);
+            boolean cancelled = events.hopperPickup((Item) target.getStub());
+            if (forFlag && !cancelled) {
+                violation("Hopper took flag " + flagNumber(target.getStack()));
+            } else if (!forFlag && cancelled) {
+                violation("Hopper was stopped from taking farm loot");
+            } else if (!forFlag) {
+                target.getStub().remove();
+            }
+        }
+    }
+    
+    /**
+     * Unloads a chunk with no players in it now and then, and loads unloaded chunks again.
+     */
+    private void churnChunks() {
+        for (SimWorld.SimChunk chunk : world.getChunks()) {
+            if (!chunk.isLoaded() && random.nextDouble() < LOAD_CHANCE) {
+                loadChunk(chunk);
+            }
+        }
+        if (random.nextDouble() >= UNLOAD_CHANCE) {
+            return;
+        }
+        List<SimWorld.SimChunk> candidates = new ArrayList<>();
+        for (SimWorld.SimEntity entity : world.getEntities()) {
+            SimWorld.SimChunk chunk = world.chunkOf(entity);
+            if (entity.getKind() == SimWorld.SimEntity.Kind.ITEM && chunk.isLoaded() &&
+                    !candidates.contains(chunk)) {
+                candidates.add(chunk);
+            }
+        }
+        candidates.removeIf(
+                chunk -> world.entitiesIn(chunk).stream().anyMatch(Player.class::isInstance));
+        if (!candidates.isEmpty()) {
+            SimWorld.SimChunk chunk = candidates.get(random.nextInt(candidates.size()));
+            count(Traffic.CHUNK_UNLOAD);
+            events.entitiesUnload(chunk.getStub(), world.entitiesIn(chunk));
+            chunk.setLoaded(false, tick);
+        }
+    }
+    
+    /**
+     * Loads every unloaded chunk a player has walked into.
+     */
+    private void loadChunksWithPlayers() {
+        for (Player player : world.getOnlinePlayers()) {
+            SimWorld.SimChunk chunk = world.chunkOf(world.getEntity(player.getUniqueId()));
+            if (!chunk.isLoaded()) {
+                loadChunk(chunk);
+            }
+        }
+    }
+    
+    /**
+     * Loads the entities of a chunk.
+     *
+     * @param chunk The chunk.
+     */
+    private void loadChunk(@NotNull SimWorld.SimChunk chunk) {
+        count(Traffic.CHUNK_LOAD);
+        chunk.setLoaded(true, tick);
+        events.entitiesLoad(chunk.getStub(), world.entitiesIn(chunk));
+    }
+    
+    /**
+     * Moves a player a step, and fires the move.
+     *
+     * @param player The player.
+     * @param target Where the player is heading, or null to wander.
+     * @param step   The length of the step, in blocks.
+     */
+    private void walk(@NotNull SimWorld.SimEntity player, double @Nullable [] target,
+                      double step) {
+        double dx = random.nextGaussian();
+        double dz = random.nextGaussian();
+        if (target != null) {
+            dx += target[0] - player.getX();
+            dz += target[1] - player.getZ();
+        }
+        double length = Math.max(1e-6, Math.hypot(dx, dz));
+        double limit = SimWorld.RADIUS_CHUNKS * 16 - 1;
+        double x = Math.clamp(player.getX() + dx / length * step, -limit, limit);
+        double z = Math.clamp(player.getZ() + dz / length * step, -limit, limit);
+        boolean changedBlock = Math.floor(x) != Math.floor(player.getX()) ||
+                Math.floor(z) != Math.floor(player.getZ());
+        player.moveTo(x, player.getY(), z);
+        count(Traffic.MOVE);
+        events.move((Player) player.getStub(),
+                new Location(world.getWorld(), x, player.getY(), z), changedBlock);
+    }
+    
+    /**
+     * Finds the capture zone of a carrier's team. Carriers of their own team's flag walk there too,
+     * so the tracker has to turn those captures down.
+     *
+     * @param carrier The carrier.
+     * @return The x and z coordinates of the center of the zone.
+     */
+    private double @NotNull [] ownZone(@NotNull SimWorld.SimEntity carrier) {
+        return new double[]{ZONE_X[TEAMS.indexOf(playerTeams.get(carrier.getId()).getName())], 0};
+    }
+    
+    /**
+     * Loads every chunk and lets the scans of recently loaded chunks finish, so every flag must
+     * have its beacon back.
+     */
+    private void settle() {
+        for (SimWorld.SimChunk chunk : world.getChunks()) {
+            if (!chunk.isLoaded()) {
+                loadChunk(chunk);
+            }
+        }
+        for (int i = 0; i < SETTLE_TICKS; i++) {
+            List<Carry> carries = findCarries();
+            long[] scores = teamScores();
+            tick++;
+            scheduler.tick();
+            checkCaptures(carries, scores);
+        }
+    }
+    
+    /**
+     * Checks that every flag exists exactly once, that the registry agrees with the world, and
+     * that every flag on the ground has its beacon.
+     *
+     * @param settled Whether every chunk must be settled, so every flag must have its beacon.
+     */
+    private void checkInvariants(boolean settled) {
+        FlagRegistry registry = flagTracker.getRegistry();
+        BeaconService beacons = flagTracker.getBeaconService();
+        int[] copies = new int[flagStacks.size()];
+        int groundFlags = 0;
+        for (SimWorld.SimEntity entity : world.getEntities()) {
+            UUID entityId = entity.getId();
+            if (entity.getKind() == SimWorld.SimEntity.Kind.ITEM) {
+                Integer flag = flagStacks.get(entity.getStack());
+                if (flag == null) {
+                    continue;
+                }
+                copies[flag]++;
+                groundFlags++;
+                if (!registry.isFlagItem(entityId)) {
+                    violation("Flag " + flag + " is on the ground but not in the registry");
+                }
+                SimWorld.SimChunk chunk = world.chunkOf(entity);
+                if ((settled || chunk.isSettled(tick, SETTLE_TICKS)) &&
+                        !beacons.contains(entityId)) {
+                    violation("Flag " + flag + " has lost its beacon");
+                }
+            } else {
+                Integer flag = flagStacks.get(entity.getHelmet());
+                if (flag != null) {
+                    copies[flag]++;
+                }
+                boolean carrier = registry.isCarrier(entityId);
+                if (flag != null && !carrier && entity.isOnline()) {
+                    violation("Flag " + flag + " is worn by someone who is not a carrier");
+                } else if (flag == null && carrier) {
+                    violation("A " + entity.getKind().name().toLowerCase(Locale.ROOT) +
+                            " without a flag is still a carrier");
+                }
+            }
+        }
+        for (int flag = 0; flag < copies.length; flag++) {
+            if (copies[flag] != 1) {
+                violation("Flag " + flag + " exists " + copies[flag] + " times");
+            }
+        }
+        if (registry.getFlagItemCount() != groundFlags) {
+            violation("Registry holds " + registry.getFlagItemCount() + " flag items, but " +
+                    groundFlags + " are on the ground");
+        }
+        if (!flagTracker.isGameActive()) {
+            violation("Game-active handlers are not registered while flags exist");
+        }
+    }
+    
+    /**
+     * Finds every flag being carried by an online player.
+     *
+     * @return The carries.
+     */
+    private @NotNull List<Carry> findCarries() {
+        List<Carry> carries = new ArrayList<>();
+        for (SimWorld.SimEntity entity : world.getEntities()) {
+            if (entity.getKind() == SimWorld.SimEntity.Kind.PLAYER && entity.isOnline() &&
+                    isFlag(entity.getHelmet())) {
+                carries.add(new Carry(entity, entity.getHelmet()));
+            }
+        }
+        return carries;
+    }
+    
+    /**
+     * Checks the captures scored by the tracker's tasks in a tick. Captures are only scored by
+     * scheduled tasks, and scoring takes the flag off its carrier, so each point a team gained must
+     * belong to a carry of that team's player that ended in the tick. A carry can only end once, so
+     * a pickup that scored twice, or a point scored without ending its carry, leaves the team with
+     * more points than ended carries.
+     *
+     * @param carries The carries before the tasks ran.
+     * @param before  The score of each team before the tasks ran, indexed like {@link #TEAMS}.
+     */
+    private void checkCaptures(@NotNull List<Carry> carries, long @NotNull [] before) {
+        long[] gained = teamScores();
+        for (int team = 0; team < gained.length; team++) {
+            gained[team] -= before[team];
+        }
+        long[] ended = new long[TEAMS.size()];
+        for (Carry carry : carries) {
+            if (carry.carrier().getHelmet() == carry.flag()) {
+                continue;
+            }
+            int flag = flagNumber(carry.flag());
+            String team = playerTeams.get(carry.carrier().getId()).getName();
+            if (team.equals(TEAMS.get(flag % TEAMS.size()))) {
+                violation("Flag " + flag + " was captured by its own team, " + team);
+            }
+            ended[TEAMS.indexOf(team)]++;
+        }
+        for (int team = 0; team < TEAMS.size(); team++) {
+            if (gained[team] != ended[team]) {
+                violation(TEAMS.get(team) + " scored " + gained[team] + " captures from " +
+                        ended[team] + " carries");
+            }
+        }
+    }
+    
+    /**
+     * Gets the score of each team.
+     *
+     * @return The number of captures of each team, indexed like {@link #TEAMS}.
+     */
+    private long @NotNull [] teamScores() {
+        long[] scores = new long[TEAMS.size()];
+        ArenaState state = flagTracker.getArenaState(ArenaIndex.DEFAULT_ARENA);
+        if (state != null) {
+            TeamScores teamScores = state.getScores();
+            for (int team = 0; team < scores.length; team++) {
+                int index = teamScores.getTeamNames().indexOf(TEAMS.get(team));
+                scores[team] = index < 0 ? 0 : teamScores.get(index);
+            }
+        }
+        return scores;
+    }
+    
+    /**
+     * Counts the captures scored so far.
+     *
+     * @return The number of captures.
+     */
+    private long countCaptures() {
+        return Arrays.stream(teamScores()).sum();
+    }
+    
+    /**
+     * Prints the results of the run.
+     *
+     * @param tickNanos The time taken by each measured tick.
+     * @param tickBytes The memory allocated by each measured tick.
+     */
+    private void report(long @NotNull [] tickNanos, long @NotNull [] tickBytes) {
+        long overBudget = Arrays.stream(tickNanos).filter(nanos -> nanos > TICK_BUDGET_NANOS)
+                .count();
+        long[] sorted = tickNanos.clone();
+        Arrays.sort(sorted);
+        System.out.println("CTFBuddy load simulation: " + options);
+        System.out.printf(Locale.ROOT,
+                "Tick time (ms): mean %.3f, p50 %.3f, p99 %.3f, max %.3f, over 50 ms %d%n",
+                Arrays.stream(tickNanos).average().orElse(0) / 1e6, quantile(sorted, 0.5) / 1e6,
+                quantile(sorted, 0.99) / 1e6, quantile(sorted, 1) / 1e6, overBudget);
+        System.out.printf(Locale.ROOT, "Allocated per tick (KiB): mean %.1f, max %.1f%n",
+                Arrays.stream(tickBytes).average().orElse(0) / 1024,
+                Arrays.stream(tickBytes).max().orElse(0) / 1024.0);
+        StringBuilder trafficLine = new StringBuilder("Traffic:");
+        for (Traffic kind : Traffic.values()) {
+            trafficLine.append(' ').append(kind.name().toLowerCase(Locale.ROOT)).append('=')
+                    .append(traffic[kind.ordinal()]);
+        }
+        System.out.println(trafficLine);
+        System.out.println("Captures: " + countCaptures());
+        System.out.println("Handler statistics:");
+        for (HandlerStats.Row row : flagTracker.getStats().snapshot()) {
+            System.out.println("  " + row.format());
+        }
+        System.out.println("Cosmetic effects dropped: " +
+                flagTracker.getCosmetics().getDroppedCount() + ", tasks still queued: " +
+                scheduler.getQueuedCount());
+        if (violationCount == 0) {
+            System.out.println("Checks: passed on every tick");
+        } else {
+            System.out.println("Checks: " + violationCount + " failed, the first " +
+                    violations.size() + " being:");
+            violations.forEach(violation -> System.out.println("  " + violation));
+        }
+    }
+    
+    /**
+     * Reads a quantile from sorted values.
+     *
+     * @param sorted   The values, in ascending order.
+     * @param quantile The quantile, between 0 and 1.
+     * @return The value at the quantile, or 0 if there are no values.
+     */
+    private static long quantile(long @NotNull [] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)];
+    }
+    
+    /**
+     * Records a failed check.
+     *
+     * @param message What went wrong.
+     */
+    private void violation(@NotNull String message) {
+        violationCount++;
+        if (violations.size() < MAX_LISTED_VIOLATIONS) {
+            violations.add("tick " + tick + ": " + message);
+        }
+    }
+    
+    /**
+     * Counts an event of simulated traffic.
+     *
+     * @param kind The kind of traffic.
+     */
+    private void count(@NotNull Traffic kind) {
+        traffic[kind.ordinal()]++;
+    }
+    
+    /**
+     * Check if an item stack is one of the flags.
+     *
+     * @param stack The item stack.
+     * @return True if the stack is a flag, false otherwise.
+     */
+    private boolean isFlag(@Nullable ItemStack stack) {
+        return stack != null && flagStacks.containsKey(stack);
+    }
+    
+    /**
+     * Gets the number of a flag.
+     *
+     * @param stack The item stack of the flag.
+     * @return The number of the flag, or -1 if the stack is not a flag.
+     */
+    private int flagNumber(@Nullable ItemStack stack) {
+        return stack == null ? -1 : flagStacks.getOrDefault(stack, -1);
+    }
+    
+    /**
+     * Picks a random coordinate within the play area.
+     *
+     * @return The coordinate.
+     */
+    private double randomCoordinate() {
+        return (random.nextDouble() * 2 - 1) * PLAY_RADIUS;
+    }
+    
+    /**
+     * A flag being carried.
+     *
+     * @param carrier The player carrying the flag.
+     * @param flag    The item stack of the flag.
+     */
+    private record Carry(@NotNull SimWorld.SimEntity carrier, @NotNull ItemStack flag) {
+    }
+    
+    /**
+     * The kinds of simulated traffic.
+     */
+    private enum Traffic {
+        /**
+         * A player moving.
+         */
+        MOVE,
+        /**
+         * A player picking up a flag.
+         */
+        PICKUP,
+        /**
+         * A flag carrier dying.
+         */
+        CARRIER_DEATH,
+        /**
+         * A mob of the mob farm dying.
+         */
+        MOB_DEATH,
+        /**
+         * A hopper trying to pick up an item.
+         */
+        HOPPER,
+        /**
+         * A flag trying to despawn.
+         */
+        DESPAWN,
+        /**
+         * A flag, or a flag carrier, walking into an end portal.
+         */
+        PORTAL,
+        /**
+         * A player quitting.
+         */
+        QUIT,
+        /**
+         * A player joining again.
+         */
+        JOIN,
+        /**
+         * The entities of a chunk unloading.
+         */
+        CHUNK_UNLOAD,
+        /**
+         * The entities of a chunk loading.
+         */
+        CHUNK_LOAD
+    }
+    
+    /**
+     * The size and seed of a run.
+     *
+     * @param players     Number of players.
+     * @param flags       Number of flags.
+     * @param ticks       Number of ticks measured.
+     * @param warmupTicks Number of ticks played before measuring.
+     * @param mobDeaths   Number of mob farm deaths each tick.
+     * @param hoppers     Number of hopper pickups each tick.
+     * @param seed        Seed of the random traffic.
+     */
+    private record Options(int players, int flags, int ticks, int warmupTicks, int mobDeaths,
+                           int hoppers, long seed) {
+        /**
+         * Reads the options from {@code key=value} arguments, such as {@code players=400}.
+         * Options not given keep their defaults.
+         *
+         * @param args The arguments.
+         * @return The options.
+         * @throws IllegalArgumentException If an argument is not a known option with a number.
+         */
+        static @NotNull Options parse(@NotNull String @NotNull [] args) {
+            Map<String, Long> values = new LinkedHashMap<>();
+            values.put("players", 200L);
+            values.put("flags", 10L);
+            values.put("ticks", 1200L);
+            values.put("warmupTicks", 200L);
+            values.put("mobDeaths", 8L);
+            values.put("hoppers", 32L);
+            values.put("seed", 1L);
+            for (String arg : args) {
+                String[] parts = arg.split("=", 2);
+                if (parts.length != 2 || !values.containsKey(parts[0])) {
+                    throw new IllegalArgumentException("Unknown option " + arg + ", expected one" +
+                            " of " + values.keySet() + " as key=value");
+                }
+                values.put(parts[0], Long.parseLong(parts[1]));
+            }
+            return new Options(Math.toIntExact(values.get("players")),
+                    Math.toIntExact(values.get("flags")), Math.toIntExact(values.get("ticks")),
+                    Math.toIntExact(values.get("warmupTicks")),
+                    Math.toIntExact(values.get("mobDeaths")),
+                    Math.toIntExact(values.get("hoppers")), values.get("seed"));
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package io.github.minus1over12.ctfbuddy;
+
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.PortalType;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Item;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.entity.EntityPickupItemEvent;
+import org.bukkit.event.entity.EntityPortalEvent;
+import org.bukkit.event.entity.ItemDespawnEvent;
+import org.bukkit.event.entity.ItemSpawnEvent;
+import org.bukkit.event.inventory.InventoryPickupItemEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerPortalEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.world.EntitiesLoadEvent;
+import org.bukkit.event.world.EntitiesUnloadEvent;
+import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+/**
+ * Fires events at a {@link FlagTracker} the way the server would. Events handled by the
+ * game-active listener are only delivered while it is registered, and each kind of event is a
+ * single stub whose getters read the fields set for the current call, so firing an event does not
+ * build a new stub.
+ *
+ * @author War Pigeon
+ */
+final class SimEvents {
+    /**
+     * The tracker the events are fired at.
+     */
+    private final @NotNull FlagTracker flagTracker;
+    /**
+     * Event for an item spawning.
+     */
+    private final ItemSpawnEvent itemSpawn;
+    /**
+     * Event for a hopper picking up an item.
+     */
+    private final InventoryPickupItemEvent hopperPickup;
+    /**
+     * Event for an item despawning.
+     */
+    private final ItemDespawnEvent despawn;
+    /**
+     * Event for an entity picking up an item.
+     */
+    private final EntityPickupItemEvent pickup;
+    /**
+     * Event for an entity dying.
+     */
+    private final EntityDeathEvent death;
+    /**
+     * Event for an entity going through a portal.
+     */
+    private final EntityPortalEvent entityPortal;
+    /**
+     * Event for a player going through a portal.
+     */
+    private final PlayerPortalEvent playerPortal;
+    /**
+     * Event for a player moving.
+     */
+    private final PlayerMoveEvent move;
+    /**
+     * Event for a player quitting.
+     */
+    private final PlayerQuitEvent quit;
+    /**
+     * Event for a player joining.
+     */
+    private final PlayerJoinEvent join;
+    /**
+     * Event for the entities of a chunk loading.
+     */
+    private final EntitiesLoadEvent entitiesLoad;
+    /**
+     * Event for the entities of a chunk unloading.
+     */
+    private final EntitiesUnloadEvent entitiesUnload;
+    /**
+     * The entity of the current event.
+     */
+    private Entity entity;
+    /**
+     * The item of the current event.
+     */
+    private Item item;
+    /**
+     * Where the entity of the current event is going.
+     */
+    private Location to;
+    /**
+     * Whether the current move changed block.
+     */
+    private boolean changedBlock;
+    /**
+     * The drops of the current death.
+     */
+    private List<ItemStack> drops;
+    /**
+     * The chunk of the current event.
+     */
+    private Chunk chunk;
+    /**
+     * The entities of the current chunk event.
+     */
+    private List<Entity> chunkEntities;
+    /**
+     * Whether the current event has been cancelled.
+     */
+    private boolean cancelled;
+    
+    /**
+     * Create a new SimEvents.
+     *
+     * @param flagTracker The tracker to fire the events at.
+     */
+    SimEvents(@NotNull FlagTracker flagTracker) {
+        this.flagTracker = flagTracker;
+        itemSpawn = cancellable(ItemSpawnEvent.class);
+        when(itemSpawn.getEntity()).thenAnswer(invocation -> item);
+        hopperPickup = cancellable(InventoryPickupItemEvent.class);
+        when(hopperPickup.getItem()).thenAnswer(invocation -> item);
+        despawn = cancellable(ItemDespawnEvent.class);
+        when(despawn.getEntity()).thenAnswer(invocation -> item);
+        pickup = cancellable(EntityPickupItemEvent.class);
+        when(pickup.getEntity()).thenAnswer(invocation -> entity);
+        when(pickup.getItem()).thenAnswer(invocation -> item);
+        death = cancellable(EntityDeathEvent.class);
+        when(death.getEntity()).thenAnswer(invocation -> entity);
+        when(death.getDrops()).thenAnswer(invocation -> drops);
+        entityPortal = cancellable(EntityPortalEvent.class);
+        when(entityPortal.getEntity()).thenAnswer(invocation -> entity);
+        when(entityPortal.getTo()).thenAnswer(invocation -> to);
+        when(entityPortal.getPortalType()).thenReturn(PortalType.ENDER);
+        playerPortal = cancellable(PlayerPortalEvent.class);
+        when(playerPortal.getPlayer()).thenAnswer(invocation -> entity);
+        when(playerPortal.getTo()).thenAnswer(invocation -> to);
+        move = cancellable(PlayerMoveEvent.class);
+        when(move.getPlayer()).thenAnswer(invocation -> entity);
+        when(move.getTo()).thenAnswer(invocation -> to);
+        when(move.hasChangedBlock()).thenAnswer(invocation -> changedBlock);
+        quit = LoadSimulation.stub(PlayerQuitEvent.class);
+        when(quit.getPlayer()).thenAnswer(invocation -> entity);
+        join = LoadSimulation.stub(PlayerJoinEvent.class);
+        when(join.getPlayer()).thenAnswer(invocation -> entity);
+        entitiesLoad = LoadSimulation.stub(EntitiesLoadEvent.class);
+        when(entitiesLoad.getChunk()).thenAnswer(invocation -> chunk);
+        when(entitiesLoad.getEntities()).thenAnswer(invocation -> chunkEntities);
+        entitiesUnload = LoadSimulation.stub(EntitiesUnloadEvent.class);
+        when(entitiesUnload.getChunk()).thenAnswer(invocation -> chunk);
+        when(entitiesUnload.getEntities()).thenAnswer(invocation -> chunkEntities);
+    }
+    
+    /**
+     * Creates the stub of a cancellable event, which records whether it has been cancelled.
+     *
+     * @param type The type of event.
+     * @param <T>  The type of event.
+     * @return The stub.
+     */
+    private <T extends Cancellable> @NotNull T cancellable(@NotNull Class<T> type) {
+        T event = LoadSimulation.stub(type);
+        doAnswer(invocation -> {
+            cancelled = invocation.getArgument(0);
+            return null;
+        }).when(event).setCancelled(anyBoolean());
+        when(event.isCancelled()).thenAnswer(invocation -> cancelled);
+        return event;
+    }
+    
+    /**
+     * Fires the spawn event of an item.
+     *
+     * @param spawned The item.
+     */
+    void itemSpawn(@NotNull Item spawned) {
+        item = spawned;
+        cancelled = false;
+        flagTracker.onEntitySpawn(itemSpawn);
+    }
+    
+    /**
+     * Fires a hopper trying to pick up an item.
+     *
+     * @param target The item.
+     * @return True if the pickup was cancelled, false otherwise.
+     */
+    boolean hopperPickup(@NotNull Item target) {
+        item = target;
+        cancelled = false;
+        if (flagTracker.isGameActive()) {
+            flagTracker.onInventoryPickupItem(hopperPickup);
+        }
+        return cancelled;
+    }
+    
+    /**
+     * Fires an item trying to despawn.
+     *
+     * @param target The item.
+     * @return True if the despawn was cancelled, false otherwise.
+     */
+    boolean despawn(@NotNull Item target) {
+        item = target;
+        cancelled = false;
+        if (flagTracker.isGameActive()) {
+            flagTracker.stopDespawn(despawn);
+        }
+        return cancelled;
+    }
+    
+    /**
+     * Fires an entity picking up an item.
+     *
+     * @param picker The entity picking up the item.
+     * @param target The item.
+     * @return True if the pickup was cancelled, false otherwise.
+     */
+    boolean pickup(@NotNull LivingEntity picker, @NotNull Item target) {
+        entity = picker;
+        item = target;
+        cancelled = false;
+        if (flagTracker.isGameActive()) {
+            flagTracker.onEntityPickupItem(pickup);
+        }
+        return cancelled;
+    }
+    
+    /**
+     * Fires an entity dying.
+     *
+     * @param dying      The entity.
+     * @param deathDrops The items the entity drops.
+     */
+    void death(@NotNull LivingEntity dying, @NotNull List<ItemStack> deathDrops) {
+        entity = dying;
+        drops = deathDrops;
+        cancelled = false;
+        if (flagTracker.isGameActive()) {
+            flagTracker.onEntityDeath(death);
+        }
+    }
+    
+    /**
+     * Fires an entity going through an end portal.
+     *
+     * @param traveller   The entity.
+     * @param destination Where the portal leads.
+     * @return True if the portal was cancelled, false otherwise.
+     */
+    boolean entityPortal(@NotNull Entity traveller, @NotNull Location destination) {
+        entity = traveller;
+        to = destination;
+        cancelled = false;
+        if (flagTracker.isGameActive()) {
+            flagTracker.onEntityPortal(entityPortal);
+        }
+        return cancelled;
+    }
+    
+    /**
+     * Fires a player going through a portal.
+     *
+     * @param traveller   The player.
+     * @param destination Where the portal leads.
+     * @return True if the portal was cancelled, false otherwise.
+     */
+    boolean playerPortal(@NotNull Player traveller, @NotNull Location destination) {
+        entity = traveller;
+        to = destination;
+        cancelled = false;
+        if (flagTracker.isGameActive()) {
+            flagTracker.onPlayerPortal(playerPortal);
+        }
+        return cancelled;
+    }
+    
+    /**
+     * Fires a player moving.
+     *
+     * @param mover       The player.
+     * @param destination Where the player moved to.
+     * @param newBlock    Whether the move changed block.
+     */
+    void move(@NotNull Player mover, @NotNull Location destination, boolean newBlock) {
+        entity = mover;
+        to = destination;
+        changedBlock = newBlock;
+        cancelled = false;
+        if (flagTracker.isGameActive()) {
+            flagTracker.onPlayerMove(move);
+        }
+    }
+    
+    /**
+     * Fires a player quitting.
+     *
+     * @param quitter The player.
+     */
+    void quit(@NotNull Player quitter) {
+        entity = quitter;
+        if (flagTracker.isGameActive()) {
+            flagTracker.onPlayerQuit(quit);
+        }
+    }
+    
+    /**
+     * Fires a player joining.
+     *
+     * @param joiner The player.
+     */
+    void join(@NotNull Player joiner) {
+        entity = joiner;
+        flagTracker.onPlayerJoin(join);
+    }
+    
+    /**
+     * Fires the entities of a chunk loading.
+     *
+     * @param loaded   The chunk.
+     * @param entities The entities in the chunk.
+     */
+    void entitiesLoad(@NotNull Chunk loaded, @NotNull List<Entity> entities) {
+        chunk = loaded;
+        chunkEntities = entities;
+        flagTracker.onEntitiesLoad(entitiesLoad);
+    }
+    
+    /**
+     * Fires the entities of a chunk unloading.
+     *
+     * @param unloaded The chunk.
+     * @param entities The entities in the chunk.
+     */
+    void entitiesUnload(@NotNull Chunk unloaded, @NotNull List<Entity> entities) {
+        chunk = unloaded;
+        chunkEntities = entities;
+        flagTracker.onEntitiesUnload(entitiesUnload);
+    }
+}
@@ -0,0 +1,297 @@
+package io.github.minus1over12.ctfbuddy;
+
+import io.papermc.paper.threadedregions.scheduler.AsyncScheduler;
+import io.papermc.paper.threadedregions.scheduler.EntityScheduler;
+import io.papermc.paper.threadedregions.scheduler.GlobalRegionScheduler;
+import io.papermc.paper.threadedregions.scheduler.RegionScheduler;
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+/**
+ * Stand-in for the Folia schedulers, driven one tick at a time by {@link LoadSimulation}. Every
+ * task runs on the simulation thread: repeating and delayed tasks on the tick they are due, and
+ * one-off tasks from any scheduler on the next tick, in the order they were scheduled. Async tasks
+ * and the filter stage of entity scans run there too, so a run replays exactly from its seed.
+ *
+ * @author War Pigeon
+ */
+final class SimScheduler {
+    /**
+     * Length of a tick, in milliseconds, for converting async delays.
+     */
+    private static final long TICK_MILLIS = 50;
+    
+    /**
+     * One-off tasks waiting for the next tick. Safe to fill from any thread, though every task
+     * is scheduled from the simulation thread.
+     */
+    private final Queue<Runnable> queued = new ConcurrentLinkedQueue<>();
+    /**
+     * Repeating and delayed tasks.
+     */
+    private final List<TimedTask> timed = new CopyOnWriteArrayList<>();
+    /**
+     * Task handed to one-off tasks. Nothing cancels a one-off task, so they all share it.
+     */
+    private final ScheduledTask oneOff = LoadSimulation.stub(ScheduledTask.class);
+    /**
+     * The stand-in global region scheduler.
+     */
+    private final GlobalRegionScheduler global = LoadSimulation.stub(GlobalRegionScheduler.class);
+    /**
+     * The stand-in async scheduler.
+     */
+    private final AsyncScheduler async = LoadSimulation.stub(AsyncScheduler.class);
+    /**
+     * The stand-in region scheduler.
+     */
+    private final RegionScheduler region = LoadSimulation.stub(RegionScheduler.class);
+    /**
+     * The current tick.
+     */
+    private long tick;
+    
+    /**
+     * Create a new SimScheduler.
+     */
+    SimScheduler() {
+        when(global.runAtFixedRate(any(), any(), anyLong(), anyLong())).thenAnswer(
+                invocation -> schedule(invocation.getArgument(1), invocation.getArgument(2),
+                        invocation.getArgument(3)));
+        when(global.runDelayed(any(), any(), anyLong())).thenAnswer(
+                invocation -> schedule(invocation.getArgument(1), invocation.getArgument(2), 0));
+        when(global.run(any(), any())).thenAnswer(invocation -> {
+            Consumer<ScheduledTask> task = invocation.getArgument(1);
+            queued.add(() -> task.accept(oneOff));
+            return oneOff;
+        });
+        doAnswer(invocation -> {
+            queued.add(invocation.getArgument(1));
+            return null;
+        }).when(global).execute(any(), any());
+        when(async.runNow(any(), any())).thenAnswer(invocation -> {
+            Consumer<ScheduledTask> task = invocation.getArgument(1);
+            queued.add(() -> task.accept(oneOff));
+            return oneOff;
+        });
+        when(async.runDelayed(any(), any(), anyLong(), any())).thenAnswer(
+                invocation -> schedule(invocation.getArgument(1),
+                        toTicks(invocation.getArgument(2), invocation.getArgument(3)), 0));
+        when(async.runAtFixedRate(any(), any(), anyLong(), anyLong(), any())).thenAnswer(
+                invocation -> schedule(invocation.getArgument(1),
+                        toTicks(invocation.getArgument(2), invocation.getArgument(4)),
+                        toTicks(invocation.getArgument(3), invocation.getArgument(4))));
+        doAnswer(invocation -> {
+            queued.add(invocation.getArgument(4));
+            return null;
+        }).when(region).execute(any(), any(), anyInt(), anyInt(), any());
+    }
+    
+    /**
+     * Gets the stand-in global region scheduler.
+     *
+     * @return The global region scheduler.
+     */
+    @NotNull GlobalRegionScheduler getGlobal() {
+        return global;
+    }
+    
+    /**
+     * Gets the stand-in async scheduler.
+     *
+     * @return The async scheduler.
+     */
+    @NotNull AsyncScheduler getAsync() {
+        return async;
+    }
+    
+    /**
+     * Gets the stand-in region scheduler.
+     *
+     * @return The region scheduler.
+     */
+    @NotNull RegionScheduler getRegion() {
+        return region;
+    }
+    
+    /**
+     * Gets an executor that runs tasks on the next tick, like one-off tasks, to stand in for the
+     * thread of the entity scan pipeline.
+     *
+     * @return The executor.
+     */
+    @NotNull Executor getScanExecutor() {
+        return queued::add;
+    }
+    
+    /**
+     * Creates the scheduler of an entity. Tasks are refused while the entity is not valid, and a
+     * task whose entity becomes invalid before it runs is retired instead.
+     *
+     * @param valid Whether the entity is valid, that is, in the world and loaded.
+     * @return The entity scheduler.
+     */
+    @NotNull EntityScheduler entityScheduler(@NotNull BooleanSupplier valid) {
+        EntityScheduler scheduler = LoadSimulation.stub(EntityScheduler.class);
+        when(scheduler.run(any(), any(), any())).thenAnswer(invocation -> {
+            if (!valid.getAsBoolean()) {
+                return null;
+            }
+            Consumer<ScheduledTask> task = invocation.getArgument(1);
+            Runnable retired = invocation.getArgument(2);
+            queued.add(() -> {
+                if (valid.getAsBoolean()) {
+                    task.accept(oneOff);
+                } else if (retired != null) {
+                    retired.run();
+                }
+            });
+            return oneOff;
+        });
+        when(scheduler.execute(any(), any(), any(), anyLong())).thenAnswer(invocation -> {
+            if (!valid.getAsBoolean()) {
+                return false;
+            }
+            Runnable task = invocation.getArgument(1);
+            Runnable retired = invocation.getArgument(2);
+            queued.add(() -> {
+                if (valid.getAsBoolean()) {
+                    task.run();
+                } else if (retired != null) {
+                    retired.run();
+                }
+            });
+            return true;
+        });
+        return scheduler;
+    }
+    
+    /**
+     * Runs the tasks due this tick. One-off tasks scheduled while they run wait for the next tick.
+     */
+    void tick() {
+        tick++;
+        for (TimedTask task : timed) {
+            if (task.cancelled.get()) {
+                timed.remove(task);
+            } else if (task.nextTick <= tick) {
+                if (task.period > 0) {
+                    task.nextTick = tick + task.period;
+                } else {
+                    timed.remove(task);
+                }
+                task.action.accept(task.handle);
+            }
+        }
+        for (int count = queued.size(); count > 0; count--) {
+            Runnable task = queued.poll();
+            if (task == null) {
+                break;
+            }
+            task.run();
+        }
+    }
+    
+    /**
+     * Gets the number of one-off tasks waiting for the next tick.
+     *
+     * @return The number of queued tasks.
+     */
+    int getQueuedCount() {
+        return queued.size();
+    }
+    
+    /**
+     * Adds a repeating or delayed task.
+     *
+     * @param action The task.
+     * @param delay  Ticks until the first run.
+     * @param period Ticks between runs, or 0 to run once.
+     * @return The handle of the task, which can cancel it.
+     */
+    private @NotNull ScheduledTask schedule(@NotNull Consumer<ScheduledTask> action, long delay,
+                                            long period) {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        ScheduledTask handle = LoadSimulation.stub(ScheduledTask.class);
+        when(handle.cancel()).thenAnswer(invocation -> {
+            cancelled.set(true);
+            return null;
+        });
+        when(handle.isCancelled()).thenAnswer(invocation -> cancelled.get());
+        timed.add(new TimedTask(action, handle, cancelled, tick + Math.max(1, delay), period));
+        return handle;
+    }
+    
+    /**
+     * Converts an async delay to ticks, rounding down to at least one tick.
+     *
+     * @param amount The delay.
+     * @param unit   The unit of the delay.
+     * @return The delay in ticks.
+     */
+    private static long toTicks(long amount, @Nullable TimeUnit unit) {
+        TimeUnit timeUnit = unit == null ? TimeUnit.MILLISECONDS : unit;
+        return Math.max(1, timeUnit.toMillis(amount) / TICK_MILLIS);
+    }
+    
+    /**
+     * A repeating or delayed task.
+     */
+    private static final class TimedTask {
+        /**
+         * The task.
+         */
+        private final @NotNull Consumer<ScheduledTask> action;
+        /**
+         * The handle given to the task and its owner.
+         */
+        private final @NotNull ScheduledTask handle;
+        /**
+         * Whether the task has been cancelled.
+         */
+        private final @NotNull AtomicBoolean cancelled;
+        /**
+         * Ticks between runs, or 0 to run once.
+         */
+        private final long period;
+        /**
+         * The tick the task runs next.
+         */
+        private long nextTick;
+        
+        /**
+         * Create a new TimedTask.
+         *
+         * @param action    The task.
+         * @param handle    The handle given to the task and its owner.
+         * @param cancelled Whether the task has been cancelled.
+         * @param nextTick  The tick the task runs first.
+         * @param period    Ticks between runs, or 0 to run once.
+         */
+        private TimedTask(@NotNull Consumer<ScheduledTask> action, @NotNull ScheduledTask handle,
+                          @NotNull AtomicBoolean cancelled, long nextTick, long period) {
+            this.action = action;
+            this.handle = handle;
+            this.cancelled = cancelled;
+            this.nextTick = nextTick;
+            this.period = period;
+        }
+    }
+}
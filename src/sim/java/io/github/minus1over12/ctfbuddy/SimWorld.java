@@ -0,0 +1,762 @@
+package io.github.minus1over12.ctfbuddy;
+
+import net.kyori.adventure.text.Component;
+import org.bukkit.Chunk;
+import org.bukkit.GameMode;
+import org.bukkit.Location;
+import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Item;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.entity.Zombie;
+import org.bukkit.inventory.EntityEquipment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.persistence.PersistentDataContainer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+/**
+ * The world of a {@link LoadSimulation}: a square of chunks holding players, item entities and
+ * mobs, each a stub that reads its state from here. It also plays the part of the server where
+ * the plugin relies on it, such as spawning an item entity and firing its spawn event when an
+ * item is dropped.
+ *
+ * @author War Pigeon
+ */
+final class SimWorld {
+    /**
+     * Name of the world the match is played in.
+     */
+    static final String NAME = "world";
+    /**
+     * Name of the end, which portals lead to.
+     */
+    static final String END_NAME = "world_the_end";
+    /**
+     * Number of chunks from the center of the world to its edge, in each direction.
+     */
+    static final int RADIUS_CHUNKS = 8;
+    
+    /**
+     * Scheduler the entity schedulers queue their tasks on.
+     */
+    private final @NotNull SimScheduler scheduler;
+    /**
+     * The world the match is played in.
+     */
+    private final World world = LoadSimulation.stub(World.class);
+    /**
+     * The end, which portals lead to.
+     */
+    private final World end = LoadSimulation.stub(World.class);
+    /**
+     * Every entity in the world, and every player that has joined, keyed by UUID.
+     */
+    private final Map<UUID, SimEntity> entities = new ConcurrentHashMap<>();
+    /**
+     * The players that are online.
+     */
+    private final List<Player> onlinePlayers = new CopyOnWriteArrayList<>();
+    /**
+     * Every chunk of the world, keyed by {@link #chunkKey(int, int)}.
+     */
+    private final Map<Long, SimChunk> chunks = new HashMap<>();
+    /**
+     * Item entities made ahead of time, so spawning an item during a tick does not pay for
+     * building its stub.
+     */
+    private final Deque<SimEntity> spareItems = new ArrayDeque<>();
+    /**
+     * Called with every item entity spawned, to fire its spawn event.
+     */
+    private @NotNull Consumer<Item> spawnListener = item -> {
+    };
+    
+    /**
+     * Create a new SimWorld.
+     *
+     * @param scheduler Scheduler the entity schedulers queue their tasks on.
+     */
+    SimWorld(@NotNull SimScheduler scheduler) {
+        this.scheduler = scheduler;
+        when(world.getName()).thenReturn(NAME);
+        when(world.getEnvironment()).thenReturn(World.Environment.NORMAL);
+        when(world.getMinHeight()).thenReturn(-64);
+        when(world.getMaxHeight()).thenReturn(320);
+        when(world.getPlayers()).thenReturn(onlinePlayers);
+        when(world.getLoadedChunks()).thenAnswer(invocation -> chunks.values().stream()
+                .filter(SimChunk::isLoaded).map(SimChunk::getStub).toArray(Chunk[]::new));
+        when(world.isChunkLoaded(anyInt(), anyInt())).thenAnswer(invocation -> {
+            SimChunk chunk = getChunk(invocation.getArgument(0), invocation.getArgument(1));
+            return chunk != null && chunk.isLoaded();
+        });
+        when(world.getChunkAt(anyInt(), anyInt())).thenAnswer(invocation -> {
+            SimChunk chunk = getChunk(invocation.getArgument(0), invocation.getArgument(1));
+            return chunk == null ? null : chunk.getStub();
+        });
+        when(world.dropItem(any(Location.class), any(ItemStack.class))).thenAnswer(
+                invocation -> spawnItem(invocation.getArgument(0), invocation.getArgument(1)));
+        when(world.dropItemNaturally(any(Location.class), any(ItemStack.class))).thenAnswer(
+                invocation -> spawnItem(invocation.getArgument(0), invocation.getArgument(1)));
+        when(end.getName()).thenReturn(END_NAME);
+        when(end.getEnvironment()).thenReturn(World.Environment.THE_END);
+        when(end.getMinHeight()).thenReturn(0);
+        when(end.getMaxHeight()).thenReturn(256);
+        for (int x = -RADIUS_CHUNKS; x < RADIUS_CHUNKS; x++) {
+            for (int z = -RADIUS_CHUNKS; z < RADIUS_CHUNKS; z++) {
+                chunks.put(chunkKey(x, z), new SimChunk(x, z));
+            }
+        }
+    }
+    
+    /**
+     * Creates a stand-in for a persistent data container, backed by a map.
+     *
+     * @return The data container.
+     */
+    static @NotNull PersistentDataContainer dataContainer() {
+        Map<NamespacedKey, Object> values = new ConcurrentHashMap<>();
+        PersistentDataContainer container = LoadSimulation.stub(PersistentDataContainer.class);
+        doAnswer(invocation -> {
+            values.put(invocation.getArgument(0), invocation.getArgument(2));
+            return null;
+        }).when(container).set(any(), any(), any());
+        doAnswer(invocation -> {
+            values.remove(invocation.<NamespacedKey>getArgument(0));
+            return null;
+        }).when(container).remove(any());
+        when(container.get(any(), any()))
+                .thenAnswer(invocation -> values.get(invocation.<NamespacedKey>getArgument(0)));
+        when(container.getOrDefault(any(), any(), any())).thenAnswer(
+                invocation -> values.getOrDefault(invocation.<NamespacedKey>getArgument(0),
+                        invocation.getArgument(2)));
+        when(container.has(any(), any())).thenAnswer(
+                invocation -> values.containsKey(invocation.<NamespacedKey>getArgument(0)));
+        when(container.isEmpty()).thenAnswer(invocation -> values.isEmpty());
+        return container;
+    }
+    
+    /**
+     * Creates an item stack with its own meta, as a flag is made from.
+     *
+     * @return The item stack.
+     */
+    static @NotNull ItemStack stackWithMeta() {
+        PersistentDataContainer container = dataContainer();
+        ItemMeta meta = LoadSimulation.stub(ItemMeta.class);
+        when(meta.getPersistentDataContainer()).thenReturn(container);
+        ItemStack stack = LoadSimulation.stub(ItemStack.class);
+        when(stack.hasItemMeta()).thenReturn(true);
+        when(stack.getItemMeta()).thenReturn(meta);
+        return stack;
+    }
+    
+    /**
+     * Creates a plain item stack with no meta, like the loot of a mob farm.
+     *
+     * @return The item stack.
+     */
+    static @NotNull ItemStack plainStack() {
+        return LoadSimulation.stub(ItemStack.class);
+    }
+    
+    /**
+     * Sets what is called with every item entity spawned.
+     *
+     * @param spawnListener Called with every item entity spawned, to fire its spawn event.
+     */
+    void setSpawnListener(@NotNull Consumer<Item> spawnListener) {
+        this.spawnListener = spawnListener;
+    }
+    
+    /**
+     * Gets the world the match is played in.
+     *
+     * @return The world.
+     */
+    @NotNull World getWorld() {
+        return world;
+    }
+    
+    /**
+     * Gets the end, which portals lead to.
+     *
+     * @return The end.
+     */
+    @NotNull World getEnd() {
+        return end;
+    }
+    
+    /**
+     * Gets every entity in the world, and every player that has joined.
+     *
+     * @return A live view of the entities.
+     */
+    @NotNull Collection<SimEntity> getEntities() {
+        return entities.values();
+    }
+    
+    /**
+     * Gets an entity by UUID.
+     *
+     * @param entityId The UUID of the entity.
+     * @return The entity, or null if there is no entity with that UUID.
+     */
+    @Nullable SimEntity getEntity(@NotNull UUID entityId) {
+        return entities.get(entityId);
+    }
+    
+    /**
+     * Gets the players that are online.
+     *
+     * @return A live view of the online players.
+     */
+    @NotNull List<Player> getOnlinePlayers() {
+        return onlinePlayers;
+    }
+    
+    /**
+     * Gets a chunk.
+     *
+     * @param x The x coordinate of the chunk.
+     * @param z The z coordinate of the chunk.
+     * @return The chunk, or null if it is outside the world.
+     */
+    @Nullable SimChunk getChunk(int x, int z) {
+        return chunks.get(chunkKey(x, z));
+    }
+    
+    /**
+     * Gets every chunk of the world.
+     *
+     * @return The chunks.
+     */
+    @NotNull Collection<SimChunk> getChunks() {
+        return chunks.values();
+    }
+    
+    /**
+     * Adds a player to the world. The player starts offline.
+     *
+     * @param name The name of the player.
+     * @param x    The x coordinate.
+     * @param z    The z coordinate.
+     * @return The player.
+     */
+    @NotNull SimEntity addPlayer(@NotNull String name, double x, double z) {
+        SimEntity state = new SimEntity(SimEntity.Kind.PLAYER, x, 64, z);
+        state.online = false;
+        Player player = entityStub(Player.class, state, name);
+        EntityEquipment equipment = equipmentStub(state);
+        PlayerInventory inventory = LoadSimulation.stub(PlayerInventory.class);
+        when(inventory.getHelmet()).thenAnswer(invocation -> state.helmet);
+        doAnswer(invocation -> {
+            state.helmet = invocation.getArgument(0);
+            return null;
+        }).when(inventory).setHelmet(any());
+        when(player.getEquipment()).thenReturn(equipment);
+        when(player.getInventory()).thenReturn(inventory);
+        when(player.getName()).thenReturn(name);
+        when(player.getGameMode()).thenReturn(GameMode.SURVIVAL);
+        when(player.isOnline()).thenAnswer(invocation -> state.online);
+        entities.put(state.id, state);
+        return state;
+    }
+    
+    /**
+     * Adds a mob to the world.
+     *
+     * @param x The x coordinate.
+     * @param z The z coordinate.
+     * @return The mob.
+     */
+    @NotNull SimEntity addMob(double x, double z) {
+        SimEntity state = new SimEntity(SimEntity.Kind.MOB, x, 64, z);
+        LivingEntity mob = entityStub(Zombie.class, state, "Zombie");
+        EntityEquipment equipment = equipmentStub(state);
+        when(mob.getEquipment()).thenReturn(equipment);
+        entities.put(state.id, state);
+        return state;
+    }
+    
+    /**
+     * Brings a player online or takes them offline.
+     *
+     * @param player The player.
+     * @param online Whether the player is online.
+     */
+    void setOnline(@NotNull SimEntity player, boolean online) {
+        if (player.online == online) {
+            return;
+        }
+        player.online = online;
+        if (online) {
+            onlinePlayers.add((Player) player.stub);
+        } else {
+            onlinePlayers.remove((Player) player.stub);
+        }
+    }
+    
+    /**
+     * Makes sure enough spare item entities are ready for the next tick.
+     *
+     * @param count The number of spare item entities to have ready.
+     */
+    void prepareItems(int count) {
+        while (spareItems.size() < count) {
+            SimEntity state = new SimEntity(SimEntity.Kind.ITEM, 0, 64, 0);
+            Item item = entityStub(Item.class, state, "Item");
+            when(item.getItemStack()).thenAnswer(invocation -> state.stack);
+            doAnswer(invocation -> {
+                state.stack = invocation.getArgument(0);
+                return null;
+            }).when(item).setItemStack(any());
+            spareItems.add(state);
+        }
+    }
+    
+    /**
+     * Spawns an item entity and fires its spawn event, as the server does for a dropped item.
+     *
+     * @param location Where to spawn the item.
+     * @param stack    The item stack.
+     * @return The item entity.
+     */
+    @NotNull Item spawnItem(@NotNull Location location, @NotNull ItemStack stack) {
+        prepareItems(1);
+        SimEntity state = spareItems.poll();
+        state.moveTo(location.getX(), location.getY(), location.getZ());
+        state.stack = stack;
+        entities.put(state.id, state);
+        Item item = (Item) state.stub;
+        spawnListener.accept(item);
+        return item;
+    }
+    
+    /**
+     * Creates the stub of an entity, backed by its state.
+     *
+     * @param type  The type of entity.
+     * @param state The state of the entity.
+     * @param name  The name of the entity.
+     * @param <T>   The type of entity.
+     * @return The stub.
+     */
+    private <T extends Entity> @NotNull T entityStub(@NotNull Class<T> type,
+                                                     @NotNull SimEntity state,
+                                                     @NotNull String name) {
+        T entity = LoadSimulation.stub(type);
+        when(entity.getUniqueId()).thenReturn(state.id);
+        when(entity.getWorld()).thenReturn(world);
+        when(entity.getLocation()).thenAnswer(
+                invocation -> new Location(world, state.x, state.y, state.z));
+        when(entity.getLocation(any())).thenAnswer(invocation -> {
+            Location location = invocation.getArgument(0);
+            location.setWorld(world);
+            location.setX(state.x);
+            location.setY(state.y);
+            location.setZ(state.z);
+            return location;
+        });
+        when(entity.getChunk()).thenAnswer(invocation -> chunkOf(state).getStub());
+        when(entity.getPersistentDataContainer()).thenReturn(state.data);
+        when(entity.getScheduler()).thenReturn(scheduler.entityScheduler(() -> isValid(state)));
+        when(entity.isValid()).thenAnswer(invocation -> isValid(state));
+        when(entity.name()).thenReturn(Component.text(name));
+        doAnswer(invocation -> {
+            state.removed = true;
+            entities.remove(state.id);
+            return null;
+        }).when(entity).remove();
+        state.stub = entity;
+        return entity;
+    }
+    
+    /**
+     * Creates the equipment of a living entity, backed by its state.
+     *
+     * @param state The state of the entity.
+     * @return The equipment.
+     */
+    private static @NotNull EntityEquipment equipmentStub(@NotNull SimEntity state) {
+        EntityEquipment equipment = LoadSimulation.stub(EntityEquipment.class);
+        when(equipment.getHelmet()).thenAnswer(invocation -> state.helmet);
+        doAnswer(invocation -> {
+            state.helmet = invocation.getArgument(0);
+            return null;
+        }).when(equipment).setHelmet(any());
+        return equipment;
+    }
+    
+    /**
+     * Check if an entity is valid: spawned, not removed, online if it is a player, and in a chunk
+     * whose entities are loaded.
+     *
+     * @param state The entity.
+     * @return True if the entity is valid, false otherwise.
+     */
+    boolean isValid(@NotNull SimEntity state) {
+        return !state.removed && state.online && entities.containsKey(state.id) &&
+                chunkOf(state).isLoaded();
+    }
+    
+    /**
+     * Gets the chunk an entity is in.
+     *
+     * @param state The entity.
+     * @return The chunk.
+     */
+    @NotNull SimChunk chunkOf(@NotNull SimEntity state) {
+        int limit = RADIUS_CHUNKS - 1;
+        int x = Math.clamp((int) Math.floor(state.x) >> 4, -RADIUS_CHUNKS, limit);
+        int z = Math.clamp((int) Math.floor(state.z) >> 4, -RADIUS_CHUNKS, limit);
+        return chunks.get(chunkKey(x, z));
+    }
+    
+    /**
+     * Gets the entities in a chunk, leaving out players who are offline.
+     *
+     * @param chunk The chunk.
+     * @return The entities.
+     */
+    @NotNull List<Entity> entitiesIn(@NotNull SimChunk chunk) {
+        List<Entity> found = new ArrayList<>();
+        for (SimEntity state : entities.values()) {
+            if (!state.removed && state.online && chunkOf(state) == chunk) {
+                found.add(state.stub);
+            }
+        }
+        return found;
+    }
+    
+    /**
+     * Packs chunk coordinates into a single key.
+     *
+     * @param x The x coordinate of the chunk.
+     * @param z The z coordinate of the chunk.
+     * @return The key.
+     */
+    private static long chunkKey(int x, int z) {
+        return (long) x << 32 | z & 0xFFFFFFFFL;
+    }
+    
+    /**
+     * A chunk of the world, whose entities can be unloaded and loaded again.
+     */
+    final class SimChunk {
+        /**
+         * The x coordinate of the chunk.
+         */
+        private final int x;
+        /**
+         * The z coordinate of the chunk.
+         */
+        private final int z;
+        /**
+         * The stub of the chunk.
+         */
+        private final @NotNull Chunk stub = LoadSimulation.stub(Chunk.class);
+        /**
+         * Whether the entities of the chunk are loaded.
+         */
+        private volatile boolean loaded = true;
+        /**
+         * The tick the chunk was last loaded.
+         */
+        private long loadedAtTick;
+        
+        /**
+         * Create a new SimChunk.
+         *
+         * @param x The x coordinate of the chunk.
+         * @param z The z coordinate of the chunk.
+         */
+        private SimChunk(int x, int z) {
+            this.x = x;
+            this.z = z;
+            PersistentDataContainer data = dataContainer();
+            when(stub.getX()).thenReturn(x);
+            when(stub.getZ()).thenReturn(z);
+            when(stub.getWorld()).thenReturn(world);
+            when(stub.getPersistentDataContainer()).thenReturn(data);
+            when(stub.isLoaded()).thenAnswer(invocation -> loaded);
+            when(stub.isEntitiesLoaded()).thenAnswer(invocation -> loaded);
+            when(stub.getEntities()).thenAnswer(
+                    invocation -> entitiesIn(this).toArray(Entity[]::new));
+        }
+        
+        /**
+         * Gets the stub of the chunk.
+         *
+         * @return The stub.
+         */
+        @NotNull Chunk getStub() {
+            return stub;
+        }
+        
+        /**
+         * Gets the x coordinate of the chunk.
+         *
+         * @return The x coordinate.
+         */
+        int getX() {
+            return x;
+        }
+        
+        /**
+         * Gets the z coordinate of the chunk.
+         *
+         * @return The z coordinate.
+         */
+        int getZ() {
+            return z;
+        }
+        
+        /**
+         * Check if the entities of the chunk are loaded.
+         *
+         * @return True if the chunk is loaded, false otherwise.
+         */
+        boolean isLoaded() {
+            return loaded;
+        }
+        
+        /**
+         * Loads or unloads the entities of the chunk.
+         *
+         * @param loaded Whether the chunk is loaded.
+         * @param tick   The current tick.
+         */
+        void setLoaded(boolean loaded, long tick) {
+            this.loaded = loaded;
+            if (loaded) {
+                loadedAtTick = tick;
+            }
+        }
+        
+        /**
+         * Check if the chunk has been loaded long enough for a scan of its entities to finish.
+         *
+         * @param tick        The current tick.
+         * @param settleTicks The ticks a scan may take.
+         * @return True if the chunk is loaded and settled, false otherwise.
+         */
+        boolean isSettled(long tick, long settleTicks) {
+            return loaded && tick - loadedAtTick >= settleTicks;
+        }
+    }
+    
+    /**
+     * The state of an entity, read by its stub.
+     */
+    static final class SimEntity {
+        /**
+         * The UUID of the entity.
+         */
+        private final UUID id = UUID.randomUUID();
+        /**
+         * What kind of entity this is.
+         */
+        private final @NotNull Kind kind;
+        /**
+         * The persistent data of the entity.
+         */
+        private final @NotNull PersistentDataContainer data = dataContainer();
+        /**
+         * The stub of the entity.
+         */
+        private Entity stub;
+        /**
+         * The x coordinate.
+         */
+        private volatile double x;
+        /**
+         * The y coordinate.
+         */
+        private volatile double y;
+        /**
+         * The z coordinate.
+         */
+        private volatile double z;
+        /**
+         * Whether the entity has been removed.
+         */
+        private volatile boolean removed;
+        /**
+         * Whether the entity is online. Only players go offline.
+         */
+        private volatile boolean online = true;
+        /**
+         * The helmet of a player or mob.
+         */
+        private volatile @Nullable ItemStack helmet;
+        /**
+         * The item stack of an item entity.
+         */
+        private volatile @Nullable ItemStack stack;
+        
+        /**
+         * Create a new SimEntity.
+         *
+         * @param kind What kind of entity this is.
+         * @param x    The x coordinate.
+         * @param y    The y coordinate.
+         * @param z    The z coordinate.
+         */
+        private SimEntity(@NotNull Kind kind, double x, double y, double z) {
+            this.kind = kind;
+            moveTo(x, y, z);
+        }
+        
+        /**
+         * Moves the entity.
+         *
+         * @param x The x coordinate.
+         * @param y The y coordinate.
+         * @param z The z coordinate.
+         */
+        void moveTo(double x, double y, double z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+        
+        /**
+         * Gets the UUID of the entity.
+         *
+         * @return The UUID.
+         */
+        @NotNull UUID getId() {
+            return id;
+        }
+        
+        /**
+         * Gets what kind of entity this is.
+         *
+         * @return The kind of entity.
+         */
+        @NotNull Kind getKind() {
+            return kind;
+        }
+        
+        /**
+         * Gets the stub of the entity.
+         *
+         * @return The stub.
+         */
+        @NotNull Entity getStub() {
+            return stub;
+        }
+        
+        /**
+         * Gets the x coordinate.
+         *
+         * @return The x coordinate.
+         */
+        double getX() {
+            return x;
+        }
+        
+        /**
+         * Gets the y coordinate.
+         *
+         * @return The y coordinate.
+         */
+        double getY() {
+            return y;
+        }
+        
+        /**
+         * Gets the z coordinate.
+         *
+         * @return The z coordinate.
+         */
+        double getZ() {
+            return z;
+        }
+        
+        /**
+         * Check if the entity has been removed.
+         *
+         * @return True if the entity is removed, false otherwise.
+         */
+        boolean isRemoved() {
+            return removed;
+        }
+        
+        /**
+         * Check if the entity is online. Only players go offline.
+         *
+         * @return True if the entity is online, false otherwise.
+         */
+        boolean isOnline() {
+            return online;
+        }
+        
+        /**
+         * Gets the helmet of a player or mob.
+         *
+         * @return The helmet, or null if there is none.
+         */
+        @Nullable ItemStack getHelmet() {
+            return helmet;
+        }
+        
+        /**
+         * Sets the helmet of a player or mob.
+         *
+         * @param helmet The helmet, or null for none.
+         */
+        void setHelmet(@Nullable ItemStack helmet) {
+            this.helmet = helmet;
+        }
+        
+        /**
+         * Gets the item stack of an item entity.
+         *
+         * @return The item stack, or null if this is not an item entity.
+         */
+        @Nullable ItemStack getStack() {
+            return stack;
+        }
+        
+        /**
+         * The kinds of entity in the simulation.
+         */
+        enum Kind {
+            /**
+             * A player.
+             */
+            PLAYER,
+            /**
+             * An item entity.
+             */
+            ITEM,
+            /**
+             * A mob.
+             */
+            MOB
+        }
+    }
+}